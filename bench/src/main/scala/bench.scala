@@ -0,0 +1,311 @@
+package faba.bench
+
+import java.io.File
+import java.util.concurrent.TimeUnit
+
+import faba.analysis.{Context, LiteContext, controlFlow}
+import faba.analysis.combined._
+import faba.analysis.leakingParameters._
+import faba.analysis.nullableResult._
+import faba.analysis.parameters._
+import faba.analysis.result._
+import faba.analysis.resultOrigins._
+import faba.data._
+import faba.engine._
+import faba.source.{JarFileSource, Processor}
+import faba.{MainProcessor, Options}
+
+import org.objectweb.asm.Opcodes._
+import org.objectweb.asm._
+import org.objectweb.asm.tree.MethodNode
+import org.objectweb.asm.tree.analysis.{Frame, Value => ASMValue}
+import org.openjdk.jmh.annotations._
+import org.openjdk.jmh.infra.Blackhole
+
+import scala.collection.JavaConversions._
+import scala.collection.mutable.ListBuffer
+
+/**
+ * A method body from a jar with results of phases preceding analyses,
+ * so that a benchmark of a phase measures only this phase.
+ *
+ * @param jsr the method body contains JSR instructions
+ */
+class Sample(val className: String, val methodNode: MethodNode, val jsr: Boolean) {
+  val method = Method(className, methodNode.name, methodNode.desc)
+  val argumentTypes = Type.getArgumentTypes(methodNode.desc)
+  val referenceArgs = argumentTypes.indices.filter { i =>
+    val sort = argumentTypes(i).getSort
+    sort == Type.OBJECT || sort == Type.ARRAY
+  }
+  val referenceResult = {
+    val sort = Type.getReturnType(methodNode.desc).getSort
+    sort == Type.OBJECT || sort == Type.ARRAY
+  }
+  val graph = controlFlow.buildControlFlowGraph(className, methodNode, jsr)
+  val dfs = controlFlow.buildDFSTree(graph)
+  val loops = dfs.cyclic
+  // the same classification as in `FabaProcessor.processMethod`
+  val complex = loops || graph.branching
+  val reducible = !loops || controlFlow.reducible(graph, dfs)
+
+  lazy val context = Context(method, methodNode, graph, dfs)
+  lazy val leaking = LeakingParameters.build(className, methodNode, jsr)
+  lazy val origins = OriginsAnalysis.resultOrigins(leaking.frames.asInstanceOf[Array[Frame[ASMValue]]], methodNode, graph)
+}
+
+/**
+ * Method bodies of benchmarks.
+ *
+ * Sets of methods:
+ *  - all: all methods with code
+ *  - loops: methods with loops (back edges)
+ *  - tryFinally: large methods with `finally` blocks (catch-all handlers)
+ *  - jsr: methods with JSR/RET subroutines (only velocity.jar has them, so the set is not benchmarked by default)
+ */
+object Samples {
+  val sets = List("all", "loops", "tryFinally", "jsr")
+
+  // directory with sample jars, `data` of the project by default
+  lazy val dataDir: File =
+    Option(System.getProperty("faba.bench.data")).map(new File(_)).getOrElse {
+      if (new File("data").isDirectory) new File("data") else new File("../data")
+    }
+
+  def jar(name: String): File =
+    new File(dataDir, name)
+
+  def load(jarName: String): List[Sample] = {
+    val samples = ListBuffer[Sample]()
+    JarFileSource(jar(jarName)).process(new Processor {
+      override def processClass(classReader: ClassReader): Unit =
+        classReader.accept(new ClassVisitor(ASM5) {
+          override def visitMethod(access: Int, name: String, desc: String, signature: String, exceptions: Array[String]) = {
+            val node = new MethodNode(ASM5, access, name, desc, signature, exceptions)
+            new MethodVisitor(ASM5, node) {
+              var jsr = false
+              override def visitEnd(): Unit = {
+                super.visitEnd()
+                if (node.instructions.size() > 0)
+                  samples += new Sample(classReader.getClassName, node, jsr)
+              }
+
+              override def visitJumpInsn(opcode: Int, label: Label) {
+                if (opcode == Opcodes.JSR)
+                  jsr = true
+                super.visitJumpInsn(opcode, label)
+              }
+            }
+          }
+        }, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES)
+    })
+    samples.toList
+  }
+
+  def select(samples: List[Sample], set: String): List[Sample] =
+    set match {
+      case "all" => samples
+      case "loops" => samples.filter(_.loops)
+      case "tryFinally" => samples.filter(s => s.methodNode.instructions.size() >= 100 && s.methodNode.tryCatchBlocks.exists(_.`type` == null))
+      case "jsr" => samples.filter(_.jsr)
+      case other => sys.error(s"unknown set of methods: $other")
+    }
+}
+
+/**
+ * Methods of a set in a jar.
+ * Phases before analyses (control flow graph, DFS tree, leaking parameters, result origins)
+ * are computed in advance.
+ */
+@State(Scope.Benchmark)
+class Methods {
+  @Param(Array("mockjdk7-rt.jar", "velocity.jar"))
+  var jar: String = _
+
+  // "jsr" is selected explicitly (`-p jar=velocity.jar -p set=jsr`), mockjdk7-rt.jar has no such methods
+  @Param(Array("all", "loops", "tryFinally"))
+  var set: String = _
+
+  var samples: Array[Sample] = _
+  // methods analyzed by `FabaProcessor.handleComplexMethod`
+  var complex: Array[Sample] = _
+  // methods analyzed by `FabaProcessor.handleSimpleMethod`
+  var simple: Array[Sample] = _
+
+  @Setup
+  def setup(): Unit = {
+    samples = Samples.select(Samples.load(jar), set).toArray
+    // scores of benchmarks of an empty set would be meaningless
+    if (samples.isEmpty)
+      sys.error(s"no methods of set $set in $jar")
+    complex = samples.filter(s => s.complex && s.reducible)
+    simple = samples.filter(!_.complex)
+    for (s <- complex) {
+      s.context
+      s.leaking
+      s.origins
+    }
+  }
+}
+
+/**
+ * Phases of analysis of a single method, each benchmark runs a phase for all methods of a set.
+ *
+ * {{{
+ *   sbt "bench/jmh:run -i 10 -wi 10 -f 1 faba.bench.AnalysisBench"
+ *   sbt "bench/jmh:run faba.bench.AnalysisBench.leakingParameters -p jar=velocity.jar -p set=loops"
+ *   sbt "bench/jmh:run faba.bench.AnalysisBench -p jar=velocity.jar -p set=jsr"
+ * }}}
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+class AnalysisBench {
+
+  @Benchmark
+  def controlFlowGraph(m: Methods, bh: Blackhole): Unit =
+    for (s <- m.samples)
+      bh.consume(controlFlow.buildControlFlowGraph(s.className, s.methodNode, s.jsr))
+
+  @Benchmark
+  def dfsTree(m: Methods, bh: Blackhole): Unit =
+    for (s <- m.samples)
+      bh.consume(controlFlow.buildDFSTree(s.graph))
+
+  @Benchmark
+  def reducible(m: Methods, bh: Blackhole): Unit =
+    for (s <- m.samples if s.loops)
+      bh.consume(controlFlow.reducible(s.graph, s.dfs))
+
+  @Benchmark
+  def leakingParameters(m: Methods, bh: Blackhole): Unit =
+    for (s <- m.complex)
+      bh.consume(LeakingParameters.build(s.className, s.methodNode, s.jsr))
+
+  @Benchmark
+  def resultOrigins(m: Methods, bh: Blackhole): Unit =
+    for (s <- m.complex if s.referenceResult)
+      bh.consume(OriginsAnalysis.resultOrigins(s.leaking.frames.asInstanceOf[Array[Frame[ASMValue]]], s.methodNode, s.graph))
+
+  @Benchmark
+  def notNullParameter(m: Methods, bh: Blackhole): Unit =
+    for (s <- m.complex; i <- s.referenceArgs if s.leaking.parameters(i))
+      bh.consume(limited(new NotNullParameterAnalysis(s.context, In(i)).analyze()))
+
+  @Benchmark
+  def nullableParameter(m: Methods, bh: Blackhole): Unit =
+    for (s <- m.complex; i <- s.referenceArgs if s.leaking.nullableParameters(i))
+      bh.consume(limited(new NullableParameterAnalysis(s.context, In(i)).analyze()))
+
+  @Benchmark
+  def result(m: Methods, bh: Blackhole): Unit =
+    for (s <- m.complex if s.referenceResult)
+      bh.consume(limited(new ResultAnalysis(s.context, Out, s.origins).analyze()))
+
+  @Benchmark
+  def nullableResult(m: Methods, bh: Blackhole): Unit =
+    for (s <- m.complex if s.referenceResult)
+      bh.consume(NullableResultAnalysis.analyze(s.className, s.methodNode, s.origins.instructions, s.jsr))
+
+  @Benchmark
+  def combinedSingle(m: Methods, bh: Blackhole): Unit =
+    for (s <- m.simple) {
+      val analyzer = new CombinedSingleAnalysis(LiteContext(s.method, s.methodNode, s.graph))
+      analyzer.analyze()
+      bh.consume(analyzer)
+    }
+
+  // analyses which reached the limit of steps are measured as well
+  private def limited(analyze: => Equation[Key, Value]): AnyRef =
+    try analyze catch { case e: LimitReachedException => e }
+}
+
+/**
+ * Records equations and bindings passed to a solver during indexing, so that they may be replayed
+ * into a fresh solver.
+ */
+class RecordingSolver(lattice: Lattice[Value], defaultResolveValue: Value)
+  extends StagedHierarchySolver[Key, Value](lattice, defaultResolveValue) {
+  private val steps = ListBuffer[StagedHierarchySolver[Key, Value] => Unit]()
+
+  override def addMethodEquation(equation: Equation[Key, Value]): Unit = {
+    steps += (_.addMethodEquation(equation))
+    super.addMethodEquation(equation)
+  }
+
+  override def bindCalls(resolveMap: Map[Key, Set[Key]], apiKeys: Set[Key]): Unit = {
+    steps += (_.bindCalls(resolveMap, apiKeys))
+    super.bindCalls(resolveMap, apiKeys)
+  }
+
+  def replay(): StagedHierarchySolver[Key, Value] = {
+    val solver = new StagedHierarchySolver[Key, Value](lattice, defaultResolveValue)
+    steps.foreach(_(solver))
+    solver
+  }
+}
+
+/**
+ * Equations of a jar, indexed and bound once.
+ */
+@State(Scope.Benchmark)
+class Equations {
+  @Param(Array("mockjdk7-rt.jar", "velocity.jar"))
+  var jar: String = _
+
+  @Param(Array("notNullParams", "nullableParams", "contracts", "nullableResult", "purity"))
+  var solver: String = _
+
+  var recorded: RecordingSolver = _
+
+  @Setup
+  def setup(): Unit = {
+    val processor = new MainProcessor(false, Options()) {
+      override def mkSolver(lattice: Lattice[Value], defaultResolveValue: Value): HierarchySolver[Key, Value] =
+        new RecordingSolver(lattice, defaultResolveValue)
+    }
+    processor.index(JarFileSource(Samples.jar(jar)))
+    processor.bind()
+    recorded = (solver match {
+      case "notNullParams" => processor.notNullParamsSolver
+      case "nullableParams" => processor.nullableParamsSolver
+      case "contracts" => processor.contractsSolver
+      case "nullableResult" => processor.nullableResultSolver
+      case "purity" => processor.puritySolver
+      case other => sys.error(s"unknown solver: $other")
+    }).asInstanceOf[RecordingSolver]
+  }
+}
+
+/**
+ * A fresh solver loaded with recorded equations for each invocation.
+ */
+@State(Scope.Thread)
+class LoadedSolver {
+  var solver: StagedHierarchySolver[Key, Value] = _
+
+  @Setup(Level.Invocation)
+  def setup(equations: Equations): Unit =
+    solver = equations.recorded.replay()
+}
+
+/**
+ * Solving of equations of a jar by `StagedHierarchySolver`, loading of equations is not measured.
+ *
+ * {{{
+ *   sbt "bench/jmh:run faba.bench.SolverBench -p jar=mockjdk7-rt.jar -p solver=contracts"
+ * }}}
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+class SolverBench {
+
+  @Benchmark
+  def solve(loaded: LoadedSolver): Map[Key, Value] =
+    loaded.solver.solve()
+}
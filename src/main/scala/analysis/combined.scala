@@ -41,7 +41,7 @@ class CombinedSingleAnalysis(val context: LiteContext) {
       val insnNode = methodNode.instructions.get(insnIndex)
       insnNode.getType match {
         case AbstractInsnNode.LABEL | AbstractInsnNode.LINE | AbstractInsnNode.FRAME =>
-          insnIndex = controlFlow.transitions(insnIndex).head
+          insnIndex = controlFlow.successor(insnIndex)
         case _ =>
           insnNode.getOpcode match {
             case ATHROW =>
@@ -55,7 +55,7 @@ class CombinedSingleAnalysis(val context: LiteContext) {
               return
             case _ =>
               frame.execute(insnNode, interpreter)
-              insnIndex = controlFlow.transitions(insnIndex).head
+              insnIndex = controlFlow.successor(insnIndex)
           }
       }
     }
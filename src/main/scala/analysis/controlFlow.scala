@@ -5,45 +5,60 @@ import faba.asm._
 import org.objectweb.asm.Opcodes._
 import org.objectweb.asm.tree._
 
-import scala.collection.immutable.HashSet
-import scala.collection.mutable
-import scala.collection.mutable.ListBuffer
-
 package object controlFlow {
 
   def buildControlFlowGraph(className: String, methodNode: MethodNode, jsr: Boolean): ControlFlowGraph =
     if (jsr) ControlFlowBuilder(className, methodNode).buildCFG()
     else LiteControlFlowBuilder(className, methodNode).buildCFG()
 
-  private sealed trait Action
-  private case class MarkScanned(node: Int) extends Action
-  private case class ExamineEdge(from: Int, to: Int) extends Action
-
   // Graphs: Theory and Algorithms. by K. Thulasiraman , M. N. S. Swamy (1992)
   // 11.7.2 DFS of a directed graph
-  def buildDFSTree(transitions: Array[List[Int]]): DFSTree = {
-    type Edge = (Int, Int)
-
+  def buildDFSTree(graph: ControlFlowGraph): DFSTree = {
+    val size = graph.size
+    val starts = graph.starts
+    val targets = graph.targets
+    val edgesCount = targets.length
 
-    var nonBack, back = HashSet[Edge]()
     // marked = entered
-    val marked = new Array[Boolean](transitions.length)
-    val scanned = new Array[Boolean](transitions.length)
-    val preOrder = new Array[Int](transitions.length)
-    val postOrder = new Array[Int](transitions.length)
+    val marked = new Array[Boolean](size)
+    val scanned = new Array[Boolean](size)
+    val preOrder = new Array[Int](size)
+    val postOrder = new Array[Int](size)
+    val back = new Array[Boolean](edgesCount)
+    val loopEnters = new Array[Boolean](size)
+
+    // sources of edges
+    val sources = new Array[Int](edgesCount)
+    var n = 0
+    while (n < size) {
+      var e = starts(n)
+      while (e < starts(n + 1)) {
+        sources(e) = n
+        e += 1
+      }
+      n += 1
+    }
 
     var entered = 0
     var completed = 0
-    val stack = scala.collection.mutable.Stack[Action]()
-    val loopEnters = new Array[Boolean](transitions.length)
+    // actions: an edge to examine (e >= 0) or a node to mark as scanned (~n),
+    // edges of a node are examined in reverse order
+    val stack = new Array[Int](size + edgesCount)
+    var top = 0
 
     @inline
     def enter(n: Int): Unit = {
       entered += 1
       preOrder(n) = entered
       marked(n) = true
-      stack.push(MarkScanned(n))
-      stack.pushAll(transitions(n).map(ExamineEdge(n, _)))
+      stack(top) = ~n
+      top += 1
+      var e = starts(n)
+      while (e < starts(n + 1)) {
+        stack(top) = e
+        top += 1
+        e += 1
+      }
     }
 
     // entering
@@ -51,64 +66,151 @@ package object controlFlow {
 
     // back maybe only to one instruction
     // tree
-    while (stack.nonEmpty) {
-      val action = stack.pop()
-      action match {
-        case MarkScanned(n) =>
-          completed += 1
-          postOrder(n) = completed
-          scanned(n) = true
-        case ExamineEdge(from, to) =>
-          if (!marked(to)) {
-            enter(to)
-            nonBack = nonBack + (from -> to)
-          } else if (preOrder(to) > preOrder(from)) {
-            nonBack = nonBack + (from -> to)
-          } else if (preOrder(to) < preOrder(from) && !scanned(to)) {
-            back = back + (from -> to)
-            loopEnters(to) = true
-          } else {
-            nonBack = nonBack + (from -> to)
-          }
+    while (top > 0) {
+      top -= 1
+      val action = stack(top)
+      if (action < 0) {
+        val n = ~action
+        completed += 1
+        postOrder(n) = completed
+        scanned(n) = true
+      } else {
+        val from = sources(action)
+        val to = targets(action)
+        if (!marked(to)) {
+          enter(to)
+        } else if (preOrder(to) < preOrder(from) && !scanned(to)) {
+          back(action) = true
+          loopEnters(to) = true
+        }
       }
     }
 
-    DFSTree(preOrder, postOrder, nonBack, back, loopEnters)
+    DFSTree(preOrder, postOrder, back, loopEnters)
   }
 
   // Tarjan. Testing flow graph reducibility.
   // Journal of Computer and System Sciences 9.3 (1974): 355-365.
   def reducible(cfg: ControlFlowGraph, dfs: DFSTree): Boolean = {
-    val size = cfg.transitions.length
+    val size = cfg.size
+    val predecessors = cfg.predecessors()
+    val predStarts = predecessors.starts
+    val sources = predecessors.sources
+    val back = dfs.backEdges
 
-    val cycles2Node = Array.tabulate(size) { i => mutable.HashSet[Int]()}
-    val nonCycles2Node = Array.tabulate(size) { i => mutable.HashSet[Int]()}
     val collapsedTo = Array.tabulate[Int](size)(i => i)
-
-    for ((from, to) <- dfs.backEdges) cycles2Node(to).add(from)
-    for ((from, to) <- dfs.spanningTree) nonCycles2Node(to).add(from)
-
-    for (w <- (size - 1) to 0 by -1) {
-      val seq: Seq[Int] = cycles2Node(w).toSeq
-      val p = mutable.HashSet[Int](seq: _*)
-      val queue = mutable.Queue[Int](seq: _*)
-
-      while (queue.nonEmpty) {
-        val x = queue.dequeue()
-        for (y <- nonCycles2Node(x)) {
-          val y1 = collapsedTo(y)
-          if (!dfs.isDescendant(y1, w)) return false
-          if (y1 != w && p.add(y1)) queue.enqueue(y1)
+    // inP(x) == w means that x is in the set p of the current w
+    val inP = Array.fill[Int](size)(-1)
+    // p in order of addition, the queue is its suffix
+    val p = new Array[Int](size)
+
+    var w = size - 1
+    while (w >= 0) {
+      var pSize = 0
+      var k = predStarts(w)
+      while (k < predStarts(w + 1)) {
+        val x = sources(k)
+        if (back(predecessors.edges(k)) && inP(x) != w) {
+          inP(x) = w
+          p(pSize) = x
+          pSize += 1
         }
+        k += 1
       }
 
-      for (x <- p) collapsedTo(x) = w
+      var head = 0
+      while (head < pSize) {
+        val x = p(head)
+        head += 1
+        var k = predStarts(x)
+        while (k < predStarts(x + 1)) {
+          // edges from unreachable instructions are not examined by DFS
+          if (!back(predecessors.edges(k)) && dfs.preOrder(sources(k)) > 0) {
+            val y1 = collapsedTo(sources(k))
+            if (!dfs.isDescendant(y1, w)) return false
+            if (y1 != w && inP(y1) != w) {
+              inP(y1) = w
+              p(pSize) = y1
+              pSize += 1
+            }
+          }
+          k += 1
+        }
+      }
 
+      var i = 0
+      while (i < pSize) {
+        collapsedTo(p(i)) = w
+        i += 1
+      }
+      w -= 1
     }
 
     true
   }
 
+  /**
+   * Edges of a control flow graph under construction.
+   * Edges from an instruction are kept in order of addition (without duplicates),
+   * an edge is exceptional if it was first added as an edge into an exception handler.
+   *
+   * @param size number of instructions
+   */
+  private class GraphBuilder(size: Int) {
+    private var from, to, previous = new Array[Int](16)
+    private var exceptional = new Array[Boolean](16)
+    private var count = 0
+    // the last edge from an instruction, -1 if none
+    private val last = Array.fill[Int](size)(-1)
+    private val outDegree = new Array[Int](size)
+    val errors = new Array[Boolean](size)
+
+    def addEdge(insn: Int, successor: Int, exception: Boolean): Unit = {
+      var e = last(insn)
+      while (e >= 0) {
+        if (to(e) == successor)
+          return
+        e = previous(e)
+      }
+      if (count == from.length) {
+        from = java.util.Arrays.copyOf(from, count * 2)
+        to = java.util.Arrays.copyOf(to, count * 2)
+        previous = java.util.Arrays.copyOf(previous, count * 2)
+        exceptional = java.util.Arrays.copyOf(exceptional, count * 2)
+      }
+      from(count) = insn
+      to(count) = successor
+      previous(count) = last(insn)
+      exceptional(count) = exception
+      last(insn) = count
+      outDegree(insn) += 1
+      count += 1
+      if (exception)
+        errors(successor) = true
+    }
+
+    def build(): ControlFlowGraph = {
+      val starts = new Array[Int](size + 1)
+      var i = 0
+      while (i < size) {
+        starts(i + 1) = starts(i) + outDegree(i)
+        i += 1
+      }
+      val fill = java.util.Arrays.copyOf(starts, size)
+      val targets = new Array[Int](count)
+      val exceptionalEdges = new Array[Boolean](count)
+      var e = 0
+      while (e < count) {
+        val k = fill(from(e))
+        targets(k) = to(e)
+        exceptionalEdges(k) = exceptional(e)
+        fill(from(e)) = k + 1
+        e += 1
+      }
+      ControlFlowGraph(starts, targets, exceptionalEdges, errors)
+    }
+  }
+
   /**
    * General case control flow builder. Should be used for methods with JSR/RET instructions.
    *
@@ -116,30 +218,19 @@ package object controlFlow {
    * @param methodNode bytecode of the method
    */
   private case class ControlFlowBuilder(className: String, methodNode: MethodNode) extends FramelessAnalyzer() {
-    val transitions =
-      Array.tabulate[ListBuffer[Int]](methodNode.instructions.size) { i => new ListBuffer()}
-    val errors =
-      new Array[Boolean](methodNode.instructions.size())
-    var errorTransitions =
-      Set[(Int, Int)]()
+    private val graph = new GraphBuilder(methodNode.instructions.size())
 
     def buildCFG(): ControlFlowGraph = {
       if ((methodNode.access & (ACC_ABSTRACT | ACC_NATIVE)) == 0) analyze(methodNode)
-      ControlFlowGraph(transitions.map(_.toList), errorTransitions, errors)
+      graph.build()
     }
 
     override protected def newControlFlowEdge(insn: Int, successor: Int) {
-      if (!transitions(insn).contains(successor)) {
-        transitions(insn) += successor
-      }
+      graph.addEdge(insn, successor, exception = false)
     }
 
     override def newControlFlowExceptionEdge(insn: Int, successor: Int) = {
-      if (!transitions(insn).contains(successor)) {
-        transitions(insn) += successor
-        errorTransitions = errorTransitions + (insn -> successor)
-        errors(successor) = true
-      }
+      graph.addEdge(insn, successor, exception = true)
       true
     }
   }
@@ -151,30 +242,19 @@ package object controlFlow {
    * @param methodNode bytecode of the method
    */
   private case class LiteControlFlowBuilder(className: String, methodNode: MethodNode) extends LiteFramelessAnalyzer() {
-    val transitions =
-      Array.tabulate[ListBuffer[Int]](methodNode.instructions.size) { i => new ListBuffer()}
-    val errors =
-      new Array[Boolean](methodNode.instructions.size())
-    var errorTransitions =
-      Set[(Int, Int)]()
+    private val graph = new GraphBuilder(methodNode.instructions.size())
 
     def buildCFG(): ControlFlowGraph = {
       if ((methodNode.access & (ACC_ABSTRACT | ACC_NATIVE)) == 0) analyze(methodNode)
-      ControlFlowGraph(transitions.map(_.toList), errorTransitions, errors)
+      graph.build()
     }
 
     override protected def newControlFlowEdge(insn: Int, successor: Int) {
-      if (!transitions(insn).contains(successor)) {
-        transitions(insn) += successor
-      }
+      graph.addEdge(insn, successor, exception = false)
     }
 
     override def newControlFlowExceptionEdge(insn: Int, successor: Int) = {
-      if (!transitions(insn).contains(successor)) {
-        transitions(insn) += successor
-        errorTransitions = errorTransitions + (insn -> successor)
-        errors(successor) = true
-      }
+      graph.addEdge(insn, successor, exception = true)
       true
     }
   }
@@ -1,5 +1,6 @@
 package faba.analysis
 
+import faba.budget._
 import faba.data._
 import faba.engine._
 
@@ -7,17 +8,85 @@ import org.objectweb.asm.tree.MethodNode
 import org.objectweb.asm.tree.analysis.{BasicValue, Frame}
 import org.objectweb.asm.{Opcodes, Type}
 
+import scala.collection.immutable.IntMap
+
 /**
- * Control flow graph for a method's bytecode.
+ * Control flow graph for a method's bytecode in compressed sparse row form:
+ * edges from i-th instruction are `starts(i) until starts(i + 1)` (in order of construction).
  *
- * @param transitions transitions(i) contains vertices reachable from i in one step
- * @param errorTransitions if (i -> j) is in errorTransitions,
- *                         then this transition corresponds to the enter into catch block
+ * @param starts starts(i) is the index of the first edge from i-th instruction, starts(size) is the number of edges
+ * @param targets targets(e) is the instruction reachable by e-th edge in one step
+ * @param exceptional exceptional(e) means that e-th edge corresponds to the enter into catch block
  * @param errors starts of catch blocks
  */
-case class ControlFlowGraph(transitions: Array[List[Int]],
-                            errorTransitions: Set[(Int, Int)],
-                            errors: Array[Boolean])
+case class ControlFlowGraph(starts: Array[Int],
+                            targets: Array[Int],
+                            exceptional: Array[Boolean],
+                            errors: Array[Boolean]) {
+  // number of instructions
+  def size: Int = starts.length - 1
+
+  def outDegree(insnIndex: Int): Int =
+    starts(insnIndex + 1) - starts(insnIndex)
+
+  /**
+   * The first successor of an instruction (for instructions with a single successor).
+   */
+  def successor(insnIndex: Int): Int =
+    targets(starts(insnIndex))
+
+  /**
+   * Some instruction has more than one successor.
+   */
+  def branching: Boolean = {
+    var i = 0
+    while (i < size) {
+      if (outDegree(i) > 1)
+        return true
+      i += 1
+    }
+    false
+  }
+
+  /**
+   * Reversed graph: predecessors of i-th instruction are `sources(predStarts(i) until predStarts(i + 1))`,
+   * `edges` are indices of corresponding edges of this graph.
+   */
+  def predecessors(): Predecessors = {
+    val predStarts = new Array[Int](size + 1)
+    var e = 0
+    while (e < targets.length) {
+      predStarts(targets(e) + 1) += 1
+      e += 1
+    }
+    var i = 0
+    while (i < size) {
+      predStarts(i + 1) += predStarts(i)
+      i += 1
+    }
+    val fill = java.util.Arrays.copyOf(predStarts, size)
+    val sources = new Array[Int](targets.length)
+    val edges = new Array[Int](targets.length)
+    i = 0
+    while (i < size) {
+      e = starts(i)
+      while (e < starts(i + 1)) {
+        val k = fill(targets(e))
+        sources(k) = i
+        edges(k) = e
+        fill(targets(e)) = k + 1
+        e += 1
+      }
+      i += 1
+    }
+    Predecessors(predStarts, sources, edges)
+  }
+}
+
+/**
+ * Predecessors of instructions of a control flow graph (see `ControlFlowGraph.predecessors`).
+ */
+case class Predecessors(starts: Array[Int], sources: Array[Int], edges: Array[Int])
 
 /**
  * Output of a depth-first search of a control flow graph.
@@ -28,17 +97,18 @@ case class ControlFlowGraph(transitions: Array[List[Int]],
  *
  * @param preOrder preOrder list
  * @param postOrder postOrder list
- * @param spanningTree spanning edges (= tree edges)
- * @param backEdges back edges
+ * @param backEdges backEdges(e) means that e-th edge of a graph is a back edge
  * @param loopEnters loopEnters(i) means that the ith node is an enter into the loop
  *
  */
 case class DFSTree(preOrder: Array[Int],
                    postOrder: Array[Int],
-                   spanningTree: Set[(Int, Int)],
-                   backEdges: Set[(Int, Int)],
+                   backEdges: Array[Boolean],
                    loopEnters: Array[Boolean]) {
 
+  // there are back edges
+  val cyclic: Boolean = loopEnters.contains(true)
+
   def isDescendant(child: Int, parent: Int): Boolean =
     preOrder(parent) <= preOrder(child) && postOrder(child) <= postOrder(parent)
 }
@@ -61,11 +131,13 @@ case class LiteContext(method: Method,
  * @param methodNode method's bytecode
  * @param controlFlow a control flow graph of the method's bytecode
  * @param dfsTree method's depths-first search tree
+ * @param budget limits of staged analyses of the method
  */
 case class Context(method: Method,
                    methodNode: MethodNode,
                    controlFlow: ControlFlowGraph,
-                   dfsTree: DFSTree)
+                   dfsTree: DFSTree,
+                   budget: Budget = Budget.Default)
 
 /**
  * Marker annotation to denote data-class for some abstract value.
@@ -172,8 +244,78 @@ trait Trackable {
 }
 
 case class Conf(insnIndex: Int, frame: Frame[BasicValue]) {
-  val frameHashCode = AnalysisUtils.frameHashCode(frame)
-  override def hashCode() = frameHashCode
+  // consistent with `AnalysisUtils.equiv` for configurations at the same instruction
+  val valuesHashCode = AnalysisUtils.valuesHashCode(frame)
+  override def hashCode() = valuesHashCode
+}
+
+/**
+ * History of a state: configurations at loop enters on a path to a state, the latest first.
+ * A persistent list (histories of states share tails) with a rolling hash of values of configurations,
+ * each configuration is linked to the previous one at the same instruction,
+ * so folding at a loop enter checks only configurations of this loop enter.
+ * Every history carries the latest configurations by instruction (a persistent map sharing structure with the tail),
+ * so the first configuration at an instruction is found without walking the history.
+ *
+ * @param conf the latest configuration (null for the empty history)
+ * @param tail the rest of the history
+ * @param sameInsn the latest configuration at the same instruction in the rest of the history (null if none)
+ */
+final class History private(val conf: Conf, val tail: History, val sameInsn: History) {
+  val size: Int = if (tail == null) 0 else tail.size + 1
+  // consistent with `History.equiv`
+  val hash: Int = if (tail == null) 0 else tail.hash * 31 + conf.valuesHashCode
+  // the latest configuration by instruction
+  private val heads: IntMap[History] = if (tail == null) IntMap.empty else tail.heads.updated(conf.insnIndex, this)
+
+  def isEmpty: Boolean = tail == null
+
+  /**
+   * The history with a configuration added.
+   */
+  def push(conf: Conf): History =
+    new History(conf, this, latest(conf.insnIndex))
+
+  /**
+   * The latest configuration at an instruction (null if none).
+   */
+  def latest(insnIndex: Int): History =
+    heads.getOrElse(insnIndex, null)
+
+  /**
+   * A configuration is an instance of some configuration at the same instruction in this history.
+   */
+  def folds(conf: Conf): Boolean = {
+    var h = latest(conf.insnIndex)
+    while (h != null) {
+      if (AnalysisUtils.isInstance(conf, h.conf))
+        return true
+      h = h.sameInsn
+    }
+    false
+  }
+}
+
+object History {
+  val Empty = new History(null, null, null)
+
+  /**
+   * Histories are of the same size and their configurations are pairwise equivalent.
+   * Shared tails are equivalent without comparison.
+   */
+  def equiv(curr: History, prev: History): Boolean = {
+    if (curr.size != prev.size || curr.hash != prev.hash)
+      return false
+    var c = curr
+    var p = prev
+    while (c ne p) {
+      if (c.conf.valuesHashCode != p.conf.valuesHashCode || !AnalysisUtils.equiv(c.conf, p.conf))
+        return false
+      c = c.tail
+      p = p.tail
+    }
+    true
+  }
 }
 
 /**
@@ -184,10 +326,94 @@ case class Conf(insnIndex: Int, frame: Frame[BasicValue]) {
  *
  * @param index unique index of state. Used as identity.
  * @param conf configuration of this program point.
- * @param history history - ancestors of a current configuration
+ * @param history history - ancestors of a current configuration at loop enters
  * @param constraint constraint encoded as int bit-mask.
  */
-case class State(index: Int, conf: Conf, history: List[Conf], constraint: Int)
+case class State(index: Int, conf: Conf, history: History, constraint: Int)
+
+/**
+ * Memo table of already analyzed states of a staged analysis.
+ *
+ * Open addressing (linear probing) by a hash of an instruction index, a constraint,
+ * values of a frame (including origins, indices of parameters and keys of calls) and a history,
+ * states are compared by `AnalysisUtils.stateEquiv` only when hashes are equal.
+ *
+ * @param expectedSize expected number of states, the initial capacity of a table
+ */
+final class StateTable(expectedSize: Int) {
+  private var hashes, order: Array[Int] = _
+  private var states: Array[State] = _
+  private var size = 0
+  allocate(Integer.highestOneBit((expectedSize max 8) * 2 - 1) * 2)
+
+  /**
+   * @return the last added state equivalent to a given one
+   */
+  def find(state: State): Option[State] = {
+    val hash = StateTable.hash(state)
+    val mask = states.length - 1
+    var i = hash & mask
+    var found = -1
+    while (states(i) != null) {
+      if (hashes(i) == hash && states(i).conf.insnIndex == state.conf.insnIndex &&
+        (found < 0 || order(i) > order(found)) && AnalysisUtils.stateEquiv(state, states(i)))
+        found = i
+      i = (i + 1) & mask
+    }
+    if (found < 0) None else Some(states(found))
+  }
+
+  def add(state: State): Unit = {
+    if (2 * (size + 1) > states.length)
+      grow()
+    put(StateTable.hash(state), state, size)
+    size += 1
+  }
+
+  private def put(hash: Int, state: State, n: Int): Unit = {
+    val mask = states.length - 1
+    var i = hash & mask
+    while (states(i) != null)
+      i = (i + 1) & mask
+    hashes(i) = hash
+    states(i) = state
+    order(i) = n
+  }
+
+  private def allocate(capacity: Int): Unit = {
+    hashes = new Array[Int](capacity)
+    states = new Array[State](capacity)
+    // insertion order of states
+    order = new Array[Int](capacity)
+  }
+
+  private def grow(): Unit = {
+    val oldHashes = hashes
+    val oldStates = states
+    val oldOrder = order
+    allocate(oldStates.length * 2)
+    var i = 0
+    while (i < oldStates.length) {
+      if (oldStates(i) != null)
+        put(oldHashes(i), oldStates(i), oldOrder(i))
+      i += 1
+    }
+  }
+}
+
+object StateTable {
+  def hash(state: State): Int = {
+    var h = state.conf.insnIndex
+    h = h * 31 + state.constraint
+    h = h * 31 + state.conf.valuesHashCode
+    h = h * 31 + state.history.hash
+    // spreading of bits, as low bits select a slot
+    h ^= h >>> 16
+    h *= 0x85ebca6b
+    h ^= h >>> 13
+    h
+  }
+}
 
 /**
  * Skeleton for implementing staged analysis via exploration of graph of configurations.
@@ -216,10 +442,8 @@ abstract class StagedScAnalysis {
 
   /**
    * Bookkeeping of already analyzed states.
-   * `computed(i)` is a set of already analyzed states having `state.conf.insnIndex = i`
-   * (the key is insnIndex)
    */
-  val computed = Array.tabulate[List[State]](methodNode.instructions.size()){i => Nil}
+  val computed = new StateTable(methodNode.instructions.size())
 
   /**
    * Part of analysis state.
@@ -242,20 +466,68 @@ abstract class StagedScAnalysis {
    *
    * @return new unique id.
    */
-  @throws[LimitReachedException]("when graph of configurations is too big")
+  @throws[LimitReachedException]("when graph of configurations is too big or the deadline of a budget is passed")
   final def genId(): Int = {
     id += 1
-    if (id > stepsLimit) throw new LimitReachedException
+    if (id > context.budget.steps) throw new LimitReachedException
+    if ((id & 0x3ff) == 0 && System.nanoTime() > context.budget.deadline) throw new LimitReachedException
     id
   }
 
+  /**
+   * Number of states of the graph of configurations generated so far.
+   */
+  final def steps: Int = id
+
+  /**
+   * States following an instruction along all edges of the control flow graph (in order of edges).
+   * An edge into an exception handler gets a frame with a throwable on the stack,
+   * the frame is shared by all handlers (frames are not changed after execution).
+   *
+   * @param insnIndex index of an executed instruction
+   * @param frame frame before execution
+   * @param nextFrame frame after execution
+   * @param nextHistory history of next states
+   * @param constraint constraint of next states
+   */
+  final def successors(insnIndex: Int, frame: Frame[BasicValue], nextFrame: Frame[BasicValue],
+                       nextHistory: History, constraint: Int): List[State] = {
+    val start = controlFlow.starts(insnIndex)
+    val end = controlFlow.starts(insnIndex + 1)
+    // ids are generated in order of edges first (they are consecutive),
+    // then the list is built from the last edge backwards, so a large switch does not take stack
+    var firstId = 0
+    var edge = start
+    while (edge < end) {
+      val id = genId()
+      if (edge == start) firstId = id
+      edge += 1
+    }
+    var handlerFrame: Frame[BasicValue] = null
+    var states: List[State] = Nil
+    edge = end - 1
+    while (edge >= start) {
+      val nextFrame1 =
+        if (controlFlow.exceptional(edge)) {
+          if (handlerFrame == null)
+            handlerFrame = AnalysisUtils.handlerFrame(frame)
+          handlerFrame
+        } else {
+          nextFrame
+        }
+      states = State(firstId + (edge - start), Conf(controlFlow.targets(edge), nextFrame1), nextHistory, constraint) :: states
+      edge -= 1
+    }
+    states
+  }
+
   /**
    * Utility method for creating start state for analysis.
    *
    * @return start state for analysis
    */
   final def createStartState(): State =
-    State(0, Conf(0, createStartFrame()), Nil, 0)
+    State(0, Conf(0, createStartFrame()), History.Empty, 0)
 
   /**
    * Creates start frame for analysis.
@@ -311,3 +583,21 @@ abstract class StagedScAnalysis {
   def createStartValueForParameter(i: Int, tp: Type): BasicValue =
     new BasicValue(tp)
 }
+
+/**
+ * Reusable (between analysis runs) array, one per thread, so that analyses may run in several indexing workers.
+ * Analyses use it as a stack/storage of a size bounded by their budget of steps,
+ * the array grows when an analysis with a larger budget runs.
+ */
+class SharedArray[T: scala.reflect.ClassTag] {
+  private val local = new ThreadLocal[Array[T]]
+
+  def apply(size: Int): Array[T] = {
+    var array = local.get()
+    if (array == null || array.length < size) {
+      array = new Array[T](size)
+      local.set(array)
+    }
+    array
+  }
+}
@@ -40,21 +40,17 @@ case class LeakingParameters(frames: Array[Frame[ParamsValue]],
                              splittingParameters: Array[Boolean])
 
 object LeakingParameters {
+  /**
+   * A single fixpoint pass: leaking parameters are collected while the fixpoint of frames is computed.
+   * Values only grow during iterations and every reachable instruction is executed with its final frame,
+   * so collected parameters are the same as if instructions were re-executed over the fixpoint.
+   * The fixpoint of frames is shared by further auxiliary analyses (result origins, parameter to result flow).
+   */
   def build(className: String, methodNode: MethodNode, jsr: Boolean): LeakingParameters = {
-    val frames =
-      if (jsr) new Analyzer(new ParametersUsageInterpreter(methodNode)).analyze(className, methodNode)
-      else new LiteAnalyzer(new ParametersUsageInterpreter(methodNode)).analyze(className, methodNode)
-    val insns = methodNode.instructions
     val collector = new LeakingParametersCollector(methodNode)
-    for (i <- 0 until frames.length) {
-      val insnNode = insns.get(i)
-      val frame = frames(i)
-      if (frame != null) insnNode.getType match {
-        case AbstractInsnNode.LABEL | AbstractInsnNode.LINE | AbstractInsnNode.FRAME =>
-        case _ =>
-          new Frame(frame).execute(insnNode, collector)
-      }
-    }
+    val frames =
+      if (jsr) new Analyzer(collector).analyze(className, methodNode)
+      else new LiteAnalyzer(collector).analyze(className, methodNode)
     LeakingParameters(frames, collector.parameters, collector.nullableParameters, collector.splittingParameters)
   }
 }
@@ -161,8 +157,8 @@ class ParametersUsageInterpreter(m: MethodNode) extends Interpreter[ParamsValue]
 }
 
 /**
- * This collector (re-)executes instructions over fixpoint of ParamsValue
- * and populates `parameters`, `nullableParameters` and `splittingParameters`
+ * This interpreter computes fixpoint of ParamsValue
+ * and populates `parameters`, `nullableParameters` and `splittingParameters` along the way
  * @param m bytecode of the method
  */
 class LeakingParametersCollector(m: MethodNode) extends ParametersUsageInterpreter(m) {
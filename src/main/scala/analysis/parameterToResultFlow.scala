@@ -5,8 +5,7 @@ import faba.analysis.resultOrigins._
 
 import org.objectweb.asm.Opcodes._
 import org.objectweb.asm.Type
-import org.objectweb.asm.tree.analysis.{Frame, Interpreter}
-import org.objectweb.asm.tree.{AbstractInsnNode, MethodNode}
+import org.objectweb.asm.tree.{MethodInsnNode, MethodNode}
 
 object ParameterToResultFlow {
   /**
@@ -23,8 +22,7 @@ object ParameterToResultFlow {
    * @return param influence
    */
   def analyze(methodNode: MethodNode, leaking: LeakingParameters, origins: Origins): Array[Boolean] = {
-    val leakingParameters = origins.parameters
-    val interpreter = new ParameterToResultInterpreter(java.util.Arrays.copyOf(leakingParameters, leakingParameters.length))
+    val flow = java.util.Arrays.copyOf(origins.parameters, origins.parameters.length)
     var i: Int = 0
     val insns = methodNode.instructions
     val frames = leaking.frames
@@ -37,44 +35,21 @@ object ParameterToResultFlow {
         if (frame != null)
           insnNode.getOpcode match {
             case INVOKESTATIC | INVOKESPECIAL | INVOKEVIRTUAL | INVOKEINTERFACE =>
-              // here parameter flowing into methods which may flow into a result are collected
-              new Frame(frame).execute(insnNode, interpreter)
+              // here parameter flowing into methods which may flow into a result are collected:
+              // arguments of a call are on the top of the stack of the fixpoint frame (no re-execution)
+              val stackSize = frame.getStackSize
+              var n = stackSize - Type.getArgumentTypes(insnNode.asInstanceOf[MethodInsnNode].desc).length
+              while (n < stackSize) {
+                for (p <- frame.getStack(n).params)
+                  flow(p) = true
+                n += 1
+              }
             case _ =>
           }
       }
       i += 1
     }
-    interpreter.flow
+    flow
   }
 }
 
-private class ParameterToResultInterpreter(val flow: Array[Boolean]) extends Interpreter[ParamsValue](ASM5) {
-  val val1 = ParamsValue(Set(), 1)
-  // we are interested only in passing parameters to methods flowing into result
-  // this method is called from `ParameterToResultFlow#analyze` only for instructions at which
-  // the result of method execution is born
-  override def naryOperation(insn: AbstractInsnNode, values: java.util.List[_ <: ParamsValue]): ParamsValue = {
-    val opcode = insn.getOpcode
-    opcode match {
-      case INVOKESTATIC | INVOKESPECIAL | INVOKEVIRTUAL | INVOKEINTERFACE =>
-        var n = if (opcode == INVOKESTATIC) 0 else 1
-        while (n < values.size()) {
-          for (i <- values.get(n).params)
-            flow(i) = true
-          n += 1
-        }
-      case _ =>
-    }
-    val1
-  }
-
-  // we don't need real implementation of following methods since they will not be called at all
-  override def newValue(`type`: Type) = ???
-  override def newOperation(insn: AbstractInsnNode) = ???
-  override def binaryOperation(insn: AbstractInsnNode, value1: ParamsValue, value2: ParamsValue) = ???
-  override def unaryOperation(insn: AbstractInsnNode, value: ParamsValue) = ???
-  override def ternaryOperation(insn: AbstractInsnNode, value1: ParamsValue, value2: ParamsValue, value3: ParamsValue) = ???
-  override def returnOperation(insn: AbstractInsnNode, value: ParamsValue, expected: ParamsValue) = ???
-  override def copyOperation(insn: AbstractInsnNode, value: ParamsValue) = ???
-  override def merge(v: ParamsValue, w: ParamsValue) = ???
-}
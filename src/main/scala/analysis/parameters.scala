@@ -51,14 +51,21 @@ case object Return extends ExecutionResult {
 
 /**
  * This approximation is NPE if formula results in @NotNull.
+ * The sum of products is tracked while it is small, the factored formula is always tracked.
  *
- * @param sop SumOfProduct formula of dependencies.
+ * @param sop SumOfProduct formula of dependencies, None if it is too large.
+ * @param formula factored formula of dependencies.
  */
-case class ConditionalNPE(sop: ExecutionResult.SoP) extends ExecutionResult with StepsResult {
-  if (sop.map(_.size).sum > 30) throw new LimitReachedException
-
-  override def toResult: Result[Key, Value] =
-    Pending(sop.map(p => Product(Values.Top, p)))
+case class ConditionalNPE(sop: Option[ExecutionResult.SoP], formula: ExecutionResult.Formula) extends ExecutionResult with StepsResult {
+  override def toResult: Result[Key, Value] = sop match {
+    case Some(sum) =>
+      Pending(sum.map(p => Product(Values.Top, p)))
+    case None =>
+      ExecutionResult.formulas.toSumOfProducts(formula) match {
+        case Some(sum) => Pending(sum)
+        case None => Factored(formula)
+      }
+  }
 }
 
 /**
@@ -76,7 +83,11 @@ case object NPE extends ExecutionResult with StepsResult {
 case object Identity extends StepsResult
 
 object ConditionalNPE {
-  def apply(passing: Key): ConditionalNPE = ConditionalNPE(Set(Set(passing)))
+  def apply(passing: Key): ConditionalNPE =
+    ConditionalNPE(Set(passing))
+
+  def apply(product: Set[Key]): ConditionalNPE =
+    ConditionalNPE(Some(Set(product)), ExecutionResult.formulas.meetAll(product.map(ExecutionResult.formulas.atom)))
 }
 
 object ExecutionResult {
@@ -93,8 +104,28 @@ object ExecutionResult {
         prod1 <- sop1
         prod2 <- sop2
       } yield prod1 ++ prod2
+
+    // None if the result is too large
+    def join(sop1: Option[SoP], sop2: Option[SoP]): Option[SoP] =
+      for (s1 <- sop1; s2 <- sop2; sop = join(s1, s2) if fits(sop)) yield sop
+
+    def meet(sop1: Option[SoP], sop2: Option[SoP]): Option[SoP] =
+      for (s1 <- sop1; s2 <- sop2; sop = meet(s1, s2) if fits(sop)) yield sop
+
+    private def fits(sop: SoP): Boolean =
+      sop.iterator.map(_.size).sum <= Pending.limit
   }
 
+  // factored version of sum of products, its size does not explode on sequences of branches
+  type Formula = faba.engine.Formula[Key, Value]
+
+  val formulas = Formulas[Key, Value](Lattice(Values.NotNull, Values.Top), distributive = true)
+
+  // a factored formula is limited by a budget when the sum of products is not tracked
+  private def limited(result: ConditionalNPE, formulaLimit: Int): ConditionalNPE =
+    if (result.sop.isEmpty && result.formula.size > formulaLimit) throw new LimitReachedException
+    else result
+
   /**
    * Joins approximations of two paths of executions (for `@NotNull` parameter inference)
    *
@@ -106,9 +137,10 @@ object ExecutionResult {
    *
    * @param r1 approximation on the left path of execution
    * @param r2 approximation on the right path of execution
+   * @param formulaLimit maximal size of a factored formula (see [[faba.budget.Budget#formulaSize]])
    * @return sound joined approximation
    */
-  def join(r1: ExecutionResult, r2: ExecutionResult): ExecutionResult = (r1, r2) match {
+  def join(r1: ExecutionResult, r2: ExecutionResult, formulaLimit: Int): ExecutionResult = (r1, r2) match {
     case (Error|Cycle, _) => r2
     case (_, Error|Cycle) => r1
     case (Return, _) => Return
@@ -116,7 +148,7 @@ object ExecutionResult {
     case (NPE, NPE) => NPE
     case (NPE, r2: ConditionalNPE) => r2
     case (r1: ConditionalNPE, NPE) => r1
-    case (ConditionalNPE(e1), ConditionalNPE(e2)) => ConditionalNPE(SoP.join(e1, e2))
+    case (ConditionalNPE(s1, f1), ConditionalNPE(s2, f2)) => limited(ConditionalNPE(SoP.join(s1, s2), formulas.join(f1, f2)), formulaLimit)
   }
 
   /**
@@ -129,9 +161,10 @@ object ExecutionResult {
    *
    * @param delta approximation for a number steps "before"
    * @param res approximation for a complete sub-graph or also for "delta"
+   * @param formulaLimit maximal size of a factored formula
    * @return
    */
-  def meet(delta: StepsResult, res: ExecutionResult): ExecutionResult = (delta, res) match {
+  def meet(delta: StepsResult, res: ExecutionResult, formulaLimit: Int): ExecutionResult = (delta, res) match {
     case (NPE, _) => NPE
     case (_, NPE) => NPE
     case (_, Error) => Error
@@ -141,8 +174,8 @@ object ExecutionResult {
     // the only `@NotNull` that will not be inferred in this case is
     // data.InferenceData.compromise - this is pathological example
     // Also, this works for the formula "there should be at leas one finite path".
-    case (ConditionalNPE(_), Cycle) => Cycle
-    case (ConditionalNPE(e1), ConditionalNPE(e2)) => ConditionalNPE(SoP.meet(e1, e2))
+    case (ConditionalNPE(_, _), Cycle) => Cycle
+    case (ConditionalNPE(s1, f1), ConditionalNPE(s2, f2)) => limited(ConditionalNPE(SoP.meet(s1, s2), formulas.meet(f1, f2)), formulaLimit)
   }
 
 
@@ -161,9 +194,10 @@ object ExecutionResult {
    *
    * @param delta approximation for the first subpath
    * @param effect approximation for the second subpath
+   * @param formulaLimit maximal size of a factored formula
    * @return
    */
-  def subMeet(delta: StepsResult, effect: InstructionEffect): StepsResult = (delta, effect) match {
+  def subMeet(delta: StepsResult, effect: InstructionEffect, formulaLimit: Int): StepsResult = (delta, effect) match {
     case (_, NoEffect) =>
       delta
     case (_, NpeEffect) =>
@@ -171,9 +205,10 @@ object ExecutionResult {
     case (NPE, _) =>
       NPE
     case (Identity, LeakingEffect(product)) =>
-      ConditionalNPE(Set(product))
-    case (ConditionalNPE(sop), LeakingEffect(product)) =>
-      ConditionalNPE(SoP.meet(sop, Set(product)))
+      ConditionalNPE(product)
+    case (ConditionalNPE(sop, formula), LeakingEffect(product)) =>
+      val npe = ConditionalNPE(product)
+      limited(ConditionalNPE(SoP.meet(sop, npe.sop), formulas.meet(formula, npe.formula)), formulaLimit)
   }
 }
 
@@ -225,26 +260,28 @@ object NotNullParameterAnalysis {
 
   /**
    * Reusable pending list (pending stack) for push/pop actions during analyses.
+   * One stack per thread, so that several indexing workers may run analyses at the same time.
    * @see faba.parameters.NotNullInAnalysis#pending
    */
-  val sharedPendingStack = new Array[PendingAction](stepsLimit)
+  val sharedPendingStack = new SharedArray[PendingAction]
 
   /**
-   * Reusable storage of sub results during analyses.
+   * Reusable storage of sub results during analyses (one per thread).
    * @see faba.parameters.NotNullInAnalysis#results
    */
-  val sharedResults = new Array[ExecutionResult](stepsLimit)
+  val sharedResults = new SharedArray[ExecutionResult]
 }
 
 class NotNullParameterAnalysis(val context: Context, val direction: Direction) extends StagedScAnalysis {
   import NotNullParameterAnalysis._
   import context._
 
-  val results = NotNullParameterAnalysis.sharedResults
-  val pending = NotNullParameterAnalysis.sharedPendingStack
+  val results = NotNullParameterAnalysis.sharedResults(context.budget.steps + 1)
+  val pending = NotNullParameterAnalysis.sharedPendingStack(context.budget.steps + 1)
+  private val interpreter = new NonNullInterpreter
 
   def combineResults(delta: StepsResult, subResults: List[ExecutionResult]): ExecutionResult =
-    ExecutionResult.meet(delta, subResults.reduce(ExecutionResult.join))
+    ExecutionResult.meet(delta, subResults.reduce(ExecutionResult.join(_, _, budget.formulaSize)), budget.formulaSize)
 
   var npe = false
 
@@ -267,9 +304,8 @@ class NotNullParameterAnalysis(val context: Context, val direction: Direction) e
       case MakeResult(states, delta, subIndices) =>
         val result = combineResults(delta, subIndices.map(results))
         for (state <- states) {
-          val insnIndex = state.conf.insnIndex
           results(state.index) = result
-          computed(insnIndex) = state :: computed(insnIndex)
+          computed.add(state)
         }
       case ProceedState(state) =>
         processState(state)
@@ -289,7 +325,7 @@ class NotNullParameterAnalysis(val context: Context, val direction: Direction) e
     var subResult: StepsResult = Identity
 
     while (true) {
-      computed(state.conf.insnIndex).find(prevState => AnalysisUtils.stateEquiv(state, prevState)) match {
+      computed.find(state) match {
         case Some(ps) =>
           results(state.index) = results(ps.index)
           if (states.nonEmpty)
@@ -304,11 +340,11 @@ class NotNullParameterAnalysis(val context: Context, val direction: Direction) e
       val insnIndex = conf.insnIndex
       val history = state.history
 
-      val fold = dfsTree.loopEnters(insnIndex) && history.exists(prevConf => AnalysisUtils.isInstance(conf, prevConf))
+      val fold = dfsTree.loopEnters(insnIndex) && history.folds(conf)
 
       if (fold) {
         results(stateIndex) = Cycle
-        computed(insnIndex) = state :: computed(insnIndex)
+        computed.add(state)
         if (states.nonEmpty)
           pendingPush(MakeResult(states, subResult, List(stateIndex)))
         return
@@ -316,11 +352,12 @@ class NotNullParameterAnalysis(val context: Context, val direction: Direction) e
 
       val frame = conf.frame
       val insnNode = methodNode.instructions.get(insnIndex)
-      val nextHistory = if (dfsTree.loopEnters(insnIndex)) conf :: history else history
-      val (nextFrame, localEffect) = execute(frame, insnNode)
+      val nextHistory = if (dfsTree.loopEnters(insnIndex)) history.push(conf) else history
+      val nextFrame = execute(frame, insnNode)
+      val localEffect = interpreter.getSubResult
 
       // local "summing"
-      val subResult2 = ExecutionResult.subMeet(subResult, localEffect)
+      val subResult2 = ExecutionResult.subMeet(subResult, localEffect, budget.formulaSize)
       // if there was a switch in "current subresult" we need explicitly mark this
       val noSwitch = subResult == subResult2
       subResult = subResult2
@@ -329,7 +366,7 @@ class NotNullParameterAnalysis(val context: Context, val direction: Direction) e
         // npe was detected, storing this fact for further analyses
         npe = true
         results(stateIndex) = NPE
-        computed(insnIndex) = state :: computed(insnIndex)
+        computed.add(state)
         pendingPush(MakeResult(states, subResult, List(stateIndex)))
         return
       }
@@ -348,7 +385,7 @@ class NotNullParameterAnalysis(val context: Context, val direction: Direction) e
             return
           } else {
             results(stateIndex) = Return
-            computed(insnIndex) = state :: computed(insnIndex)
+            computed.add(state)
             // important to put subResult
             if (states.nonEmpty)
               pendingPush(MakeResult(states, subResult, List(stateIndex)))
@@ -357,13 +394,13 @@ class NotNullParameterAnalysis(val context: Context, val direction: Direction) e
         case ATHROW if NotNullParameterConstraint.isTaken(constraint) =>
           results(stateIndex) = NPE
           npe = true
-          computed(insnIndex) = state :: computed(insnIndex)
+          computed.add(state)
           if (states.nonEmpty)
             pendingPush(MakeResult(states, subResult, List(stateIndex)))
           return
         case ATHROW =>
           results(stateIndex) = Error
-          computed(insnIndex) = state :: computed(insnIndex)
+          computed.add(state)
           if (states.nonEmpty)
             pendingPush(MakeResult(states, subResult, List(stateIndex)))
           return
@@ -388,19 +425,7 @@ class NotNullParameterAnalysis(val context: Context, val direction: Direction) e
           states = state :: states
           state = nextState
         case _ =>
-          val nextInsnIndices = controlFlow.transitions(insnIndex)
-          val nextStates = nextInsnIndices.map {
-            nextInsnIndex =>
-              val nextFrame1 = if (controlFlow.errors(nextInsnIndex) && controlFlow.errorTransitions(insnIndex -> nextInsnIndex)) {
-                val handler = new Frame(frame)
-                handler.clearStack()
-                handler.push(new BasicValue(Type.getType("java/lang/Throwable")))
-                handler
-              } else {
-                nextFrame
-              }
-              State(genId(), Conf(nextInsnIndex, nextFrame1), nextHistory, constraint1)
-          }
+          val nextStates = successors(insnIndex, frame, nextFrame, nextHistory, constraint1)
           states = state :: states
           if (nextStates.size == 1 && noSwitch) {
             state = nextStates.head
@@ -413,14 +438,16 @@ class NotNullParameterAnalysis(val context: Context, val direction: Direction) e
     }
   }
 
-  private def execute(frame: Frame[BasicValue], insnNode: AbstractInsnNode): (Frame[BasicValue], InstructionEffect) = insnNode.getType match {
-    case AbstractInsnNode.LABEL | AbstractInsnNode.LINE | AbstractInsnNode.FRAME =>
-      (frame, NoEffect)
-    case _ =>
+  // the effect of an instruction is left in `interpreter.getSubResult`
+  private def execute(frame: Frame[BasicValue], insnNode: AbstractInsnNode): Frame[BasicValue] = {
+    interpreter.reset()
+    if (AnalysisUtils.preservesFrame(insnNode))
+      frame
+    else {
       val nextFrame = new Frame(frame)
-      NonNullInterpreter.reset()
-      nextFrame.execute(insnNode, NonNullInterpreter)
-      (nextFrame, NonNullInterpreter.getSubResult)
+      nextFrame.execute(insnNode, interpreter)
+      nextFrame
+    }
   }
 }
 
@@ -430,7 +457,8 @@ object NullableParameterConstraint {
 }
 
 object NullableParameterAnalysis {
-  val sharedPendingStack = new Array[State](stepsLimit)
+  // one stack per thread, see NotNullParameterAnalysis.sharedPendingStack
+  val sharedPendingStack = new SharedArray[State]
 }
 
 /**
@@ -441,7 +469,8 @@ object NullableParameterAnalysis {
 class NullableParameterAnalysis(val context: Context, val direction: Direction) extends StagedScAnalysis {
 
   import context._
-  val pending = NullableParameterAnalysis.sharedPendingStack
+  val pending = NullableParameterAnalysis.sharedPendingStack(context.budget.steps + 1)
+  private val interpreter = new NullableInterpreter
 
   private var leakedParameters: Set[Key] = Set()
 
@@ -478,7 +507,7 @@ class NullableParameterAnalysis(val context: Context, val direction: Direction)
     var state = fState
 
     while (true) {
-      computed(state.conf.insnIndex).find(prevState => AnalysisUtils.stateEquiv(state, prevState)) match {
+      computed.find(state) match {
         case Some(ps) =>
           return
         case None =>
@@ -489,9 +518,9 @@ class NullableParameterAnalysis(val context: Context, val direction: Direction)
       val history = state.history
 
       val isLoopEnter = dfsTree.loopEnters(insnIndex)
-      val fold = isLoopEnter && history.exists(prevConf => AnalysisUtils.isInstance(conf, prevConf))
+      val fold = isLoopEnter && history.folds(conf)
 
-      computed(insnIndex) = state :: computed(insnIndex)
+      computed.add(state)
 
       if (fold)
         // Identity, changes nothing
@@ -500,8 +529,9 @@ class NullableParameterAnalysis(val context: Context, val direction: Direction)
       val taken = state.constraint
       val frame = conf.frame
       val insnNode = methodNode.instructions.get(insnIndex)
-      val nextHistory = if (isLoopEnter) conf :: history else history
-      val (nextFrame, localSubResult) = execute(frame, insnNode)
+      val nextHistory = if (isLoopEnter) history.push(conf) else history
+      val nextFrame = execute(frame, insnNode)
+      val localSubResult = interpreter.getSubResult
 
       localSubResult match {
         case NpeEffect =>
@@ -538,19 +568,7 @@ class NullableParameterAnalysis(val context: Context, val direction: Direction)
           val nextInsnIndex = insnIndex + 1
           state = State(genId(), Conf(nextInsnIndex, nextFrame), nextHistory, 1)
         case _ =>
-          val nextInsnIndices = controlFlow.transitions(insnIndex)
-          val nextStates = nextInsnIndices.map {
-            nextInsnIndex =>
-              val nextFrame1 = if (controlFlow.errors(nextInsnIndex) && controlFlow.errorTransitions(insnIndex -> nextInsnIndex)) {
-                val handler = new Frame(frame)
-                handler.clearStack()
-                handler.push(new BasicValue(Type.getType("java/lang/Throwable")))
-                handler
-              } else {
-                nextFrame
-              }
-              State(genId(), Conf(nextInsnIndex, nextFrame1), nextHistory, taken)
-          }
+          val nextStates = successors(insnIndex, frame, nextFrame, nextHistory, taken)
           if (nextStates.size == 1) {
             state = nextStates.head
           } else {
@@ -562,14 +580,16 @@ class NullableParameterAnalysis(val context: Context, val direction: Direction)
   }
 
   // TODO - move into interpreter
-  private def execute(frame: Frame[BasicValue], insnNode: AbstractInsnNode): (Frame[BasicValue], InstructionEffect) = insnNode.getType match {
-    case AbstractInsnNode.LABEL | AbstractInsnNode.LINE | AbstractInsnNode.FRAME =>
-      (frame, NoEffect)
-    case _ =>
+  // the effect of an instruction is left in `interpreter.getSubResult`
+  private def execute(frame: Frame[BasicValue], insnNode: AbstractInsnNode): Frame[BasicValue] = {
+    interpreter.reset()
+    if (AnalysisUtils.preservesFrame(insnNode))
+      frame
+    else {
       val nextFrame = new Frame(frame)
-      NullableInterpreter.reset()
-      nextFrame.execute(insnNode, NullableInterpreter)
-      (nextFrame, NullableInterpreter.getSubResult)
+      nextFrame.execute(insnNode, interpreter)
+      nextFrame
+    }
   }
 }
 
@@ -678,10 +698,11 @@ abstract class Interpreter extends BasicInterpreter {
   }
 }
 
-object NonNullInterpreter extends Interpreter {
+// interpreters hold the effect of the current instruction, so each analysis has its own instance
+class NonNullInterpreter extends Interpreter {
   override val nullable = false
 }
 
-object NullableInterpreter extends Interpreter {
+class NullableInterpreter extends Interpreter {
   override val nullable = true
 }
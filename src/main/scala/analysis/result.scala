@@ -12,13 +12,58 @@ import org.objectweb.asm.tree.analysis.{BasicInterpreter, BasicValue, Frame}
 import org.objectweb.asm.{Handle, Type}
 
 import scala.annotation.switch
+import scala.collection.mutable
 
 object ResultAnalysis {
   // Shared (between analysis runs) array/stack of pending states.
   // Since:
-  //  1. We know upper bound of its size (LimitReachedException.limit)
+  //  1. We know upper bound of its size (steps of a budget)
   //  2. There is not need to empty this array on each run (it is used as stack)
-  val sharedPendingStack = new Array[State](stepsLimit)
+  // One stack per thread, so that analyses may run in several indexing workers.
+  val sharedPendingStack = new SharedArray[State]
+}
+
+/**
+ * Dereference constraints of result analysis: sets of numbers of result origins (see [[faba.analysis.resultOrigins.Origins]])
+ * which are known to be not null (were dereferenced or checked) on a path, encoded as `State.constraint`.
+ *
+ * With up to 32 origins a set is a bit mask. With more origins a set is a number of a `BitSet` interned
+ * by this table (0 is the empty set), so equal sets are equal numbers and states are compared as usual.
+ *
+ * @param size number of result origins
+ */
+final class DereferenceConstraints(size: Int) {
+  private val wide = size > 32
+  private val sets = mutable.ArrayBuffer[java.util.BitSet]()
+  private val numbers = mutable.HashMap[java.util.BitSet, Int]()
+  if (wide) intern(new java.util.BitSet(size))
+
+  /**
+   * @param constraint a set of origins
+   * @param origin number of an origin, -1 for none
+   * @return `constraint` with `origin` added
+   */
+  def add(constraint: Int, origin: Int): Int =
+    if (origin < 0)
+      constraint
+    else if (!wide)
+      constraint | (1 << origin)
+    else if (sets(constraint).get(origin))
+      constraint
+    else {
+      val set = sets(constraint).clone().asInstanceOf[java.util.BitSet]
+      set.set(origin)
+      intern(set)
+    }
+
+  def contains(constraint: Int, origin: Int): Boolean =
+    origin >= 0 && (if (!wide) (constraint & (1 << origin)) != 0 else sets(constraint).get(origin))
+
+  private def intern(set: java.util.BitSet): Int =
+    numbers.getOrElseUpdate(set, {
+      sets += set
+      sets.size - 1
+    })
 }
 
 class ResultAnalysis(val context: Context,
@@ -31,7 +76,7 @@ class ResultAnalysis(val context: Context,
   val contractsLattice = Lattice(Values.Bot, Values.Top)
   val resultUtils = ResultUtils[Key, Value](contractsLattice)
 
-  val pendingStack = ResultAnalysis.sharedPendingStack
+  val pendingStack = ResultAnalysis.sharedPendingStack(context.budget.steps + 1)
 
   // null->... analysis is performed
   val nullAnalysis = direction match {
@@ -40,6 +85,7 @@ class ResultAnalysis(val context: Context,
   }
 
   private val interpreter = ResultInterpreter(direction, methodNode.instructions, resultOrigins)
+  private val constraints = new DereferenceConstraints(resultOrigins.size)
   private val optIn: Option[Value] = direction match {
     case InOut(_, in) => Some(in)
     case _ => None
@@ -69,10 +115,6 @@ class ResultAnalysis(val context: Context,
   }
 
   def analyze(): Equation[Key, Value] = {
-    // give up if we cannot encode constraints via integers
-    if (resultOrigins.size > 32)
-      return Equation(aKey, Final(Values.Top))
-
     pendingPush(createStartState())
 
     while (pendingStackTop > 0 && !earlyResult)
@@ -92,7 +134,7 @@ class ResultAnalysis(val context: Context,
 
     while (true) {
       // sharing
-      computed(state.conf.insnIndex).find(prevState => AnalysisUtils.stateEquiv(state, prevState)) match {
+      computed.find(state) match {
         case Some(ps) =>
           // was computed before
           return
@@ -104,24 +146,23 @@ class ResultAnalysis(val context: Context,
       val loopEnter = dfsTree.loopEnters(insnIndex)
       val history = state.history
 
-      val fold = loopEnter && history.exists(prevConf => AnalysisUtils.isInstance(conf, prevConf))
+      val fold = loopEnter && history.folds(conf)
 
       if (fold) {
-        computed(insnIndex) = state :: computed(insnIndex)
+        computed.add(state)
         return
       }
 
       val frame = conf.frame
       val insnNode = methodNode.instructions.get(insnIndex)
-      val nextHistory = if (loopEnter) conf :: history else history
+      val nextHistory = if (loopEnter) history.push(conf) else history
       val nextFrame = execute(frame, insnNode)
 
-      val dereferencedHere: Int = interpreter.dereferenced
-      val dereferenced = state.constraint | dereferencedHere
+      val dereferenced = constraints.add(state.constraint, interpreter.dereferencedOrigin)
 
       // executed only during null
       if (nullAnalysis && interpreter.dereferencedParam) {
-        computed(insnIndex) = state :: computed(insnIndex)
+        computed.add(state)
         // enough to break this branch - it will be bottom, will not contribute to the result
         return
       }
@@ -138,9 +179,9 @@ class ResultAnalysis(val context: Context,
             case ParamValue(_) =>
               val InOut(_, in) = direction
               myResult = resultUtils.join(myResult, Final(in))
-            case tr: Trackable if (dereferenced & resultOrigins.instructionsMap(tr.origin)) != 0 =>
+            case tr: Trackable if constraints.contains(dereferenced, resultOrigins.instructionsBits(tr.origin)) =>
               myResult = resultUtils.join(myResult, Final(Values.NotNull))
-            case NThParamValue(n, _) if (dereferenced & resultOrigins.parametersMap(n)) != 0 =>
+            case NThParamValue(n, _) if constraints.contains(dereferenced, resultOrigins.parametersBits(n)) =>
               myResult = resultUtils.join(myResult, Final(Values.NotNull))
             case NullValue(_) =>
               myResult = resultUtils.join(myResult, Final(Values.Null))
@@ -150,11 +191,11 @@ class ResultAnalysis(val context: Context,
               earlyResult = true
               return
           }
-          computed(insnIndex) = state :: computed(insnIndex)
+          computed.add(state)
           checkEarlyResult()
           return
         case ATHROW =>
-          computed(insnIndex) = state :: computed(insnIndex)
+          computed.add(state)
           return
         case IFNONNULL if popValue(frame).isInstanceOf[ParamValue] =>
           val nextInsnIndex = (direction: @unchecked) match {
@@ -182,7 +223,7 @@ class ResultAnalysis(val context: Context,
           val notNullInsn = methodNode.instructions.indexOf(insnNode.asInstanceOf[JumpInsnNode].label)
           val n = popValue(frame).asInstanceOf[NThParamValue].n
           val nullState = State(genId(), Conf(nullInsn, nextFrame), nextHistory, dereferenced)
-          val notNullState = State(genId(), Conf(notNullInsn, nextFrame), nextHistory, dereferenced | resultOrigins.parametersMap(n))
+          val notNullState = State(genId(), Conf(notNullInsn, nextFrame), nextHistory, constraints.add(dereferenced, resultOrigins.parametersBits(n)))
           pendingPush(nullState)
           pendingPush(notNullState)
           return
@@ -191,7 +232,7 @@ class ResultAnalysis(val context: Context,
           val notNullInsn = methodNode.instructions.indexOf(insnNode.asInstanceOf[JumpInsnNode].label)
           val orig = popValue(frame).asInstanceOf[Trackable].origin
           val nullState = State(genId(), Conf(nullInsn, nextFrame), nextHistory, dereferenced)
-          val notNullState = State(genId(), Conf(notNullInsn, nextFrame), nextHistory, dereferenced | resultOrigins.instructionsMap(orig))
+          val notNullState = State(genId(), Conf(notNullInsn, nextFrame), nextHistory, constraints.add(dereferenced, resultOrigins.instructionsBits(orig)))
           pendingPush(nullState)
           pendingPush(notNullState)
           return
@@ -200,7 +241,7 @@ class ResultAnalysis(val context: Context,
           val notNullInsn = insnIndex + 1
           val n = popValue(frame).asInstanceOf[NThParamValue].n
           val nullState = State(genId(), Conf(nullInsn, nextFrame), nextHistory, dereferenced)
-          val notNullState = State(genId(), Conf(notNullInsn, nextFrame), nextHistory, dereferenced | resultOrigins.parametersMap(n))
+          val notNullState = State(genId(), Conf(notNullInsn, nextFrame), nextHistory, constraints.add(dereferenced, resultOrigins.parametersBits(n)))
           pendingPush(nullState)
           pendingPush(notNullState)
           return
@@ -209,7 +250,7 @@ class ResultAnalysis(val context: Context,
           val notNullInsn = insnIndex + 1
           val orig = popValue(frame).asInstanceOf[Trackable].origin
           val nullState = State(genId(), Conf(nullInsn, nextFrame), nextHistory, dereferenced)
-          val notNullState = State(genId(), Conf(notNullInsn, nextFrame), nextHistory, dereferenced | resultOrigins.instructionsMap(orig))
+          val notNullState = State(genId(), Conf(notNullInsn, nextFrame), nextHistory, constraints.add(dereferenced, resultOrigins.instructionsBits(orig)))
           pendingPush(nullState)
           pendingPush(notNullState)
           return
@@ -227,20 +268,8 @@ class ResultAnalysis(val context: Context,
 
         case _ =>
           // we touch this!
-          computed(insnIndex) = state :: computed(insnIndex)
-          val nextInsnIndices = controlFlow.transitions(insnIndex)
-          val nextStates = nextInsnIndices.map {
-            nextInsnIndex =>
-              val nextFrame1 = if (controlFlow.errors(nextInsnIndex) && controlFlow.errorTransitions(insnIndex -> nextInsnIndex)) {
-                val handler = new Frame(frame)
-                handler.clearStack()
-                handler.push(new BasicValue(Type.getType("java/lang/Throwable")))
-                handler
-              } else {
-                nextFrame
-              }
-              State(genId(), Conf(nextInsnIndex, nextFrame1), nextHistory, dereferenced)
-          }
+          computed.add(state)
+          val nextStates = successors(insnIndex, frame, nextFrame, nextHistory, dereferenced)
           states = state :: states
           if (nextStates.size == 1) {
             state = nextStates.head
@@ -252,15 +281,15 @@ class ResultAnalysis(val context: Context,
     }
   }
 
-  private def execute(frame: Frame[BasicValue], insnNode: AbstractInsnNode) = insnNode.getType match {
-    case AbstractInsnNode.LABEL | AbstractInsnNode.LINE | AbstractInsnNode.FRAME =>
-      interpreter.reset()
+  private def execute(frame: Frame[BasicValue], insnNode: AbstractInsnNode): Frame[BasicValue] = {
+    interpreter.reset()
+    if (AnalysisUtils.preservesFrame(insnNode))
       frame
-    case _ =>
-      interpreter.reset()
+    else {
       val nextFrame = new Frame(frame)
       nextFrame.execute(insnNode, interpreter)
       nextFrame
+    }
   }
 
   /**
@@ -286,11 +315,12 @@ case class ResultInterpreter(direction: Direction, insns: InsnList, resultOrigin
   // dereferencedParam = true if passing null to this param
   // will cause NPE on _some_ branch of execution
   var dereferencedParam = false
-  var dereferenced: Int = 0
+  // number of a result origin dereferenced by an instruction, -1 if none
+  var dereferencedOrigin: Int = -1
 
   def reset(): Unit = {
     dereferencedParam = false
-    dereferenced = 0
+    dereferencedOrigin = -1
   }
 
   val nullAnalysis = direction match {
@@ -339,9 +369,9 @@ case class ResultInterpreter(direction: Direction, insns: InsnList, resultOrigin
           case ParamValue(_) =>
             dereferencedParam = true
           case NThParamValue(n, _) =>
-            dereferenced = resultOrigins.parametersMap(n)
+            dereferencedOrigin = resultOrigins.parametersBits(n)
           case tr: Trackable =>
-            dereferenced = resultOrigins.instructionsMap(tr.origin)
+            dereferencedOrigin = resultOrigins.instructionsBits(tr.origin)
           case _ =>
         }
         if (propagate_?)
@@ -353,9 +383,9 @@ case class ResultInterpreter(direction: Direction, insns: InsnList, resultOrigin
           case ParamValue(_) =>
             dereferencedParam = true
           case NThParamValue(n, _) =>
-            dereferenced = resultOrigins.parametersMap(n)
+            dereferencedOrigin = resultOrigins.parametersBits(n)
           case tr: Trackable =>
-            dereferenced = resultOrigins.instructionsMap(tr.origin)
+            dereferencedOrigin = resultOrigins.instructionsBits(tr.origin)
           case _ =>
         }
         super.unaryOperation(insn, value)
@@ -386,9 +416,9 @@ case class ResultInterpreter(direction: Direction, insns: InsnList, resultOrigin
           case ParamValue(_) =>
             dereferencedParam = true
           case NThParamValue(n, _) =>
-            dereferenced = resultOrigins.parametersMap(n)
+            dereferencedOrigin = resultOrigins.parametersBits(n)
           case tr: Trackable =>
-            dereferenced = resultOrigins.instructionsMap(tr.origin)
+            dereferencedOrigin = resultOrigins.instructionsBits(tr.origin)
           case _ =>
         }
         if (propagate_?)
@@ -400,9 +430,9 @@ case class ResultInterpreter(direction: Direction, insns: InsnList, resultOrigin
           case ParamValue(_) =>
             dereferencedParam = true
           case NThParamValue(n, _) =>
-            dereferenced = resultOrigins.parametersMap(n)
+            dereferencedOrigin = resultOrigins.parametersBits(n)
           case tr: Trackable =>
-            dereferenced = resultOrigins.instructionsMap(tr.origin)
+            dereferencedOrigin = resultOrigins.instructionsBits(tr.origin)
           case _ =>
         }
       case _ =>
@@ -417,9 +447,9 @@ case class ResultInterpreter(direction: Direction, insns: InsnList, resultOrigin
           case ParamValue(_) =>
             dereferencedParam = true
           case NThParamValue(n, _) =>
-            dereferenced = resultOrigins.parametersMap(n)
+            dereferencedOrigin = resultOrigins.parametersBits(n)
           case tr: Trackable =>
-            dereferenced = resultOrigins.instructionsMap(tr.origin)
+            dereferencedOrigin = resultOrigins.instructionsBits(tr.origin)
           case _ =>
         }
       case _ =>
@@ -439,9 +469,9 @@ case class ResultInterpreter(direction: Direction, insns: InsnList, resultOrigin
           if (nullAnalysis)
             return super.naryOperation(insn, values)
         case NThParamValue(n, _) =>
-          dereferenced = resultOrigins.parametersMap(n)
+          dereferencedOrigin = resultOrigins.parametersBits(n)
         case tr: Trackable =>
-          dereferenced = resultOrigins.instructionsMap(tr.origin)
+          dereferencedOrigin = resultOrigins.instructionsBits(tr.origin)
         case _ =>
       }
     }
@@ -10,22 +10,25 @@ import scala.collection.mutable
 
 /**
  * The result of origins analysis.
+ * Origins are numbered (instructions first, then parameters), numbers are bits of dereference constraints
+ * of result analysis (see [[faba.analysis.result.DereferenceConstraints]]).
  *
  * @param instructions  instructions(i) means that the result was born at i-th instruction
  * @param parameters    parameters(i) means that the result may come from i-th parameter
  */
 case class Origins(instructions: Array[Boolean], parameters: Array[Boolean]) {
-  val instructionsMap = new Array[Int](instructions.length)
-  val parametersMap = new Array[Int](parameters.length)
+  // number of an origin, -1 if an instruction/parameter is not an origin
+  val instructionsBits = Array.fill[Int](instructions.length)(-1)
+  val parametersBits = Array.fill[Int](parameters.length)(-1)
   // size of results
   val size: Int = {
-    var shift: Int = 0
+    var bit: Int = 0
     var i: Int = 0
     val maxInsnIndex = instructions.length
     while (i < maxInsnIndex) {
       if (instructions(i)) {
-        instructionsMap(i) = 1 << shift
-        shift += 1
+        instructionsBits(i) = bit
+        bit += 1
       }
       i += 1
     }
@@ -33,12 +36,12 @@ case class Origins(instructions: Array[Boolean], parameters: Array[Boolean]) {
     val maxParam = parameters.length
     while (i < maxParam) {
       if (parameters(i)) {
-        parametersMap(i) = 1 << shift
-        shift += 1
+        parametersBits(i) = bit
+        bit += 1
       }
       i += 1
     }
-    shift
+    bit
   }
 }
 
@@ -99,17 +102,17 @@ object OriginsAnalysis {
     val shift = if ((methodNode.access & Opcodes.ACC_STATIC) != 0) 0 else 1
     val arity = Type.getArgumentTypes(methodNode.desc).length
     val insns = methodNode.instructions
-    val backwardTransitions = reverseTransitions(graph.transitions)
+    val predecessors = graph.predecessors()
 
     val queue = mutable.Stack[PreciseValueLocation]()
     val visited = mutable.HashSet[PreciseValueLocation]()
 
     val returnIndices = (0 until frames.length).filter { i => isReturnOpcode(insns.get(i).getOpcode)}
-    for (returnIndex <- returnIndices; from <- backwardTransitions(returnIndex)) {
+    for (returnIndex <- returnIndices; k <- predecessors.starts(returnIndex) until predecessors.starts(returnIndex + 1)) {
       // return value is on top of the stack
-      val sourceLoc = PreciseValueLocation(from, OnStackLocation(frames(returnIndex).getStackSize - 1))
-      visited.add(sourceLoc)
-      queue.push(sourceLoc)
+      val sourceLoc = PreciseValueLocation(predecessors.sources(k), OnStackLocation(frames(returnIndex).getStackSize - 1))
+      if (visited.add(sourceLoc))
+        queue.push(sourceLoc)
     }
 
 
@@ -123,9 +126,8 @@ object OriginsAnalysis {
           // result was born here, logging it
           originInsns(insnIndex) = true
         case Some(loc) =>
-          val previousInsns = backwardTransitions(insnIndex)
-          for (from <- previousInsns) {
-            val insnLoc = PreciseValueLocation(from, loc)
+          for (k <- predecessors.starts(insnIndex) until predecessors.starts(insnIndex + 1)) {
+            val insnLoc = PreciseValueLocation(predecessors.sources(k), loc)
             if (visited.add(insnLoc))
               queue.push(insnLoc)
           }
@@ -143,22 +145,6 @@ object OriginsAnalysis {
     Origins(originInsns, originParams)
   }
 
-  /**
-   * reverses forward transitions of control flow graph
-   *
-   * @param transitions forward transitions of control flow graph
-   * @return            backward transitions
-   */
-  private def reverseTransitions(transitions: Array[List[Int]]): Array[List[Int]] = {
-    val backTransitions: Array[List[Int]] = Array.tabulate[List[Int]](transitions.length) { i => Nil}
-    for (from <- 0 until transitions.length) {
-      for (to <- transitions(from)) {
-        backTransitions(to) = from :: backTransitions(to)
-      }
-    }
-    backTransitions
-  }
-
   /**
    * One step of symbolic backward execution.
    *
@@ -1,5 +1,7 @@
 package faba.analysis
 
+import org.objectweb.asm.{Opcodes, Type}
+import org.objectweb.asm.tree.AbstractInsnNode
 import org.objectweb.asm.tree.analysis.{BasicValue, Frame}
 
 /**
@@ -7,11 +9,35 @@ import org.objectweb.asm.tree.analysis.{BasicValue, Frame}
  */
 object AnalysisUtils {
 
+  // the value on the stack of a frame entering an exception handler
+  private val throwableValue = new BasicValue(Type.getType("java/lang/Throwable"))
+
+  /**
+   * A frame entering an exception handler from a frame.
+   */
+  def handlerFrame(frame: Frame[BasicValue]): Frame[BasicValue] = {
+    val handler = new Frame(frame)
+    handler.clearStack()
+    handler.push(throwableValue)
+    handler
+  }
+
+  /**
+   * Execution of an instruction does not change a frame, so the frame may be shared
+   * (frames are not changed after execution).
+   */
+  def preservesFrame(insnNode: AbstractInsnNode): Boolean = insnNode.getType match {
+    case AbstractInsnNode.LABEL | AbstractInsnNode.LINE | AbstractInsnNode.FRAME =>
+      true
+    case _ =>
+      val opcode = insnNode.getOpcode
+      opcode == Opcodes.GOTO || opcode == Opcodes.NOP
+  }
+
   def stateEquiv(curr: State, prev: State): Boolean =
     curr.constraint == prev.constraint && curr.conf.hashCode() == prev.conf.hashCode() &&
       equiv(curr.conf, prev.conf) &&
-      curr.history.size == prev.history.size &&
-      (curr.history, prev.history).zipped.forall((c1, c2) => c1.hashCode() == c2.hashCode() && equiv(c1, c2))
+      History.equiv(curr.history, prev.history)
 
   def isInstance(curr: Conf, prev: Conf): Boolean = {
     if (curr.insnIndex != prev.insnIndex) {
@@ -84,25 +110,43 @@ object AnalysisUtils {
       }
     else false
 
-  def frameHashCode(frame: Frame[BasicValue]): Int = {
+  /**
+   * Hash code of values of a frame, consistent with `equiv`:
+   * classes of values, origins of trackable values, indices of parameters and keys of call results.
+   */
+  def valuesHashCode(frame: Frame[BasicValue]): Int = {
     var result = 0
     var i = 0
     var size = frame.getLocals
     while (i < size) {
-      result = result * 31 + frame.getLocal(i).getClass.hashCode()
+      result = result * 31 + valueHashCode(frame.getLocal(i))
       i += 1
     }
 
     i = 0
     size = frame.getStackSize
     while (i < size) {
-      result = result * 31 + frame.getStack(i).getClass.hashCode()
+      result = result * 31 + valueHashCode(frame.getStack(i))
       i += 1
     }
 
     result
   }
 
+  private def valueHashCode(value: BasicValue): Int = {
+    val classHash = value.getClass.hashCode()
+    value match {
+      case CallResultValue(_, _, inters) =>
+        classHash * 31 + inters.hashCode()
+      case tr: Trackable =>
+        classHash * 31 + tr.origin
+      case NThParamValue(n, _) =>
+        classHash * 31 + n
+      case _ =>
+        classHash
+    }
+  }
+
   /**
    * get a value from the top of a stack
    *
@@ -0,0 +1,142 @@
+package faba.binary
+
+import java.io._
+
+import faba.data._
+
+import scala.collection.mutable
+
+/**
+ * Compact binary form of [[faba.data.InferenceResult]] (`--format bin`), an alternative to per-package annotations.xml files.
+ *
+ * File layout:
+ *  - header: magic, version
+ *  - string table: class names, method names and descriptors (modified UTF-8, as in class files)
+ *  - method table: indices of class name, name and descriptor in the string table
+ *  - records of @NotNull parameters, @Nullable parameters, @NotNull results, @Nullable results, pure methods:
+ *    the number of records, then index of a method in the method table, resolve direction and (for parameters)
+ *    index of a parameter
+ *  - records of contract clauses: index of a method, resolve direction, index of a parameter,
+ *    value passed into a parameter, value of a result
+ *
+ * Loading a file is a sequential read of a few arrays, there is no parsing or rendering of method signatures.
+ */
+object BinaryAnnotations {
+  val FileName = "annotations.bin"
+
+  private val magic = 0x46414242 // FABB, not the one of cache files
+  private val version = 1
+
+  def write(result: InferenceResult, file: File): Unit = {
+    file.getAbsoluteFile.getParentFile.mkdirs()
+    val out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))
+    try {
+      write(result, out)
+    } finally {
+      out.close()
+    }
+  }
+
+  def write(result: InferenceResult, out: DataOutputStream): Unit = {
+    val strings = mutable.LinkedHashMap[String, Int]()
+    val methods = mutable.LinkedHashMap[Method, Int]()
+    def string(s: String): Int =
+      strings.getOrElseUpdate(s, strings.size)
+    def method(m: Method): Int =
+      methods.getOrElse(m, {
+        string(m.internalClassName)
+        string(m.methodName)
+        string(m.methodDesc)
+        val i = methods.size
+        methods(m) = i
+        i
+      })
+
+    val keySets = List(result.notNullParameters, result.nullableParameters,
+      result.notNullMethods, result.nullableMethods, result.pureMethods)
+    for (keys <- keySets; key <- keys) method(key.method)
+    for (key <- result.contractClauses.keys) method(key.method)
+
+    out.writeInt(magic)
+    out.writeInt(version)
+    out.writeInt(strings.size)
+    for (s <- strings.keys) out.writeUTF(s)
+    out.writeInt(methods.size)
+    for (m <- methods.keys) {
+      out.writeInt(strings(m.internalClassName))
+      out.writeInt(strings(m.methodName))
+      out.writeInt(strings(m.methodDesc))
+    }
+
+    for (keys <- keySets) {
+      out.writeInt(keys.size)
+      for (key <- keys) {
+        out.writeInt(methods(key.method))
+        out.writeByte(key.resolveDirection.id)
+        key.direction match {
+          case In(i) => out.writeByte(i)
+          case Out =>
+          case _ => throw new IllegalArgumentException(s"unexpected direction of $key")
+        }
+      }
+    }
+
+    out.writeInt(result.contractClauses.size)
+    for ((key, value) <- result.contractClauses) {
+      val InOut(i, in) = key.direction
+      out.writeInt(methods(key.method))
+      out.writeByte(key.resolveDirection.id)
+      out.writeByte(i)
+      out.writeByte(in.id)
+      out.writeByte(value.id)
+    }
+  }
+
+  def read(file: File): InferenceResult = {
+    val in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))
+    try {
+      if (in.readInt() != magic || in.readInt() != version)
+        throw new IOException(s"$file is not a binary annotations file")
+      read(in)
+    } finally {
+      in.close()
+    }
+  }
+
+  private def read(in: DataInputStream): InferenceResult = {
+    val strings = Array.fill(in.readInt())(in.readUTF())
+    val methods = Array.fill(in.readInt())(Method(strings(in.readInt()), strings(in.readInt()), strings(in.readInt())))
+
+    // parameter keys have a parameter index, result keys do not
+    def keys(params: Boolean): Set[Key] = {
+      val builder = Set.newBuilder[Key]
+      var n = in.readInt()
+      while (n > 0) {
+        val method = methods(in.readInt())
+        val resolveDirection = ResolveDirection(in.readUnsignedByte())
+        val direction = if (params) In(in.readUnsignedByte()) else Out
+        builder += Key(method, direction, resolveDirection)
+        n -= 1
+      }
+      builder.result()
+    }
+
+    val notNullParameters = keys(params = true)
+    val nullableParameters = keys(params = true)
+    val notNullMethods = keys(params = false)
+    val nullableMethods = keys(params = false)
+    val pureMethods = keys(params = false)
+
+    val contractClauses = Map.newBuilder[Key, Value]
+    var n = in.readInt()
+    while (n > 0) {
+      val method = methods(in.readInt())
+      val resolveDirection = ResolveDirection(in.readUnsignedByte())
+      val direction = InOut(in.readUnsignedByte(), Values(in.readUnsignedByte()))
+      contractClauses += Key(method, direction, resolveDirection) -> Values(in.readUnsignedByte())
+      n -= 1
+    }
+
+    InferenceResult(notNullParameters, nullableParameters, notNullMethods, nullableMethods, pureMethods, contractClauses.result())
+  }
+}
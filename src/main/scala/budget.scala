@@ -0,0 +1,119 @@
+package faba.budget
+
+import java.util.concurrent.atomic.AtomicLong
+
+import faba.data._
+import faba.engine._
+
+/**
+ * Limits of a single analysis of a method.
+ * An analysis running out of its budget throws [[faba.data.LimitReachedException]], its result is approximated by Top.
+ *
+ * @param steps maximal number of states of a graph of configurations
+ * @param formulaSize maximal size of a factored formula of @NotNull parameter analysis
+ *                    (the sum of products is limited by `Pending.limit`, it is not a part of a budget)
+ * @param deadline `System.nanoTime()` after which staged analyses are stopped
+ */
+case class Budget(steps: Int, formulaSize: Int, deadline: Long = Long.MaxValue) {
+  def *(factor: Int): Budget =
+    Budget(steps * factor, formulaSize * factor, deadline)
+
+  def min(that: Budget): Budget =
+    Budget(steps min that.steps, formulaSize min that.formulaSize, deadline min that.deadline)
+
+  /**
+   * Limits of this budget are not less than limits of another one.
+   */
+  def covers(that: Budget): Boolean =
+    steps >= that.steps && formulaSize >= that.formulaSize
+}
+
+object Budget {
+  /**
+   * Budget of all analyses when budgets are not adaptive.
+   */
+  val Default = Budget(stepsLimit, 10 * Pending.limit)
+}
+
+/**
+ * Policy of budgets of analyses of complex methods, used by [[faba.FabaProcessor]].
+ *
+ * All methods are analyzed with the `initial` budget first. Methods which ran out of it are deferred
+ * and analyzed again by [[faba.FabaProcessor#escalate]] with budgets multiplied by `factor` up to `max`.
+ * Attempts up to the `floor` budget are always made, so results are never less precise than results
+ * of a single attempt with the `floor` budget. Attempts beyond the `floor` are made while the time spent on them
+ * is within `allowanceMillis` (such an attempt is stopped when the allowance is spent).
+ * Shared by all processors of a run (and by indexing workers), so it is thread-safe.
+ *
+ * @param initial budget of the first attempt
+ * @param factor escalation factor of budgets
+ * @param max maximal budget
+ * @param allowanceMillis total time of attempts beyond the floor (summed over threads escalating in parallel)
+ * @param floor budget reached by escalation regardless of the allowance
+ */
+class Budgets(val initial: Budget, val factor: Int, val max: Budget, val allowanceMillis: Long,
+              floor: Budget = Budget.Default) {
+  // escalation never goes beyond the maximal budget
+  private val floorBudget = floor min max
+  private val spentNanos = new AtomicLong()
+  private val allowanceNanos =
+    if (allowanceMillis > Long.MaxValue / 1000000) Long.MaxValue else allowanceMillis * 1000000
+
+  /**
+   * Methods running out of the initial budget are analyzed again.
+   */
+  def adaptive: Boolean =
+    !atMax(initial)
+
+  def atMax(budget: Budget): Boolean =
+    budget.covers(max)
+
+  /**
+   * An attempt with a budget is limited by the allowance.
+   */
+  def beyondFloor(budget: Budget): Boolean =
+    !floorBudget.covers(budget)
+
+  /**
+   * Budget of the next attempt, None if there is no next attempt.
+   * Up to the floor the next budget is not limited by time, beyond it it gets the deadline of the rest of the allowance.
+   */
+  def next(budget: Budget): Option[Budget] =
+    if (atMax(budget))
+      None
+    else if (!budget.covers(floorBudget))
+      Some(((budget * factor) min floorBudget).copy(deadline = Long.MaxValue))
+    else if (exhausted)
+      None
+    else {
+      val now = System.nanoTime()
+      val rest = allowanceNanos - spentNanos.get()
+      Some(((budget * factor) min max).copy(deadline = if (rest > Long.MaxValue - now) Long.MaxValue else now + rest))
+    }
+
+  def exhausted: Boolean =
+    spentNanos.get() >= allowanceNanos
+
+  def charge(nanos: Long): Unit =
+    spentNanos.addAndGet(nanos)
+
+  override def toString: String =
+    s"Budgets($initial, $factor, $max, $allowanceMillis, $floorBudget)"
+}
+
+object Budgets {
+  /**
+   * A single attempt with [[faba.budget.Budget#Default]].
+   */
+  val Off = new Budgets(Budget.Default, 1, Budget.Default, 0)
+
+  /**
+   * Starts with 1/8 of the default budget, escalates to the default one and then (within the allowance)
+   * to 8 times the default one.
+   *
+   * @param allowanceMillis total time of attempts beyond the default budget
+   */
+  def adaptive(allowanceMillis: Long): Budgets =
+    new Budgets(Budget(stepsLimit / 8, Budget.Default.formulaSize / 8), 8,
+      Budget(stepsLimit * 8, Budget.Default.formulaSize * 8), allowanceMillis)
+}
@@ -0,0 +1,358 @@
+package faba.cache
+
+import java.io._
+import java.nio.file.{Files, StandardCopyOption}
+import java.security.MessageDigest
+import java.util.Date
+
+import faba.FabaProcessor
+import faba.budget.Budgets
+import faba.calls._
+import faba.data._
+import faba.engine._
+import faba.index._
+import faba.jfr._
+import faba.source._
+
+import scala.collection.mutable
+
+/**
+ * On-disk cache of indexing results.
+ * Everything indexing reports for an input (jar or class file) is stored as a sequence of `IndexEvent`s
+ * in a file named by the hash of input content. When an input is not changed, its events are replayed
+ * into a processor without running any analysis.
+ *
+ * @note cached events depend on analyses, so [[faba.cache.EventCodec#version]] should be bumped
+ *       when analyses (or format) change. Events indexed with adaptive budgets are cached separately,
+ *       an input with methods deferred for escalation (see [[faba.FabaProcessor#escalate]]) is not cached at all,
+ *       since results of escalation depend on wall-clock deadlines.
+ *
+ * @param dir directory to store cached events
+ */
+class IndexCache(dir: File) {
+  dir.mkdirs()
+
+  /**
+   * Indexes a source, leaf sources of a mixed source are indexed/replayed separately.
+   *
+   * @param source source to index
+   * @param target processor receiving indexing results
+   * @param index indexing of a source not found in cache
+   */
+  def index(source: Source, target: FabaProcessor, index: (Source, FabaProcessor) => Unit): Unit = source match {
+    case MixedSource(sources) =>
+      sources.foreach { s =>
+        println(s"${new Date} processing $s")
+        this.index(s, target, index)
+      }
+    case _ =>
+      contentHash(source, target.budgets) match {
+        case None =>
+          Flight.source(source.toString) { index(source, target) }
+        case Some(hash) =>
+          val file = new File(dir, s"$hash.idx")
+          load(file) match {
+            case Some(events) =>
+              println(s"${new Date} replaying $source from cache")
+              Flight.source(source.toString, replayed = true) { events.foreach(IndexEvent.replay(_, target)) }
+            case None =>
+              Flight.source(source.toString) {
+                val recorder = new IndexRecorder(target.profiler, target.budgets, target.bodies)
+                index(source, recorder)
+                // equations of deferred methods are known only after escalation, which depends on wall time
+                if (recorder.deferred.isEmpty && recorder.escalations == 0)
+                  store(file, recorder.events)
+                recorder.replay(target)
+              }
+          }
+      }
+  }
+
+  // hash of content of a source, of a cache format and of budgets, None if a source is not cacheable
+  private def contentHash(source: Source, budgets: Budgets): Option[String] = source match {
+    case JarFileSource(file) => Some(fileHash(file, budgets))
+    case MappedJarFileSource(file) => Some(fileHash(file, budgets))
+    case FileSource(file) => Some(fileHash(file, budgets))
+    case _ => None
+  }
+
+  private def fileHash(file: File, budgets: Budgets): String = {
+    val digest = MessageDigest.getInstance("SHA-1")
+    digest.update(EventCodec.version.toByte)
+    if (budgets.adaptive)
+      digest.update(budgets.toString.getBytes("UTF-8"))
+    val is = new FileInputStream(file)
+    try {
+      val buffer = new Array[Byte](1 << 16)
+      var n = is.read(buffer)
+      while (n >= 0) {
+        digest.update(buffer, 0, n)
+        n = is.read(buffer)
+      }
+    } finally {
+      is.close()
+    }
+    digest.digest().map("%02x".format(_)).mkString
+  }
+
+  private def load(file: File): Option[Seq[IndexEvent]] =
+    if (!file.exists())
+      None
+    else {
+      val in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))
+      try {
+        Some(EventCodec.read(in))
+      } catch {
+        case e: IOException =>
+          println(s"${new Date} broken cache file $file: $e")
+          None
+      } finally {
+        in.close()
+      }
+    }
+
+  // writes into a temporary file first, so a concurrent or interrupted run never sees a partial file
+  private def store(file: File, events: Seq[IndexEvent]): Unit = {
+    val tmp = File.createTempFile(file.getName, ".tmp", dir)
+    val out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))
+    try {
+      EventCodec.write(events, out)
+    } finally {
+      out.close()
+    }
+    Files.move(tmp.toPath, file.toPath, StandardCopyOption.REPLACE_EXISTING)
+  }
+}
+
+/**
+ * Binary format of a sequence of `IndexEvent`s.
+ * Strings and methods are written once, subsequent occurrences are written as indices.
+ */
+object EventCodec {
+  val version = 3
+  private val magic = 0x46414241 // FABA
+
+  private val ClassTag = 0
+  private val MethodTag = 1
+  private val ExtraTag = 2
+  private val EquationTag = 3
+  private val EndTag = 4
+
+  def write(events: Seq[IndexEvent], out: DataOutputStream): Unit = {
+    out.writeInt(magic)
+    out.writeInt(version)
+    val writer = new Writer(out)
+    events.foreach(writer.event)
+    out.writeByte(EndTag)
+  }
+
+  def read(in: DataInputStream): Seq[IndexEvent] = {
+    if (in.readInt() != magic || in.readInt() != version)
+      throw new IOException("unknown format")
+    val reader = new Reader(in)
+    val events = mutable.ArrayBuffer[IndexEvent]()
+    var tag = in.readByte()
+    while (tag != EndTag) {
+      events += reader.event(tag)
+      tag = in.readByte()
+    }
+    events
+  }
+
+  private class Writer(out: DataOutputStream) {
+    private val strings = mutable.HashMap[String, Int]()
+    private val methods = mutable.HashMap[Method, Int]()
+
+    def event(event: IndexEvent): Unit = event match {
+      case ClassDeclaration(classInfo) =>
+        out.writeByte(ClassTag)
+        this.classInfo(classInfo)
+      case MethodDeclaration(MethodInfo(classInfo, access, name, desc)) =>
+        out.writeByte(MethodTag)
+        this.classInfo(classInfo)
+        out.writeInt(access)
+        string(name)
+        string(desc)
+      case MethodExtraDeclaration(method, MethodExtra(signature, access)) =>
+        out.writeByte(ExtraTag)
+        this.method(method)
+        string(signature.orNull)
+        out.writeInt(access)
+      case EquationEvent(kind, Equation(id, rhs)) =>
+        out.writeByte(EquationTag)
+        out.writeByte(kind.id)
+        key(id)
+        result(rhs)
+    }
+
+    def classInfo(classInfo: ClassInfo): Unit = {
+      out.writeInt(classInfo.access)
+      string(classInfo.name)
+      string(classInfo.superName)
+      out.writeInt(classInfo.interfaces.size)
+      classInfo.interfaces.foreach(string)
+    }
+
+    def result(result: Result[Key, Value]): Unit = result match {
+      case Final(value) =>
+        out.writeByte(0)
+        out.writeByte(value.id)
+      case Pending(sop) =>
+        out.writeByte(1)
+        out.writeInt(sop.size)
+        for (Product(upperBound, elems) <- sop) {
+          out.writeByte(upperBound.id)
+          out.writeInt(elems.size)
+          elems.foreach(key)
+        }
+      case Factored(f) =>
+        out.writeByte(2)
+        formula(f)
+    }
+
+    def formula(formula: Formula[Key, Value]): Unit = formula match {
+      case Atom(id) =>
+        out.writeByte(0)
+        key(id)
+      case Const(value) =>
+        out.writeByte(1)
+        out.writeByte(value.id)
+      case Meet(args) =>
+        out.writeByte(2)
+        out.writeInt(args.size)
+        args.foreach(this.formula)
+      case Join(args) =>
+        out.writeByte(3)
+        out.writeInt(args.size)
+        args.foreach(this.formula)
+    }
+
+    def key(key: Key): Unit = {
+      method(key.method)
+      key.direction match {
+        case In(i) =>
+          out.writeByte(0)
+          out.writeInt(i)
+        case Out =>
+          out.writeByte(1)
+        case InOut(i, v) =>
+          out.writeByte(2)
+          out.writeInt(i)
+          out.writeByte(v.id)
+      }
+      out.writeByte(key.resolveDirection.id)
+    }
+
+    // index of an already written method or -1 followed by the method
+    def method(method: Method): Unit =
+      methods.get(method) match {
+        case Some(i) =>
+          out.writeInt(i)
+        case None =>
+          methods(method) = methods.size
+          out.writeInt(-1)
+          string(method.internalClassName)
+          string(method.methodName)
+          string(method.methodDesc)
+      }
+
+    // -1 for null, index of an already written string or -2 followed by the string
+    def string(s: String): Unit =
+      if (s == null)
+        out.writeInt(-1)
+      else strings.get(s) match {
+        case Some(i) =>
+          out.writeInt(i)
+        case None =>
+          strings(s) = strings.size
+          out.writeInt(-2)
+          val bytes = s.getBytes("UTF-8")
+          out.writeInt(bytes.length)
+          out.write(bytes)
+      }
+  }
+
+  private class Reader(in: DataInputStream) {
+    private val strings = mutable.ArrayBuffer[String]()
+    private val methods = mutable.ArrayBuffer[Method]()
+
+    def event(tag: Int): IndexEvent = tag match {
+      case ClassTag =>
+        ClassDeclaration(classInfo())
+      case MethodTag =>
+        MethodDeclaration(MethodInfo(classInfo(), in.readInt(), string(), string()))
+      case ExtraTag =>
+        val m = method()
+        val signature = Option(string())
+        MethodExtraDeclaration(m, MethodExtra(signature, in.readInt()))
+      case EquationTag =>
+        val kind = EquationKind(in.readByte())
+        EquationEvent(kind, Equation(key(), result()))
+      case _ =>
+        throw new IOException(s"unknown tag $tag")
+    }
+
+    def classInfo(): ClassInfo = {
+      val access = in.readInt()
+      val name = string()
+      val superName = string()
+      val interfaces = List.fill(in.readInt())(string())
+      ClassInfo(access, name, superName, interfaces)
+    }
+
+    def result(): Result[Key, Value] = in.readByte() match {
+      case 0 =>
+        Final(Values(in.readByte()))
+      case 1 =>
+        val sop = List.fill(in.readInt()) {
+          val upperBound = Values(in.readByte())
+          Product(upperBound, List.fill(in.readInt())(key()).toSet)
+        }
+        Pending(sop.toSet)
+      case _ =>
+        Factored(formula())
+    }
+
+    // formulas are written already simplified
+    def formula(): Formula[Key, Value] = in.readByte() match {
+      case 0 => Atom(key())
+      case 1 => Const(Values(in.readByte()))
+      case 2 => Meet(List.fill(in.readInt())(formula()).toSet)
+      case _ => Join(List.fill(in.readInt())(formula()).toSet)
+    }
+
+    def key(): Key = {
+      val m = method()
+      val direction = in.readByte() match {
+        case 0 => In(in.readInt())
+        case 1 => Out
+        case _ => InOut(in.readInt(), Values(in.readByte()))
+      }
+      Key(m, direction, ResolveDirection(in.readByte()))
+    }
+
+    def method(): Method =
+      in.readInt() match {
+        case -1 =>
+          val m = Method(string(), string(), string())
+          methods += m
+          m
+        case i =>
+          methods(i)
+      }
+
+    def string(): String =
+      in.readInt() match {
+        case -1 =>
+          null
+        case -2 =>
+          val bytes = new Array[Byte](in.readInt())
+          in.readFully(bytes)
+          val s = new String(bytes, "UTF-8")
+          strings += s
+          s
+        case i =>
+          strings(i)
+      }
+  }
+}
@@ -1,15 +1,14 @@
 package faba.calls
 
 import java.util.Date
+import java.util.concurrent.{Callable, ConcurrentHashMap, ForkJoinPool, ForkJoinTask}
 
 import faba.data._
+import faba.jfr._
 
 import org.objectweb.asm.Opcodes
 
-import scala.annotation.tailrec
-import scala.collection.immutable.Queue
 import scala.collection.mutable
-import scala.collection.mutable.ListBuffer
 
 /**
  * Class info available at indexing phase (in class file of a current file, without resolve)
@@ -33,18 +32,18 @@ case class ClassInfo(access: Int, name: String, superName: String, interfaces: L
  */
 case class MethodInfo(classInfo: ClassInfo, access: Int, name: String, desc: String)
 
-/**
- * Aggregated class info after resolve.
- *
- * @param classInfo     class info before resolve
- * @param hierarchyLine hierarchy line (from this to Object)
- * @param interfaces    a set of all interfaces this class implements
- */
-case class ResolvedClassInfo(classInfo: ClassInfo, hierarchyLine: List[String], interfaces: Set[String])
-
 /**
  * Support for inference with hierarchy.
  * All methods are quite specific, read documentation carefully.
+ *
+ * A single resolver is shared by all solvers: the hierarchy is built once (into a [[faba.calls.HierarchyIndex]]),
+ * resolved methods and overridable methods are memoized, so they may be requested by several
+ * (concurrently running) pipelines. Calls to resolve are kept by solvers themselves.
+ *
+ * The hierarchy may be built again and again for a changing set of classes (see [[faba.daemon.Daemon]]):
+ * a class declaration after the hierarchy was built starts a new round, which declares all classes again.
+ * Classes added, removed or changed by a round invalidate only memoized results of resolving which may depend on them,
+ * other results are kept.
  */
 class CallResolver(val noResolveViaHierarchy: Boolean = false) {
 
@@ -52,62 +51,44 @@ class CallResolver(val noResolveViaHierarchy: Boolean = false) {
   private val classInfos = mutable.HashMap[String, ClassInfo]()
   // declarations of methods for a class
   private val classMethods = mutable.HashMap[String, mutable.Set[MethodInfo]]()
-  // encountered calls
-  private val calls = mutable.Set[Key]()
-  // resolved class info
-  private val resolved = mutable.HashMap[String, ResolvedClassInfo]()
+  private var hierarchyBuilt = false
 
-  // fqn -> set of inheritors (for classes) / set of implementors (for interfaces)
-  private var childrenMap = Map[String, Set[String]]()
+  // the hierarchy of declared classes, built once per round
+  private var index: HierarchyIndex = null
 
-  /**
-   * calculates all class inheritors of this class/interface
-   * @param className org.objectweb.asm.tree.ClassNode#name
-   * @return all inheritors
-   */
-  private def inheritors(className: String): Set[String] = {
-    @tailrec
-    def _inheritors(queue: Queue[String], queued: Set[String], acc: Set[String]): Set[String] = {
-      if (queue.isEmpty)
-        acc
-      else {
-        var queued1 = queued
-        var (current, queue1) = queue.dequeue
-        for {child <- childrenMap.getOrElse(current, Set()) if !queued(child)} {
-          queued1 = queued1 + child
-          queue1 = queue1.enqueue(child)
-        }
-        _inheritors(queue1, queued1, acc + current)
-      }
+  // classes and the hierarchy of the previous round, until the hierarchy of the current round is built
+  private var previousClasses: Map[String, (ClassInfo, Set[MethodInfo])] = null
+  private var previousIndex: HierarchyIndex = null
 
-    }
-    _inheritors(Queue(className), Set(className), Set())
-  }
+  // memoized results of resolving, the hierarchy is not modified after it is built (till the next round)
+  private val upwardMemo = new ConcurrentHashMap[Method, Option[Method]]()
+  private val downwardMemo = new ConcurrentHashMap[Method, Set[Method]]()
+  private var overridableMethods: ForkJoinTask[Map[Method, Set[Method]]] = null
 
   /**
    * Used for resolving INVOKESTATIC and INVOKESPECIAL
    * @param method method invoked via INVOKESTATIC or INVOKESPECIAL instruction
    * @return concrete method or None if method is not implemented yet in hierarchy
    */
-  def resolveUpward(method: Method): Option[Method] =
-    if (noResolveViaHierarchy)
-      preciseResolve(method).map(_ => method)
-    else
-      resolved.get(method.internalClassName).flatMap(resolveUpward(method, _))
-
-  // O(n), n - number of the methods in the hierarchy
-  private def resolveUpward(method: Method, ownerResolveInfo: ResolvedClassInfo): Option[Method] = {
-    for {candidateOwner <- ownerResolveInfo.hierarchyLine}
-      classMethods.get(candidateOwner) match {
-        case None =>
-          return None
-        case Some(methods) =>
-          for {found <- findConcreteMethodDeclaration(method, methods)}
-            return Some(convertToMethod(found))
-      }
-    None
+  def resolveUpward(method: Method): Option[Method] = {
+    var result = upwardMemo.get(method)
+    if (result == null) {
+      result =
+        if (noResolveViaHierarchy)
+          preciseResolve(method).map(_ => method)
+        else {
+          val owner = index.id(method.internalClassName)
+          if (owner >= 0 && index.isClass(owner)) resolveUpward(method, owner) else None
+        }
+      upwardMemo.put(method, result)
+    }
+    result
   }
 
+  // O(depth of a class), a concrete declaration in a superclass is looked up by the id of the superclass
+  private def resolveUpward(method: Method, owner: Int): Option[Method] =
+    Option(index.resolveUpward(owner, method.methodName, method.methodDesc)).map(convertToMethod)
+
   def convertToMethod(methodInfo: MethodInfo): Method =
     Method(methodInfo.classInfo.name, methodInfo.name, methodInfo.desc)
 
@@ -119,23 +100,37 @@ class CallResolver(val noResolveViaHierarchy: Boolean = false) {
    * @param method method invoked via INVOKEINTERFACE and INVOKEVIRTUAL instruction
    * @return all concrete method that can be called in run time
    */
-  def resolveDownward(method: Method): Set[Method] =
-    if (preciseResolve(method).exists(!isEffectivelyOverridableMethod(_)))
-      Set(method)
-    else if (noResolveViaHierarchy)
-      Set()
-    else
-      for {
-        implementationName <- inheritors(method.internalClassName)
-        implementation <- resolved.get(implementationName)
-        resolvedMethod <- resolveUpward(method, implementation)
-      } yield resolvedMethod
+  def resolveDownward(method: Method): Set[Method] = {
+    var result = downwardMemo.get(method)
+    if (result == null) {
+      result =
+        if (preciseResolve(method).exists(!isEffectivelyOverridableMethod(_)))
+          Set(method)
+        else if (noResolveViaHierarchy)
+          Set()
+        else {
+          val owner = index.id(method.internalClassName)
+          if (owner < 0) Set()
+          else {
+            val builder = Set.newBuilder[Method]
+            // inheritors are listed by intervals of subclasses, only implementations of interfaces are traversed
+            for (implementation <- index.inheritors(owner) if index.isClass(implementation); resolvedMethod <- resolveUpward(method, implementation))
+              builder += resolvedMethod
+            builder.result()
+          }
+        }
+      downwardMemo.put(method, result)
+    }
+    result
+  }
 
   /**
    * Add class info.
    * @param classInfo info from indexing phase
    */
   def addClassDeclaration(classInfo: ClassInfo) {
+    if (hierarchyBuilt)
+      newRound()
     classInfos.update(classInfo.name, classInfo)
     classMethods.update(classInfo.name, mutable.Set[MethodInfo]())
   }
@@ -148,56 +143,94 @@ class CallResolver(val noResolveViaHierarchy: Boolean = false) {
     classMethods(methodInfo.classInfo.name) += methodInfo
   }
 
-  // TODO - it callKey should be associated with a solver
-  def addCall(key: Key) {
-    calls += key
-  }
-
   /**
-   * "At once" resolve.
+   * "At once" resolve, subsequent calls do nothing.
    *
-   * It materializes all classes and methods.
-   * Builds the "hierarchy line" of classes for each class,
-   * Builds the set of interface a class implements for each class.
+   * It materializes all classes and methods into a [[faba.calls.HierarchyIndex]]:
+   * ids of classes, children of classes, intervals of subclasses and a table of concrete declarations of methods.
    */
-  def buildClassHierarchy() {
+  def buildClassHierarchy(): Unit = synchronized {
+    if (hierarchyBuilt) return
+    hierarchyBuilt = true
     println(s"${new Date()} buildClassHierarchy START")
-    for ((className, classInfo) <- classInfos) {
-      if (CallUtils.notInterface(classInfo.access))
-        resolved.update(className, ResolvedClassInfo(classInfo, hierarchy(className), allInterfaces(className)))
-
-      val superName: String =
-        if (classInfo.interface_?) null else classInfo.superName
-      if (superName != null)
-        childrenMap += superName -> (childrenMap.getOrElse(superName, Set()) + classInfo.name)
-      for (interfaceName <- classInfo.interfaces)
-        childrenMap += interfaceName -> (childrenMap.getOrElse(interfaceName, Set()) + classInfo.name)
+    Flight.phase("hierarchy") {
+      index = HierarchyIndex(classInfos, classMethods)
+      if (previousClasses != null)
+        invalidate()
     }
     println(s"${new Date()} buildClassHierarchy END")
   }
 
+  // the hierarchy of the previous round is kept until the new one is built, memoized results are kept till then
+  private def newRound(): Unit = synchronized {
+    previousClasses = classes
+    previousIndex = index
+    classInfos.clear()
+    classMethods.clear()
+    index = null
+    overridableMethods = null
+    hierarchyBuilt = false
+  }
+
+  private def classes: Map[String, (ClassInfo, Set[MethodInfo])] =
+    classInfos.map { case (name, info) => name -> (info, classMethods(name).toSet) }.toMap
+
+  /**
+   * Drops memoized results of resolving which may depend on classes changed since the previous round.
+   * Resolving of a method of class `X` reads `X`, its inheritors and their superclasses, so it depends on a changed
+   * class `C` when `X` is `C`'s inheritor or an ancestor of `C`'s inheritor (in the previous or in the current round).
+   */
+  private def invalidate(): Unit = {
+    val current = classes
+    val changed = (previousClasses.keySet ++ current.keySet).filter(name => previousClasses.get(name) != current.get(name))
+    val affected =
+      ancestors(previousIndex.inheritors(changed), previousClasses.get(_).map(_._1)) ++
+        ancestors(index.inheritors(changed), classInfos.get)
+    val upward = upwardMemo.keySet().iterator()
+    while (upward.hasNext)
+      if (affected(upward.next().internalClassName)) upward.remove()
+    val downward = downwardMemo.keySet().iterator()
+    while (downward.hasNext)
+      if (affected(downward.next().internalClassName)) downward.remove()
+    previousClasses = null
+    previousIndex = null
+  }
+
+  // classes with all their superclasses and superinterfaces
+  private def ancestors(classNames: Set[String], infos: String => Option[ClassInfo]): Set[String] = {
+    val queue = mutable.Queue[String](classNames.toSeq: _*)
+    val queued = mutable.HashSet[String](classNames.toSeq: _*)
+    while (queue.nonEmpty)
+      for (info <- infos(queue.dequeue()); parent <- Option(info.superName) ++ info.interfaces if queued.add(parent))
+        queue enqueue parent
+    queued.toSet
+  }
+
   /**
-   * Traverses all calls in RHS of equations and resolve them into a set of concrete calls
+   * Resolves calls in RHS of equations (of some solver) into a set of concrete calls
    * assuming that the world is closed.
    *
+   * @param calls calls encountered in equations of a solver
    * @return mapping of calls into existing Upward Keys
    */
-  def resolveCalls(): Map[Key, Set[Key]] = {
+  def resolveCalls(calls: Iterable[Key]): Map[Key, Set[Key]] = {
     println(s"${new Date()} RESOLVE calls START")
     var result = Map[Key, Set[Key]]()
-    for (call <- calls) {
-      val method = call.method
-      val ownerName = method.internalClassName
-      val resolved: Set[Method] = classInfos.get(ownerName) match {
-        case None =>
-          Set()
-        case Some(ownerInfo) =>
-          if (call.resolveDirection == ResolveDirection.Upward)
-            resolveUpward(call.method).toSet
-          else
-            resolveDownward(method)
+    Flight.phase("resolve") {
+      for (call <- calls) {
+        val method = call.method
+        val ownerName = method.internalClassName
+        val resolved: Set[Method] = classInfos.get(ownerName) match {
+          case None =>
+            Set()
+          case Some(ownerInfo) =>
+            if (call.resolveDirection == ResolveDirection.Upward)
+              resolveUpward(call.method).toSet
+            else
+              resolveDownward(method)
+        }
+        result += (call -> resolved.map(m => call.copy(method = m, resolveDirection = ResolveDirection.Upward)))
       }
-      result += (call -> resolved.map(m => call.copy(method = m, resolveDirection = ResolveDirection.Upward)))
     }
     println(s"${new Date()} RESOLVE calls END")
     result
@@ -205,19 +238,52 @@ class CallResolver(val noResolveViaHierarchy: Boolean = false) {
 
   /**
    * Traverses all hierarchy and for each overridable (non stable methods) constructs a set of concrete method it may resolve in runtime.
-   * During this stage a set of different caches are built.
+   * During this stage a set of different caches are built. The result is computed once and shared by all callers.
+   * @param pool if defined, classes are traversed in parallel (by chunks) in this pool
    * @return a map from overridable methods to a set of concrete methods
    */
-  def bindOverridableMethods(): Map[Method, Set[Method]] = {
+  def bindOverridableMethods(pool: Option[ForkJoinPool] = None): Map[Method, Set[Method]] = {
+    var first = false
+    val task = synchronized {
+      if (overridableMethods == null) {
+        first = true
+        overridableMethods = ForkJoinTask.adapt(new Callable[Map[Method, Set[Method]]] {
+          override def call() = computeOverridableMethods(pool)
+        })
+      }
+      overridableMethods
+    }
+    // other callers do not hold a lock while waiting, so threads of a pool may help computing
+    if (first) task.invoke() else task.join()
+  }
+
+  private def computeOverridableMethods(pool: Option[ForkJoinPool]): Map[Method, Set[Method]] = {
     println(s"${new Date()} BIND OVERRIDABLE START")
-    var result = Map[Method, Set[Method]]()
-    for {(className, methodInfos) <- classMethods } {
-      for {methodInfo <- methodInfos if isEffectivelyOverridableMethod(methodInfo)} {
+    val classes = classMethods.toVector
+    // hierarchy is not modified anymore, so it may be read concurrently
+    def bind(chunk: Vector[(String, mutable.Set[MethodInfo])]): Vector[(Method, Set[Method])] =
+      for {
+        (className, methodInfos) <- chunk
+        methodInfo <- methodInfos.toVector if isEffectivelyOverridableMethod(methodInfo)
+      } yield {
         val method = Method(className, methodInfo.name, methodInfo.desc)
-        val resolved = resolveDownward(method)
-        result += (method -> resolved)
+        method -> resolveDownward(method)
+      }
+    val bound = Flight.phase("overridable") {
+      pool match {
+        case None =>
+          bind(classes)
+        case Some(p) =>
+          val chunkSize = math.max(1, classes.size / (p.getParallelism * 8))
+          val tasks = classes.grouped(chunkSize).toVector.map { chunk =>
+            p.submit(new Callable[Vector[(Method, Set[Method])]] {
+              override def call() = bind(chunk)
+            })
+          }
+          tasks.flatMap(_.join())
       }
     }
+    val result = bound.toMap
     println(s"${new Date()} BIND OVERRIDABLE END")
     result
   }
@@ -237,56 +303,6 @@ class CallResolver(val noResolveViaHierarchy: Boolean = false) {
 
   private def findConcreteMethodDeclaration(call: Method, candidates: Iterable[MethodInfo]): Option[MethodInfo] =
     candidates.find {info => isNotAbstractMethod(info) && info.name == call.methodName && info.desc == call.methodDesc}
-
-  /**
-   * Builds a hierarchy of parents for a class in a linear order.
-   *
-   * @param className class for which hierarchy is built
-   * @return hierarchy of the class
-   */
-  private def hierarchy(className: String): List[String] = {
-    @tailrec
-    def _hierarchy(name: String, acc: ListBuffer[String]): List[String] = classInfos.get(name) match {
-      case None =>
-        //println(s"warning {faba.calls.CallResolver.hierarchy}: $name is referenced, but not found")
-        acc.toList
-      case Some(classInfo) =>
-        val superName = classInfo.superName
-        if (superName == null)
-          acc.toList
-        else {
-          acc += superName
-          _hierarchy(superName, acc)
-        }
-    }
-    _hierarchy(className, ListBuffer(className))
-  }
-
-  /**
-   * Calculates all interfaces implemented by a class.
-   *
-   * @param className class name
-   * @return all interfaces implemented by this class
-   */
-  private def allInterfaces(className: String): Set[String] = {
-    @tailrec
-    def _allInterfaces(queue: Set[String], traversed: Set[String], acc: Set[String]): Set[String] = {
-      queue.headOption match {
-        case None =>
-          acc
-        case Some(name) =>
-          classInfos.get(name) match {
-            case None =>
-              //println(s"warning {faba.calls.CallResolver.allInterfaces}: $name is referenced, but not found")
-              acc
-            case Some(classInfo) =>
-              val interfaces = classInfo.interfaces.toSet
-              _allInterfaces(queue.tail ++ (interfaces -- traversed), traversed + name, acc ++ interfaces)
-          }
-      }
-    }
-    _allInterfaces(Set(className), Set(), Set())
-  }
 }
 
 /**
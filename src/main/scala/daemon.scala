@@ -0,0 +1,217 @@
+package faba.daemon
+
+import java.io.{BufferedReader, File, InputStreamReader}
+import java.nio.file._
+import java.nio.file.attribute.BasicFileAttributes
+import java.util.Date
+import java.util.concurrent.TimeUnit
+
+import faba.index._
+import faba.jfr._
+import faba.source._
+import faba.{CmdUtils, MainProcessor, Options}
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+/**
+ * Indexing events of an input (a jar or a class file) as of its last modification.
+ */
+case class IndexedInput(lastModified: Long, length: Long, events: Seq[IndexEvent])
+
+/**
+ * Long-running inference over a set of inputs, annotations are refreshed when inputs change.
+ *
+ * Indexing events of every input are kept in memory (like [[faba.cache.IndexCache]] keeps them on disk),
+ * so a refresh analyzes bytecode only of inputs which were added or modified since the previous refresh.
+ * Each refresh is a round of incremental solvers (see [[faba.engine.IncrementalHierarchySolver]]) and of the call resolver
+ * of the same `MainProcessor`. A round retracts equations and classes not passed in it, so events of all inputs
+ * are replayed and all calls are bound again by every refresh; only solving is incremental
+ * (equations affected by changed inputs are solved again).
+ * Annotations are written into a temporary directory, which replaces `out` when it is complete.
+ * With `options.dedupe` analyzed method bodies are shared by inputs re-indexed by a refresh,
+ * every refresh starts with an empty table, so bodies of replaced inputs are not kept.
+ *
+ * @note interned strings and methods of [[faba.data.Symbols]] are never evicted, so names of classes and methods
+ *       which disappeared from inputs are kept for the life of a daemon.
+ *
+ * @param inputs input specification, as accepted by [[faba.CmdUtils#getIn]]
+ * @param out output directory
+ * @param options settings of indexing and solving
+ */
+class Daemon(inputs: Array[String], out: File, options: Options) {
+  private val indexed = mutable.HashMap[File, IndexedInput]()
+  // solves all rounds, `options.solver` is ignored
+  private val processor = new MainProcessor(false, options.copy(solver = "incremental"))
+
+  /**
+   * Re-indexes changed inputs, solves equations and publishes annotations.
+   * Nothing is done if no input was added, modified or removed, unless `force` is set.
+   *
+   * @return number of re-indexed inputs, -1 if nothing was done
+   */
+  def refresh(force: Boolean = false): Int = synchronized {
+    val start = System.currentTimeMillis()
+    // an input deleted since the previous refresh is removed
+    val sources = leaves(CmdUtils.getIn(inputs)).filter(file(_).exists())
+    val files = sources.map(file).toSet
+    val removed = indexed.keySet.filterNot(files)
+    val changed = sources.filter { s => indexed.get(file(s)).forall(i => !upToDate(file(s), i)) }
+    if (changed.isEmpty && removed.isEmpty && !force)
+      return -1
+
+    indexed --= removed
+    // inputs are indexed with fresh budgets (and a fresh allowance of escalation) by every refresh
+    val indexer = new MainProcessor(false, options)
+    println(s"${new Date()} re-indexing ${changed.size} of ${sources.size} inputs ...")
+    Flight.phase("index") {
+      for (source <- changed) {
+        println(s"${new Date()} processing $source")
+        val f = file(source)
+        // stamps are taken before reading, so a modification during indexing is seen by the next refresh
+        val lastModified = f.lastModified()
+        val length = f.length()
+        indexed(f) = IndexedInput(lastModified, length, indexer.record(source).events)
+      }
+      processor.newRound()
+      for (source <- sources; event <- indexed(file(source)).events)
+        IndexEvent.replay(event, processor)
+    }
+    publish()
+    println(s"${new Date()} refreshed in ${System.currentTimeMillis() - start} ms")
+    changed.size
+  }
+
+  // annotations are written aside and moved into place, so readers never see a partially written output
+  // (`out` is missing only between two renames, the previous output is restored if the second one fails)
+  private def publish(): Unit = {
+    val result = processor.solve()
+    val tmp = new File(out.getPath + ".tmp")
+    val old = new File(out.getPath + ".old")
+    delete(tmp)
+    delete(old)
+    processor.dumpResult(result, tmp.getPath)
+    tmp.mkdirs()
+    if (out.exists())
+      Files.move(out.toPath, old.toPath)
+    try
+      Files.move(tmp.toPath, out.toPath)
+    catch {
+      case e: java.io.IOException =>
+        if (old.exists())
+          Files.move(old.toPath, out.toPath)
+        throw e
+    }
+    delete(old)
+  }
+
+  /**
+   * Watches directories of inputs and refreshes annotations when something changes there.
+   * Events are collected until directories are quiet for `quietMillis`, so that a build writing
+   * several inputs causes a single refresh. Does not return.
+   */
+  def watch(quietMillis: Long = 200): Unit = {
+    val service = FileSystems.getDefault.newWatchService()
+    val watched = mutable.HashSet[Path]()
+    def register(dir: Path): Unit =
+      if (Files.isDirectory(dir) && watched.add(dir.toAbsolutePath))
+        dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE)
+    def registerTree(dir: Path): Unit =
+      if (Files.isDirectory(dir))
+        Files.walkFileTree(dir, new SimpleFileVisitor[Path] {
+          override def preVisitDirectory(d: Path, attrs: BasicFileAttributes): FileVisitResult = {
+            register(d)
+            FileVisitResult.CONTINUE
+          }
+        })
+
+    if (inputs(0) == "--dirs")
+      inputs.tail.foreach(d => registerTree(Paths.get(d)))
+    else
+      inputs.foreach(f => register(Paths.get(f).toAbsolutePath.getParent))
+
+    while (true) {
+      var key = service.take()
+      while (key != null) {
+        for (event <- key.pollEvents().asScala if event.kind() == StandardWatchEventKinds.ENTRY_CREATE)
+          registerTree(key.watchable().asInstanceOf[Path].resolve(event.context().asInstanceOf[Path]))
+        key.reset()
+        key = service.poll(quietMillis, TimeUnit.MILLISECONDS)
+      }
+      try {
+        refresh()
+      } catch {
+        case e: Exception =>
+          println(s"${new Date()} refresh failed: $e")
+      }
+    }
+  }
+
+  private def upToDate(file: File, input: IndexedInput): Boolean =
+    file.lastModified() == input.lastModified && file.length() == input.length
+
+  private def leaves(source: Source): List[Source] = source match {
+    case MixedSource(sources) => sources.flatMap(leaves)
+    case s => List(s)
+  }
+
+  private def file(source: Source): File = source match {
+    case MappedJarFileSource(f) => f
+    case JarFileSource(f) => f
+    case FileSource(f) => f
+    case other => sys.error(s"not a file source: $other")
+  }
+
+  private def delete(file: File): Unit =
+    if (file.exists())
+      Files.walkFileTree(file.toPath, new SimpleFileVisitor[Path] {
+        override def visitFile(f: Path, attrs: BasicFileAttributes): FileVisitResult = {
+          Files.delete(f)
+          FileVisitResult.CONTINUE
+        }
+        override def postVisitDirectory(d: Path, e: java.io.IOException): FileVisitResult = {
+          Files.delete(d)
+          FileVisitResult.CONTINUE
+        }
+      })
+}
+
+/**
+ * Runs [[faba.daemon.Daemon]]: annotations are inferred once, then refreshed whenever inputs change.
+ * Commands are read from stdin, one per line:
+ *  - `refresh` - refresh now (inputs are re-indexed only if they changed, equations are solved anyway)
+ *  - `quit` - stop (as well as the end of stdin)
+ *
+ * Usage: `faba.daemon.Daemon [options] path_to_lib1.jar path_to_lib2.jar out_dir`
+ * or `faba.daemon.Daemon [options] --dirs dir1 dir2 out_dir` (options are the ones of `faba.Main`).
+ */
+object Daemon {
+  def main(args: Array[String]) {
+    val (options, rest) = CmdUtils.getOptions(args)
+    val daemon = new Daemon(rest.init, new File(rest.last), Options(options))
+    daemon.refresh(force = true)
+
+    val watcher = new Thread(new Runnable {
+      override def run(): Unit = daemon.watch()
+    }, "faba-watcher")
+    watcher.setDaemon(true)
+    watcher.start()
+
+    val in = new BufferedReader(new InputStreamReader(System.in))
+    var line = in.readLine()
+    while (line != null && line.trim != "quit") {
+      line.trim match {
+        case "refresh" =>
+          try {
+            daemon.refresh(force = true)
+          } catch {
+            case e: Exception =>
+              println(s"${new Date()} refresh failed: $e")
+          }
+        case "" =>
+        case other => println(s"unknown command: $other")
+      }
+      line = in.readLine()
+    }
+  }
+}
@@ -1,22 +1,36 @@
 package faba.data
 
+import java.util.concurrent.ConcurrentHashMap
+
 import org.objectweb.asm.signature.{SignatureReader, SignatureVisitor}
 import org.objectweb.asm.{Opcodes, Type}
 
 import scala.collection.immutable.Iterable
 import scala.collection.mutable
 import scala.collection.mutable.ListBuffer
-import scala.xml.Elem
+import scala.runtime.ScalaRunTime
+import scala.util.hashing.MurmurHash3
+import scala.xml.{Elem, PrettyPrinter, Utility}
 
 /**
- * Case class to uniquely identify java methods in bytecode (part of `faba.data.Key`)
+ * Uniquely identifies java methods in bytecode (part of `faba.data.Key`).
+ * Methods are interned by [[faba.data.Symbols]]: structurally equal methods are the same object,
+ * so equality is a reference check, hash code is computed once and `id` is a dense number of a method.
  *
  * @param internalClassName the name of the class owning this method in asm format
  *                          (org.objectweb.asm.tree.ClassNode#name)
  * @param methodName method name (org.objectweb.asm.tree.MethodNode#name)
  * @param methodDesc method descriptor in asm format (see org.objectweb.asm.tree.MethodNode#desc)
+ * @param id number of this method in [[faba.data.Symbols]]
  */
-case class Method(internalClassName: String, methodName: String, methodDesc: String) {
+final class Method private[data](val internalClassName: String, val methodName: String, val methodDesc: String, val id: Int) {
+  // the same hash code as of a case class with these fields
+  override val hashCode: Int =
+    MurmurHash3.productHash((internalClassName, methodName, methodDesc))
+
+  override def equals(o: Any): Boolean =
+    this eq o.asInstanceOf[AnyRef]
+
   override def toString =
     s"$internalClassName $methodName$methodDesc"
 
@@ -25,6 +39,131 @@ case class Method(internalClassName: String, methodName: String, methodDesc: Str
       case -1 => ""
       case i => internalClassName.substring(0, i)
     }
+
+  def copy(internalClassName: String = internalClassName, methodName: String = methodName, methodDesc: String = methodDesc): Method =
+    Method(internalClassName, methodName, methodDesc)
+
+  /**
+   * Sorts (`org.objectweb.asm.Type#getSort`) of parameters, the array is shared and should not be modified.
+   */
+  def argumentSorts: Array[Int] =
+    Symbols.descriptor(methodDesc).argumentSorts
+
+  /**
+   * Sort (`org.objectweb.asm.Type#getSort`) of result.
+   */
+  def returnSort: Int =
+    Symbols.descriptor(methodDesc).returnSort
+}
+
+object Method {
+  def apply(internalClassName: String, methodName: String, methodDesc: String): Method =
+    Symbols.method(internalClassName, methodName, methodDesc)
+
+  def unapply(method: Method): Option[(String, String, String)] =
+    Some((method.internalClassName, method.methodName, method.methodDesc))
+}
+
+/**
+ * Parsed method descriptor.
+ *
+ * @param argumentSorts sorts of parameters
+ * @param returnSort sort of result
+ */
+class Descriptor(val argumentSorts: Array[Int], val returnSort: Int)
+
+/**
+ * Global (thread-safe) symbol table.
+ * Interns strings (class names, method names, descriptors), methods and parsed descriptors,
+ * so millions of keys created by analyses, call resolvers and solvers share them.
+ * Symbols are never removed (ids of methods are indices into a table), so the table only grows
+ * in a long-running process, such as [[faba.daemon.Daemon]].
+ */
+object Symbols {
+  private val strings = new ConcurrentHashMap[String, String]()
+  private val methods = new ConcurrentHashMap[(String, String, String), Method]()
+  private val descriptors = new ConcurrentHashMap[String, Descriptor]()
+  // id -> method
+  private var methodsById = new Array[Method](1024)
+  private var methodCount = 0
+
+  def string(s: String): String =
+    if (s == null) null
+    else {
+      val interned = strings.putIfAbsent(s, s)
+      if (interned == null) s else interned
+    }
+
+  def method(internalClassName: String, methodName: String, methodDesc: String): Method = {
+    val name = (internalClassName, methodName, methodDesc)
+    val method = methods.get(name)
+    if (method != null) method
+    else synchronized {
+      val method = methods.get(name)
+      if (method != null) method
+      else {
+        val created = new Method(string(internalClassName), string(methodName), string(methodDesc), methodCount)
+        if (methodCount == methodsById.length)
+          methodsById = java.util.Arrays.copyOf(methodsById, methodCount * 2)
+        methodsById(methodCount) = created
+        methodCount += 1
+        methods.put((created.internalClassName, created.methodName, created.methodDesc), created)
+        created
+      }
+    }
+  }
+
+  def method(id: Int): Method = synchronized {
+    methodsById(id)
+  }
+
+  def descriptor(methodDesc: String): Descriptor = {
+    val descriptor = descriptors.get(methodDesc)
+    if (descriptor != null) descriptor
+    else {
+      val parsed = new Descriptor(
+        Type.getArgumentTypes(methodDesc).map(_.getSort),
+        Type.getReturnType(methodDesc).getSort
+      )
+      val interned = descriptors.putIfAbsent(methodDesc, parsed)
+      if (interned == null) parsed else interned
+    }
+  }
+}
+
+/**
+ * Additional information about indexed methods (see `faba.data.MethodExtra`),
+ * stored in columns indexed by `Method.id`.
+ */
+class MethodExtras extends (Method => MethodExtra) {
+  private var access = new Array[Int](1024)
+  private var signatures = new Array[String](1024)
+  private val indexed = mutable.BitSet()
+
+  def update(method: Method, extra: MethodExtra): Unit = {
+    val id = method.id
+    if (id >= access.length) {
+      val size = math.max(id + 1, access.length * 2)
+      access = java.util.Arrays.copyOf(access, size)
+      signatures = java.util.Arrays.copyOf(signatures, size)
+    }
+    access(id) = extra.access
+    signatures(id) = Symbols.string(extra.signature.orNull)
+    indexed += id
+  }
+
+  def get(method: Method): Option[MethodExtra] =
+    if (indexed(method.id)) Some(MethodExtra(Option(signatures(method.id)), access(method.id)))
+    else None
+
+  override def apply(method: Method): MethodExtra =
+    get(method).getOrElse(throw new NoSuchElementException(s"key not found: $method"))
+
+  def methods: Iterator[Method] =
+    indexed.iterator.map(Symbols.method)
+
+  def toMap: Map[Method, MethodExtra] =
+    methods.map(m => m -> apply(m)).toMap
 }
 
 /**
@@ -105,6 +244,19 @@ case class Key(method: Method, direction: Direction, resolveDirection: ResolveDi
   val stable =
     resolveDirection == ResolveDirection.Upward
 
+  // keys are hashed a lot by solvers and call resolvers
+  override val hashCode: Int =
+    ScalaRunTime._hashCode(this)
+
+  // methods are interned
+  override def equals(o: Any): Boolean = o match {
+    case that: Key =>
+      (this eq that) ||
+        hashCode == that.hashCode && (method eq that.method) && resolveDirection == that.resolveDirection && direction == that.direction
+    case _ =>
+      false
+  }
+
   override def toString = direction match {
     case Out => s"$method"
     case In(index) => s"$method #$index"
@@ -113,11 +265,11 @@ case class Key(method: Method, direction: Direction, resolveDirection: ResolveDi
 
   // TODO - more clear name like "changeDirection"
   override def mkUnstable =
-    Key(method, direction, resolveDirection = ResolveDirection.Downward)
+    if (!stable) this else Key(method, direction, resolveDirection = ResolveDirection.Downward)
 
   // TODO - more clear name like "changeDirection"
   override def mkStable =
-    Key(method, direction, resolveDirection = ResolveDirection.Upward)
+    if (stable) this else Key(method, direction, resolveDirection = ResolveDirection.Upward)
 }
 
 /**
@@ -162,41 +314,70 @@ case class InferenceResult(
   contractClauses: Map[Key, Value]
 ) {
   def byPackage(): Map[String, InferenceResult] = {
+    // results of a package are collected in a single pass over each field
+    class PackageResult {
+      val notNullParameters = Set.newBuilder[Key]
+      val nullableParameters = Set.newBuilder[Key]
+      val notNullMethods = Set.newBuilder[Key]
+      val nullableMethods = Set.newBuilder[Key]
+      val pureMethods = Set.newBuilder[Key]
+      val contractClauses = Map.newBuilder[Key, Value]
+    }
+    val packages = mutable.HashMap[String, PackageResult]()
+    // methods of a class share a package
+    var lastClass: String = null
+    var lastPackage: PackageResult = null
+    def of(key: Key): PackageResult = {
+      val className = key.method.internalClassName
+      if (className ne lastClass) {
+        lastClass = className
+        lastPackage = packages.getOrElseUpdate(key.method.internalPackageName, new PackageResult)
+      }
+      lastPackage
+    }
+
+    for (key <- notNullParameters) of(key).notNullParameters += key
+    for (key <- nullableParameters) of(key).nullableParameters += key
+    for (key <- notNullMethods) of(key).notNullMethods += key
+    for (key <- nullableMethods) of(key).nullableMethods += key
+    for (key <- pureMethods) of(key).pureMethods += key
+    for (kv <- contractClauses) of(kv._1).contractClauses += kv
 
-    val notNullParametersByPackage =
-      notNullParameters.groupBy(k => k.method.internalPackageName)
-    val nullableParametersByPackage =
-      nullableParameters.groupBy(k => k.method.internalPackageName)
-    val notNullMethodsByPackage =
-      notNullMethods.groupBy(k => k.method.internalPackageName)
-    val nullableMethodsByPackage =
-      nullableMethods.groupBy(k => k.method.internalPackageName)
-    val pureMethodsByPackage =
-      pureMethods.groupBy(k => k.method.internalPackageName)
-    val contractClausesByPackage =
-      contractClauses.groupBy(kv => kv._1.method.internalPackageName)
-
-    val allPackages =
-      notNullParametersByPackage.keySet ++
-      nullableParametersByPackage.keySet ++
-      notNullMethodsByPackage.keySet ++
-      nullableMethodsByPackage.keySet ++
-      pureMethodsByPackage.keySet ++
-      contractClausesByPackage.keySet
-
-    allPackages.iterator.map { pkg =>
+    packages.iterator.map { case (pkg, r) =>
       pkg -> InferenceResult(
-        notNullParametersByPackage.getOrElse(pkg, Set()),
-        nullableParametersByPackage.getOrElse(pkg, Set()),
-        notNullMethodsByPackage.getOrElse(pkg, Set()),
-        nullableMethodsByPackage.getOrElse(pkg, Set()),
-        pureMethodsByPackage.getOrElse(pkg, Set()),
-        contractClausesByPackage.getOrElse(pkg, Map())
+        r.notNullParameters.result(),
+        r.nullableParameters.result(),
+        r.notNullMethods.result(),
+        r.nullableMethods.result(),
+        r.pureMethods.result(),
+        r.contractClauses.result()
       )
     }.toMap
   }
 }
 
+object InferenceResult {
+
+  /**
+   * Selects interesting solutions of solvers.
+   */
+  def fromSolutions(
+    notNullParamSolutions: Map[Key, Value],
+    nullableParamSolutions: Map[Key, Value],
+    contractSolutions: Map[Key, Value],
+    nullableResultSolutions: Map[Key, Value],
+    puritySolutions: Map[Key, Value]
+  ): InferenceResult =
+    InferenceResult(
+      notNullParamSolutions.filter(p => p._2 == Values.NotNull).keySet,
+      nullableParamSolutions.filter(p => p._2 == Values.Null).keySet,
+      contractSolutions.filter(p => p._1.direction == Out && p._2 == Values.NotNull).keySet,
+      nullableResultSolutions.filter(p => p._2 == Values.Null).keySet,
+      puritySolutions.filter(p => p._2 == Values.Pure).keySet,
+      contractSolutions.filter(p => p._1.direction.isInstanceOf[InOut] && p._2 != Values.Bot && p._2 != Values.Top)
+    )
+}
+
 /**
  * Utility to transform solutions into annotations.
  */
@@ -220,7 +401,7 @@ object AnnotationsUtil {
     }
     for ((method, inOuts) <- inOuts) {
       val key = Key(method, Out, ResolveDirection.Upward)
-      val arity = Type.getArgumentTypes(method.methodDesc).size
+      val arity = method.argumentSorts.length
       val contractValues = inOuts.map { case (InOut(i, inValue), outValue) =>
         (0 until arity).map { j =>
           if (i == j) contractValueString(inValue) else "_" }.mkString("", ",", s"->${contractValueString(outValue)}")
@@ -258,8 +439,41 @@ object XmlUtils {
     var clauses = ListBuffer[(InOut, Value)]()
   }
 
-  def toXmlAnnotations(result: InferenceResult, extras: Map[Method, MethodExtra]): List[Elem] = {
-    var annotations = Map[String, List[Elem]]()
+  /**
+   * Annotations of a single item (a method or a parameter) of annotations.xml.
+   *
+   * @param name the name of an item (see `annotationKey`)
+   * @param contract values of @Contract annotation (if any)
+   * @param annotations other annotations sorted by their xml representation
+   */
+  case class Item(name: String, contract: Option[String], annotations: List[Elem]) {
+    def toXml: Elem =
+      <item name={name}>{contract.map(contractAnnotation).toList ::: annotations}</item>
+  }
+
+  private val contractAnnotationName = "org.jetbrains.annotations.Contract"
+
+  def contractAnnotation(values: String): Elem =
+    <annotation name='org.jetbrains.annotations.Contract'>
+      <val val={values}/>
+    </annotation>
+
+  def toXmlAnnotations(result: InferenceResult, extras: Method => MethodExtra): List[Elem] =
+    items(result, extras).map(_.toXml)
+
+  /**
+   * Items of annotations.xml for a result, sorted as they are written.
+   */
+  def items(result: InferenceResult, extras: Method => MethodExtra): List[Item] = {
+    val annotations = mutable.HashMap[String, List[Elem]]()
+    val contractStrings = mutable.HashMap[String, String]()
+
+    // rendering of a method is shared by its keys
+    val rawKeys = mutable.HashMap[Method, String]()
+    def keyOf(key: Key): String = {
+      val extra = extras(key.method)
+      annotationKey(key, extra, rawKeys.getOrElseUpdate(key.method, rawKey(key.method, extra)))
+    }
 
     // preparations for contracts
     val contracts = mutable.HashMap[Key, Contract]()
@@ -267,35 +481,27 @@ object XmlUtils {
     // @NotNull parameters
     for (key <- result.notNullParameters) {
       val In(paramIndex) = key.direction
-      val method = key.method
-      val aKey = s"${annotationKey(key, extras(method))} $paramIndex"
-      val paramAnnotations = annotations.getOrElse(aKey, Nil)
-      annotations = annotations.updated(aKey, (notNullAnn :: paramAnnotations).sortBy(_.toString))
+      val aKey = s"${keyOf(key)} $paramIndex"
+      annotations(aKey) = notNullAnn :: annotations.getOrElse(aKey, Nil)
     }
 
     // @Nullable parameters
     for (key <- result.nullableParameters) {
       val In(paramIndex) = key.direction
-      val method = key.method
-      val aKey = s"${annotationKey(key, extras(method))} $paramIndex"
-      val paramAnnotations = annotations.getOrElse(aKey, Nil)
-      annotations = annotations.updated(aKey, (nullableAnn :: paramAnnotations).sortBy(_.toString))
+      val aKey = s"${keyOf(key)} $paramIndex"
+      annotations(aKey) = nullableAnn :: annotations.getOrElse(aKey, Nil)
     }
 
     // @NotNull methods
     for (key <- result.notNullMethods) {
-      val method = key.method
-      val aKey = annotationKey(key, extras(method))
-      val methodAnnotations = annotations.getOrElse(aKey, Nil)
-      annotations = annotations.updated(aKey, (notNullAnn :: methodAnnotations).sortBy(_.toString))
+      val aKey = keyOf(key)
+      annotations(aKey) = notNullAnn :: annotations.getOrElse(aKey, Nil)
     }
 
     // @Nullable methods
     for (key <- result.nullableMethods) {
-      val method = key.method
-      val aKey = annotationKey(key, extras(method))
-      val methodAnnotations = annotations.getOrElse(aKey, Nil)
-      annotations = annotations.updated(aKey, (nullableAnn :: methodAnnotations).sortBy(_.toString))
+      val aKey = keyOf(key)
+      annotations(aKey) = nullableAnn :: annotations.getOrElse(aKey, Nil)
     }
 
     // @Contract pure = true
@@ -323,7 +529,7 @@ object XmlUtils {
     // merging contracts and purity
     for ((key, contract) <- contracts) {
 
-      val arity = Type.getArgumentTypes(key.method.methodDesc).size
+      val arity = key.method.argumentSorts.length
 
       val contractValues: Option[String] =
         if (!result.notNullMethods(key) && contract.clauses.nonEmpty)
@@ -349,30 +555,76 @@ object XmlUtils {
           None
       }
 
-      val contractAnnotation = contractString.map { values =>
-        <annotation name='org.jetbrains.annotations.Contract'>
-          <val val={values}/>
-        </annotation>
+      contractString.foreach { values =>
+        contractStrings(keyOf(key)) = values
       }
+    }
 
-      val annKey = annotationKey(key, extras(key.method))
-      contractAnnotation.foreach { ann =>
-        annotations = annotations.updated(annKey, ann :: annotations.getOrElse(annKey, Nil))
-      }
+    val items = (annotations.keySet ++ contractStrings.keySet).toArray.map { name =>
+      Item(name, contractStrings.get(name), annotations.getOrElse(name, Nil).sortBy(_.toString))
+    }
+    // items are sorted by all (escaped) "name" attributes of an item and its annotations
+    val sortKeys = items.map { item =>
+      val names = item.contract.map(_ => contractAnnotationName).toList ::: item.annotations.map(_ \ "@name")
+      sortKey(names.mkString(Utility.escape(item.name), "", ""))
     }
+    items.indices.sortBy(sortKeys).toList.map(items)
+  }
 
-    annotations.map {
-      case (k, v) => <item name={k}>{v}</item>
-    }.toList.sortBy(s => sortKey((s \\ "@name").toString()))
+  /**
+   * Writes annotations.xml for a result, the output is the same as
+   * `PrettyPrinter(1000, 2).format(<root>{toXmlAnnotations(result, extras)}</root>)` followed by a line separator,
+   * but the xml tree is neither built nor formatted as a whole.
+   * Items which do not fit into the width of the printer are formatted by the printer itself.
+   */
+  def writeAnnotations(result: InferenceResult, extras: Method => MethodExtra, out: java.io.Writer): Unit = {
+    val items = this.items(result, extras)
+    if (items.isEmpty)
+      out.write("<root></root>")
+    else {
+      out.write("<root>\n")
+      for (item <- items) writeItem(item, out)
+      out.write("</root>")
+    }
+    out.write(System.lineSeparator())
+  }
+
+  private val printerWidth = 1000
+  private val notNullAnnString = notNullAnn.toString
+  private val nullableAnnString = nullableAnn.toString
+
+  private def writeItem(item: Item, out: java.io.Writer): Unit = {
+    val startTag = s"""<item name="${Utility.escape(item.name)}">"""
+    val valTag = item.contract.map(values => s"""<val val="${Utility.escape(values)}"/>""")
+    // the printer puts a tag onto a single line if it is shorter than its width,
+    // its whitespace normalization does not change tags without spaces in values
+    if (startTag.length < printerWidth && valTag.forall(t => t.length < printerWidth && !t.exists(_.isWhitespace))) {
+      out.write("  ")
+      out.write(startTag)
+      out.write('\n')
+      for (t <- valTag) {
+        out.write("    <annotation name=\"org.jetbrains.annotations.Contract\">\n      ")
+        out.write(t)
+        out.write("\n    </annotation>\n")
+      }
+      for (ann <- item.annotations) {
+        out.write("    ")
+        out.write(if (ann eq notNullAnn) notNullAnnString else if (ann eq nullableAnn) nullableAnnString else ann.toString)
+        out.write('\n')
+      }
+      out.write("  </item>\n")
+    } else {
+      val formatted = new PrettyPrinter(printerWidth, 2).format(<root>{item.toXml}</root>)
+      // without <root> and </root>
+      out.write(formatted, "<root>\n".length, formatted.length - "<root>\n".length - "</root>".length)
+    }
   }
 
   // the main logic to interact with IDEA
-  def annotationKey(key: Key, extra: MethodExtra): String = {
-    val method = key.method
-    val rawKey = if (method.methodName == "<init>")
-      s"${internalName2Idea(method.internalClassName)} ${simpleName(method.internalClassName)}${parameters(method, extra)}"
-    else
-      s"${internalName2Idea(method.internalClassName)} ${returnType(method, extra)} ${method.methodName}${parameters(method, extra)}"
+  def annotationKey(key: Key, extra: MethodExtra): String =
+    annotationKey(key, extra, rawKey(key.method, extra))
+
+  private def annotationKey(key: Key, extra: MethodExtra, rawKey: String): String =
     key.resolveDirection match {
       case ResolveDirection.Upward =>
         rawKey
@@ -380,7 +632,12 @@ object XmlUtils {
         val access = if ((extra.access & Opcodes.ACC_ABSTRACT) != 0) "abstract " else ""
         s"${access}virtual $rawKey"
     }
-  }
+
+  private def rawKey(method: Method, extra: MethodExtra): String =
+    if (method.methodName == "<init>")
+      s"${internalName2Idea(method.internalClassName)} ${simpleName(method.internalClassName)}${parameters(method, extra)}"
+    else
+      s"${internalName2Idea(method.internalClassName)} ${returnType(method, extra)} ${method.methodName}${parameters(method, extra)}"
 
   def sortKey(keyString: String) =
     if (keyString.startsWith("virtual "))
@@ -0,0 +1,276 @@
+package faba.dedupe
+
+import java.security.MessageDigest
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+import faba.FabaProcessor
+import faba.data._
+import faba.engine._
+import faba.index._
+
+import org.objectweb.asm.tree._
+import org.objectweb.asm.{Handle, Type}
+
+/**
+ * Reuse of analyses of methods with identical bodies, used by [[faba.FabaProcessor#processMethod]].
+ * Generated code (accessors, bridges, lambdas, copied library classes) repeats the same bodies a lot,
+ * analyses of such a body give the same equations up to the owner class of a method.
+ * Implementations are thread-safe: methods are analyzed in worker threads with parallel indexing.
+ */
+trait MethodBodies {
+  /**
+   * Analyzes a method or replays equations of an identical body analyzed before.
+   *
+   * @param className owner of a method
+   * @param methodNode bytecode of a method
+   * @param processor processor receiving equations
+   * @param analysis analyses of a method, passing equations to a given processor
+   */
+  def analyze(className: String, methodNode: MethodNode, processor: FabaProcessor)(analysis: FabaProcessor => Unit): Unit
+}
+
+object MethodBodies {
+  /**
+   * Every method is analyzed.
+   */
+  object Off extends MethodBodies {
+    override def analyze(className: String, methodNode: MethodNode, processor: FabaProcessor)(analysis: FabaProcessor => Unit): Unit =
+      analysis(processor)
+  }
+
+  // stands for the owner class in a normalized body, not a part of any internal name or descriptor
+  private[dedupe] val Owner = "\u0000"
+
+  /**
+   * Hash of a normalized body of a method: everything analyses read from a method
+   * (access flags, name, descriptor, instructions with operands, exception handlers),
+   * with the owner class replaced by a placeholder and labels replaced by instruction indices.
+   */
+  def hash(className: String, methodNode: MethodNode): String = {
+    val normalizer = new Normalizer(className, methodNode.instructions)
+    normalizer.int(methodNode.access)
+    normalizer.string(methodNode.name)
+    normalizer.desc(methodNode.desc)
+    normalizer.int(methodNode.maxLocals)
+    normalizer.int(methodNode.maxStack)
+    var insn = methodNode.instructions.getFirst
+    while (insn != null) {
+      normalizer.insn(insn)
+      insn = insn.getNext
+    }
+    val it = methodNode.tryCatchBlocks.iterator()
+    while (it.hasNext) {
+      val block = it.next()
+      normalizer.label(block.start)
+      normalizer.label(block.end)
+      normalizer.label(block.handler)
+      normalizer.owner(block.`type`)
+    }
+    normalizer.digest()
+  }
+
+  private class Normalizer(className: String, insns: InsnList) {
+    private val sha = MessageDigest.getInstance("SHA-1")
+    private val ownerDesc = "L" + className + ";"
+    private val placeholderDesc = "L" + Owner + ";"
+
+    def int(i: Int): Unit = {
+      sha.update((i >>> 24).toByte)
+      sha.update((i >>> 16).toByte)
+      sha.update((i >>> 8).toByte)
+      sha.update(i.toByte)
+    }
+
+    // strings are length-prefixed, so that adjacent strings are not ambiguous
+    def string(s: String): Unit =
+      if (s == null) int(-1)
+      else {
+        int(s.length)
+        sha.update(s.getBytes("UTF-8"))
+      }
+
+    def owner(name: String): Unit =
+      string(if (name == className) Owner else desc0(name))
+
+    def desc(desc: String): Unit =
+      string(desc0(desc))
+
+    private def desc0(desc: String): String =
+      if (desc == null) null else desc.replace(ownerDesc, placeholderDesc)
+
+    def label(label: LabelNode): Unit =
+      int(insns.indexOf(label))
+
+    private def labels(labels: java.util.List[LabelNode]): Unit = {
+      int(labels.size())
+      val it = labels.iterator()
+      while (it.hasNext) label(it.next())
+    }
+
+    private def constant(cst: Any): Unit = cst match {
+      case t: Type =>
+        string("T")
+        desc(t.getDescriptor)
+      case h: Handle =>
+        string("H")
+        int(h.getTag)
+        owner(h.getOwner)
+        string(h.getName)
+        desc(h.getDesc)
+      case other =>
+        string(other.getClass.getName)
+        string(other.toString)
+    }
+
+    def insn(insn: AbstractInsnNode): Unit = {
+      int(insn.getType)
+      int(insn.getOpcode)
+      insn match {
+        case i: IntInsnNode =>
+          int(i.operand)
+        case i: VarInsnNode =>
+          int(i.`var`)
+        case i: TypeInsnNode =>
+          owner(i.desc)
+        case i: FieldInsnNode =>
+          owner(i.owner)
+          string(i.name)
+          desc(i.desc)
+        case i: MethodInsnNode =>
+          owner(i.owner)
+          string(i.name)
+          desc(i.desc)
+          int(if (i.itf) 1 else 0)
+        case i: InvokeDynamicInsnNode =>
+          string(i.name)
+          desc(i.desc)
+          constant(i.bsm)
+          int(i.bsmArgs.length)
+          i.bsmArgs.foreach(constant)
+        case i: JumpInsnNode =>
+          label(i.label)
+        case i: LdcInsnNode =>
+          constant(i.cst)
+        case i: IincInsnNode =>
+          int(i.`var`)
+          int(i.incr)
+        case i: TableSwitchInsnNode =>
+          int(i.min)
+          int(i.max)
+          label(i.dflt)
+          labels(i.labels)
+        case i: LookupSwitchInsnNode =>
+          label(i.dflt)
+          int(i.keys.size())
+          val it = i.keys.iterator()
+          while (it.hasNext) int(it.next())
+          labels(i.labels)
+        case i: MultiANewArrayInsnNode =>
+          desc(i.desc)
+          int(i.dims)
+        case _ =>
+      }
+    }
+
+    def digest(): String =
+      sha.digest().map("%02x".format(_)).mkString
+  }
+}
+
+/**
+ * Equations of a method body, as recorded for its first owner.
+ * For another owner of the same body equations are renamed: keys of methods of the first owner
+ * (and descriptors mentioning it) are mapped to the other owner. Since an identical body mentions
+ * neither of owners by name, renaming is one-to-one and equations stay simplified.
+ */
+private class AnalyzedBody(owner: String, events: Array[EquationEvent]) {
+
+  def replay(className: String, processor: FabaProcessor): Unit = {
+    val renaming = new Renaming(owner, className)
+    for (EquationEvent(kind, Equation(key, rhs)) <- events)
+      IndexEvent.replay(EquationEvent(kind, Equation(renaming.key(key), renaming.result(rhs))), processor)
+  }
+}
+
+private class Renaming(from: String, to: String) {
+  private val fromDesc = "L" + from + ";"
+  private val toDesc = "L" + to + ";"
+  // formulas share subtrees, so they are renamed once
+  private val formulas = new java.util.IdentityHashMap[Formula[Key, Value], Formula[Key, Value]]()
+
+  def method(m: Method): Method = {
+    val desc = m.methodDesc.replace(fromDesc, toDesc)
+    if (m.internalClassName == from) Method(to, m.methodName, desc)
+    else if (desc ne m.methodDesc) Method(m.internalClassName, m.methodName, desc)
+    else m
+  }
+
+  def key(k: Key): Key = {
+    val m = method(k.method)
+    if (m eq k.method) k else k.copy(method = m)
+  }
+
+  def result(rhs: Result[Key, Value]): Result[Key, Value] = rhs match {
+    case Final(_) =>
+      rhs
+    case Pending(sop) =>
+      Pending(sop.map(p => p.copy(elems = p.elems.map(key))))
+    case Factored(formula) =>
+      Factored(this.formula(formula))
+  }
+
+  private def formula(f: Formula[Key, Value]): Formula[Key, Value] = {
+    val renamed = formulas.get(f)
+    if (renamed != null) renamed
+    else {
+      val result = f match {
+        case Atom(id) => Atom[Key, Value](key(id))
+        case Const(_) => f
+        case Meet(args) => Meet(args.map(formula))
+        case Join(args) => Join(args.map(formula))
+      }
+      formulas.put(f, result)
+      result
+    }
+  }
+}
+
+/**
+ * Equations of analyzed bodies by their hashes (see [[faba.dedupe.MethodBodies#hash]]).
+ * A body is analyzed for the first owner seen, other owners of the same body replay renamed equations.
+ * Bodies which were deferred by adaptive budgets (see [[faba.FabaProcessor#escalate]]) are not stored,
+ * since their equations are not known until escalation.
+ */
+class SharedMethodBodies extends MethodBodies {
+  private val bodies = new ConcurrentHashMap[String, AnalyzedBody]()
+  private val reusedCount = new AtomicInteger()
+
+  override def analyze(className: String, methodNode: MethodNode, processor: FabaProcessor)(analysis: FabaProcessor => Unit): Unit = {
+    val hash = MethodBodies.hash(className, methodNode)
+    val body = bodies.get(hash)
+    if (body != null) {
+      reusedCount.incrementAndGet()
+      body.replay(className, processor)
+    }
+    else {
+      val recorder = new IndexRecorder(processor.profiler, processor.budgets, this)
+      analysis(recorder)
+      if (recorder.deferred.isEmpty)
+        bodies.putIfAbsent(hash, new AnalyzedBody(className, recorder.events.collect { case e: EquationEvent => e }.toArray))
+      recorder.replay(processor)
+    }
+  }
+
+  /**
+   * Number of distinct analyzed bodies.
+   */
+  def size: Int =
+    bodies.size()
+
+  /**
+   * Number of methods whose equations were replayed from an identical body.
+   */
+  def reused: Int =
+    reusedCount.get()
+}
@@ -10,7 +10,8 @@ object `package` {
    * The central data of FABA. Equation represents a staged result of analysis.
    *
    * @param id left hand side of the equation (variable)
-   * @param rhs right hand side of the equation: answer (faba.engine.Final) or expression (faba.engine.Pending)
+   * @param rhs right hand side of the equation: answer (faba.engine.Final) or expression
+   *            (faba.engine.Pending or, if the expression is too large for a sum of products, faba.engine.Factored)
    * @tparam K type of identifiers (variables, keys)
    * @tparam V type of values (answers)
    */
@@ -60,9 +61,26 @@ object `package` {
    * @tparam V type of values (answers)
    */
   case class Pending[K, V](expression: SumOfProducts[K, V]) extends Result[K, V] {
-    if (expression.map(_.elems.size).sum > 30) throw new LimitReachedException
+    if (expression.map(_.elems.size).sum > Pending.limit) throw new LimitReachedException
   }
 
+  object Pending {
+    /**
+     * Maximal number of elements in a sum of products
+     */
+    val limit = 30
+  }
+
+  /**
+   * Right hand side of an equation, not a final answer, in a factored form.
+   * Used for expressions whose sum of products is too large for `Pending`.
+   *
+   * @param formula expression per se, not a constant
+   * @tparam K type of identifiers (variables, keys)
+   * @tparam V type of values (answers)
+   */
+  case class Factored[K, V](formula: Formula[K, V]) extends Result[K, V]
+
   /**
    * Utility to join results. Used by ResultAnalysis to combined partials solutions.
    * @param l lattice
@@ -71,6 +89,7 @@ object `package` {
    */
   case class ResultUtils[K, V](l: Lattice[V]) {
     val top: V = l.top
+    private lazy val formulas = Formulas[K, V](l)
     def join(r1: Result[K, V], r2: Result[K, V]): Result[K, V] = (r1, r2) match {
       case (Final(`top`), _) =>
         Final(`top`)
@@ -84,6 +103,11 @@ object `package` {
         Pending(comps1 + Product(v2, Set()))
       case (Pending(comps1), Pending(comps2)) =>
         Pending(comps1 union comps2)
+      case (Factored(_), _) | (_, Factored(_)) =>
+        formulas.join(formulas.fromResult(r1), formulas.fromResult(r2)) match {
+          case Const(v) => Final(v)
+          case formula => Factored(formula)
+        }
     }
   }
 }
@@ -132,11 +156,36 @@ trait Solver[K <: PolymorphicId[K], V] {
   val lattice: Lattice[V]
   import lattice._
 
-  def substitute(pending: Pending[K, V], id: K, value: V): Result[K, V] = {
-    val sum = pending.expression.map { prod =>
-      if (prod.elems(id)) Product(meet(value, prod.upperBound), prod.elems - id) else prod
-    }
-    normalize(sum)
+  lazy val formulas = Formulas[K, V](lattice)
+
+  def substitute(rhs: Result[K, V], id: K, value: V): Result[K, V] = rhs match {
+    case Pending(expression) =>
+      val sum = expression.map { prod =>
+        if (prod.elems(id)) Product(meet(value, prod.upperBound), prod.elems - id) else prod
+      }
+      normalize(sum)
+    case Factored(formula) =>
+      normalize(formulas.substitute(formula, id, value))
+    case Final(_) =>
+      rhs
+  }
+
+  def normalize(rhs: Result[K, V]): Result[K, V] = rhs match {
+    case Pending(sum) => normalize(sum)
+    case Factored(formula) => normalize(formula)
+    case Final(_) => rhs
+  }
+
+  def normalize(formula: Formula[K, V]): Result[K, V] = formula match {
+    case Const(value) => Final(value)
+    case _ => Factored(formula)
+  }
+
+  // identifiers a right hand side depends on
+  def triggers(rhs: Result[K, V]): Set[K] = rhs match {
+    case Pending(sum) => sum.flatMap(_.elems)
+    case Factored(formula) => formula.ids
+    case Final(_) => Set()
   }
 
   def normalize(sum: SumOfProducts[K, V]): Result[K, V] = {
@@ -151,7 +200,63 @@ trait Solver[K <: PolymorphicId[K], V] {
   }
 }
 
-class StagedHierarchySolver[K <: PolymorphicId[K], V](val lattice: Lattice[V], val defaultResolveValue: V) extends Solver[K, V] {
+/**
+ * Solver of equations got from indexing (method equations) and from resolving calls (call equations).
+ * Solving is staged: all equations are added first, then `solve()` is called once.
+ *
+ * @tparam K type of identifiers (variables, keys)
+ * @tparam V type of values (answers)
+ */
+trait HierarchySolver[K <: PolymorphicId[K], V] {
+  val lattice: Lattice[V]
+
+  def getCalls(equation: Equation[K, V]): Set[K] =
+    equation.rhs match {
+      case Final(_) =>
+        Set()
+      case Pending(sop) =>
+        sop.map(_.elems).flatten.toSet
+      case Factored(formula) =>
+        formula.ids
+    }
+
+  /**
+   * Adds an equation describing method behavior (the left hand side is made stable).
+   */
+  def addMethodEquation(equation: Equation[K, V]): Unit
+
+  def bindCalls(resolveMap: Map[K, Set[K]], apiKeys: Set[K]): Unit
+
+  /**
+   * Equations of this system (right hand sides are normalized), should be called before `solve()`.
+   * If there are several equations for the same key, the last one wins.
+   *
+   * @return equations and keys for which solutions should be written to the external world
+   */
+  def system(): (Iterable[Equation[K, V]], collection.Set[K])
+
+  /**
+   * @return solutions for "api keys"
+   */
+  def solve(): Map[K, V]
+
+  /**
+   * @return counters of the last `solve()`
+   */
+  def statistics: SolveStatistics
+}
+
+/**
+ * Counters of solving of a system of equations.
+ *
+ * @param equations number of equations (with distinct left hand sides)
+ * @param pending number of equations which were not solved before `solve()`
+ * @param iterations number of solutions propagated into dependent equations
+ */
+case class SolveStatistics(equations: Int, pending: Int, iterations: Int)
+
+class StagedHierarchySolver[K <: PolymorphicId[K], V](val lattice: Lattice[V], val defaultResolveValue: V)
+  extends Solver[K, V] with HierarchySolver[K, V] {
   type Binding = (K, V)
 
   // k -> (equations dependent on k)
@@ -159,41 +264,22 @@ class StagedHierarchySolver[K <: PolymorphicId[K], V](val lattice: Lattice[V], v
   // queue of solutions to process
   private val moving = mutable.Queue[Binding]()
   // not solved yet equations
-  private val pending = mutable.HashMap[K, Pending[K, V]]()
+  private val pending = mutable.HashMap[K, Result[K, V]]()
   private var solved = Map[K, V]()
+  private var stats = SolveStatistics(0, 0, 0)
 
   // "api keys", external keys
   private val keys = mutable.Set[K]()
   // key that are already added to this solver, to prevent duplicates
   private val added = mutable.Set[K]()
 
-  def getCalls(equation: Equation[K, V]): Set[K] =
-    equation.rhs match {
-      case Final(_) =>
-        Set()
-      case Pending(sop) =>
-        sop.map(_.elems).flatten.toSet
-    }
-
   // stage ONE - adding equations,
   // this is about UPWARD keys on the left
   // equation describing method behavior
   def addMethodEquation(equation: Equation[K, V]): Unit = {
     val id = equation.id.mkStable
     keys += id
-    equation.rhs match {
-      case Final(value) =>
-        moving enqueue (id -> value)
-      case Pending(sum) => normalize(sum) match {
-        case Final(value) =>
-          moving enqueue (id -> value)
-        case p@Pending(comps) =>
-          for (trigger <- comps.map(_.elems).flatten) {
-            dependencies(trigger) = dependencies.getOrElse(trigger, Set()) + id
-          }
-          pending(id) = p
-      }
-    }
+    add(id, equation.rhs)
   }
 
   private def addCallEquation(equation: Equation[K, V]): Unit = {
@@ -201,27 +287,20 @@ class StagedHierarchySolver[K <: PolymorphicId[K], V](val lattice: Lattice[V], v
     // some equations may be passed several times
     if (added(id)) return
     added += id
-    equation.rhs match {
+    add(id, equation.rhs)
+  }
+
+  private def add(id: K, rhs: Result[K, V]): Unit =
+    normalize(rhs) match {
       case Final(value) =>
-        moving enqueue (equation.id -> value)
-      case Pending(sum) => normalize(sum) match {
-        case Final(value) =>
-          moving enqueue (equation.id -> value)
-        case p@Pending(comps) =>
-          for (trigger <- comps.map(_.elems).flatten) {
-            dependencies(trigger) = dependencies.getOrElse(trigger, Set()) + equation.id
-          }
-          pending(equation.id) = p
-      }
+        moving enqueue (id -> value)
+      case p =>
+        for (trigger <- triggers(p)) {
+          dependencies(trigger) = dependencies.getOrElse(trigger, Set()) + id
+        }
+        pending(id) = p
     }
-  }
 
-  /**
-   * Adds to the system equations got from the second stage - equations about resolution of calls.
-   *
-   * @param resolveMap a map from call keys to "concrete", method keys
-   * @param apiKeys keys for which solutions should be written to the external world
-   */
   def bindCalls(resolveMap: Map[K, Set[K]], apiKeys: Set[K]): Unit = {
     // stage TWO - adding equations,
     // this is about UPWARD keys on the left absent from indexing phase
@@ -240,10 +319,23 @@ class StagedHierarchySolver[K <: PolymorphicId[K], V](val lattice: Lattice[V], v
       }
   }
 
+  def system(): (Iterable[Equation[K, V]], collection.Set[K]) = {
+    val equations = mutable.LinkedHashMap[K, Result[K, V]]()
+    for ((id, value) <- moving)
+      equations(id) = Final(value)
+    for ((id, rhs) <- pending)
+      equations(id) = rhs
+    (equations.map { case (id, rhs) => Equation(id, rhs) }, keys)
+  }
+
   def solve(): Map[K, V] = {
+    val pendingCount = pending.size
+    val equations = pendingCount + moving.size
+    var iterations = 0
     while (moving.nonEmpty) {
       // moving to solutions
       val (id, value) = moving.dequeue()
+      iterations += 1
       // adding to solution only indexed keys
       if (keys(id))
         solved = solved + (id -> value)
@@ -256,11 +348,521 @@ class StagedHierarchySolver[K <: PolymorphicId[K], V](val lattice: Lattice[V], v
         // substitution leads to answer
         case Final(v) => moving enqueue (pendingId -> v)
         // substitution only simplifies pendingRhs
-        case p@Pending(_) => pending(pendingId) = p
+        case p => pending(pendingId) = p
       }
     }
 
     pending.clear()
+    stats = SolveStatistics(equations, pendingCount, iterations)
     solved
   }
+
+  def statistics: SolveStatistics =
+    stats
+}
+
+/**
+ * `StagedHierarchySolver` which solves a changing system of equations again and again (see [[faba.daemon.Daemon]]).
+ * Solving goes in rounds: a round passes the whole system (method equations and bound calls) and ends with `solve()`,
+ * equations not passed in a round are retracted.
+ *
+ * Only equations changed since the previous round (added, retracted or with another right hand side)
+ * and equations transitively dependent on them are solved again. Their solutions are deleted first (over-deletion),
+ * then derived again from their equations and solutions of not affected equations (re-derivation),
+ * the way DRed maintains recursive views. Not affected equations depend only on not affected ones,
+ * so their solutions stay valid. Solutions are the same as solutions of `StagedHierarchySolver` for the system
+ * of a round (an equation of a bound call wins over a method equation with the same left hand side).
+ *
+ * @tparam K type of identifiers (variables, keys)
+ * @tparam V type of values (answers)
+ */
+class IncrementalHierarchySolver[K <: PolymorphicId[K], V](val lattice: Lattice[V], val defaultResolveValue: V)
+  extends Solver[K, V] with HierarchySolver[K, V] {
+
+  // equations of the current round
+  private val methodEquations = mutable.HashMap[K, Result[K, V]]()
+  private val callEquations = mutable.HashMap[K, Result[K, V]]()
+  // "api keys" of the current round and of the previous one
+  private var keys = mutable.Set[K]()
+  private var previousKeys = mutable.Set[K]()
+  // the current round is solved, the next equation starts a new one
+  private var solved = false
+
+  // equations solved by the last round (as passed, not normalized)
+  private val equations = mutable.HashMap[K, Result[K, V]]()
+  // k -> (equations dependent on k)
+  private val dependencies = mutable.HashMap[K, mutable.Set[K]]()
+  // solutions of all solved equations (not only of api keys)
+  private val solutions = mutable.HashMap[K, V]()
+  // solutions of api keys returned by the last `solve()`
+  private var answers = Map[K, V]()
+  private var stats = SolveStatistics(0, 0, 0)
+
+  override def addMethodEquation(equation: Equation[K, V]): Unit = {
+    round()
+    val id = equation.id.mkStable
+    keys += id
+    methodEquations(id) = equation.rhs
+  }
+
+  override def bindCalls(resolveMap: Map[K, Set[K]], apiKeys: Set[K]): Unit = {
+    round()
+    keys ++= apiKeys
+    for ((call, resolveInfo) <- resolveMap)
+      // some equations may be passed several times
+      if (resolveInfo != Set(call) && !callEquations.contains(call))
+        callEquations(call) =
+          if (resolveInfo.isEmpty) Final(defaultResolveValue)
+          else Pending(resolveInfo.map(k => Product(lattice.top, Set(k))))
+  }
+
+  private def round(): Unit =
+    if (solved) {
+      methodEquations.clear()
+      callEquations.clear()
+      previousKeys = keys
+      keys = mutable.Set[K]()
+      solved = false
+    }
+
+  // equations of the current round
+  private def current: Iterator[(K, Result[K, V])] =
+    methodEquations.iterator.filterNot(e => callEquations.contains(e._1)) ++ callEquations.iterator
+
+  override def system(): (Iterable[Equation[K, V]], collection.Set[K]) =
+    (current.map { case (id, rhs) => Equation(id, normalize(rhs)) }.toVector, keys)
+
+  override def solve(): Map[K, V] = {
+    solved = true
+    val changed = mutable.LinkedHashSet[K]()
+    for ((id, rhs) <- current)
+      equations.get(id) match {
+        case Some(old) if (old eq rhs) || old == rhs =>
+        case _ => changed += id
+      }
+    for (id <- equations.keys if !methodEquations.contains(id) && !callEquations.contains(id))
+      changed += id
+
+    // replacing changed equations and their dependencies
+    for (id <- changed) {
+      for (old <- equations.remove(id); trigger <- triggers(normalize(old)); ds <- dependencies.get(trigger)) {
+        ds -= id
+        if (ds.isEmpty) dependencies.remove(trigger)
+      }
+      for (rhs <- callEquations.get(id).orElse(methodEquations.get(id))) {
+        equations(id) = rhs
+        for (trigger <- triggers(normalize(rhs)))
+          dependencies.getOrElseUpdate(trigger, mutable.Set[K]()) += id
+      }
+    }
+
+    // over-deletion: the cone of equations dependent on changed ones
+    val affected = mutable.HashSet[K]()
+    val queue = mutable.Queue[K]()
+    for (id <- changed if affected.add(id))
+      queue enqueue id
+    while (queue.nonEmpty)
+      for (ds <- dependencies.get(queue.dequeue()); id <- ds if affected.add(id))
+        queue enqueue id
+    solutions --= affected
+
+    // re-derivation: solutions of not affected equations are substituted first, then the cone is solved as usual
+    val moving = mutable.Queue[(K, V)]()
+    val pending = mutable.HashMap[K, Result[K, V]]()
+    val waiting = mutable.HashMap[K, List[K]]()
+    for (id <- affected; rhs <- equations.get(id)) {
+      val normalized = normalize(rhs)
+      var p = normalized
+      for (trigger <- triggers(normalized); value <- solutions.get(trigger))
+        p = substitute(p, trigger, value)
+      p match {
+        case Final(value) =>
+          moving enqueue (id -> value)
+        case _ =>
+          pending(id) = p
+          for (trigger <- triggers(p) if affected(trigger))
+            waiting(trigger) = id :: waiting.getOrElse(trigger, Nil)
+      }
+    }
+    val pendingCount = pending.size
+    var iterations = 0
+    while (moving.nonEmpty) {
+      val (id, value) = moving.dequeue()
+      iterations += 1
+      solutions(id) = value
+      for {
+        dependentIds <- waiting.remove(id)
+        pendingId <- dependentIds
+        pendingRhs <- pending.remove(pendingId)
+      } substitute(pendingRhs, id, value) match {
+        case Final(v) => moving enqueue (pendingId -> v)
+        case p => pending(pendingId) = p
+      }
+    }
+
+    stats = SolveStatistics(affected.size, pendingCount, iterations)
+    // answers of not affected api keys are kept
+    for (k <- previousKeys if !keys(k))
+      answers -= k
+    for (k <- keys if affected(k) || !previousKeys(k))
+      answers = solutions.get(k) match {
+        case Some(v) => answers + (k -> v)
+        case None => answers - k
+      }
+    answers
+  }
+
+  /**
+   * @return counters of the last `solve()`: equations are the ones solved again
+   */
+  override def statistics: SolveStatistics =
+    stats
+}
+
+/**
+ * `StagedHierarchySolver` working on interned int ids instead of keys.
+ * Keys are numbered when first seen, a not solved equation is an array of products,
+ * elements of products are sorted int arrays, hash-consed (equal products of different equations share them).
+ * Substitution does not rebuild products: a product keeps an upper bound and a bit mask of already substituted
+ * elements (a product has at most 30 elements, see `Pending`).
+ * Dependencies are int adjacency lists, the queue of solutions is a pair of arrays.
+ * Equations in factored form (`Factored`) are rare, they are kept and substituted as formulas.
+ * Solutions are the same as solutions of `StagedHierarchySolver`.
+ */
+class IntStagedHierarchySolver[K <: PolymorphicId[K], V <: AnyRef](val lattice: Lattice[V], val defaultResolveValue: V)
+  extends HierarchySolver[K, V] {
+  import IntStagedHierarchySolver._
+  import lattice._
+
+  // key -> id, id -> key
+  private val ids = mutable.HashMap[K, Int]()
+  private val vars = mutable.ArrayBuffer[K]()
+  // hash-consing of elements of products
+  private val elemsPool = mutable.HashMap[Elems, Elems]()
+
+  // id -> not solved yet equation (or null)
+  private var pending = new Array[IntPending](1024)
+  // id -> not solved yet equation in factored form
+  private val factored = mutable.HashMap[Int, Formula[K, V]]()
+  private lazy val formulas = Formulas[K, V](lattice)
+  // id -> ids of equations dependent on id (first dependentsSize(id) elements are used)
+  private var dependents = new Array[Array[Int]](1024)
+  private var dependentsSize = new Array[Int](1024)
+  // queue of solutions to process
+  private var movingIds = new Array[Int](1024)
+  private var movingValues = new Array[AnyRef](1024)
+  private var movingHead = 0
+  private var movingTail = 0
+  // id -> solution
+  private var solved = new Array[AnyRef](0)
+  private var stats = SolveStatistics(0, 0, 0)
+
+  // "api keys", external keys
+  private val keys = mutable.BitSet()
+  // key that are already added to this solver, to prevent duplicates
+  private val added = mutable.BitSet()
+
+  override def addMethodEquation(equation: Equation[K, V]): Unit = {
+    val id = intern(equation.id.mkStable)
+    keys += id
+    add(id, equation.rhs)
+  }
+
+  private def addCallEquation(equation: Equation[K, V]): Unit = {
+    val id = intern(equation.id)
+    // some equations may be passed several times
+    if (added(id)) return
+    added += id
+    add(id, equation.rhs)
+  }
+
+  override def bindCalls(resolveMap: Map[K, Set[K]], apiKeys: Set[K]): Unit = {
+    for (k <- apiKeys)
+      keys += intern(k)
+    for ((call, resolveInfo) <- resolveMap)
+      if (resolveInfo == Set(call)) {
+        // nothing - method is resolved to itself
+      }
+      else if (resolveInfo.isEmpty) {
+        addCallEquation(Equation(call, Final(defaultResolveValue)))
+      }
+      else {
+        val sop: SumOfProducts[K, V] = resolveInfo.map(k => Product(lattice.top, Set(k)))
+        addCallEquation(Equation(call, Pending(sop)))
+      }
+  }
+
+  override def system(): (Iterable[Equation[K, V]], collection.Set[K]) = {
+    val equations = mutable.LinkedHashMap[K, Result[K, V]]()
+    for (i <- movingHead until movingTail)
+      equations(vars(movingIds(i))) = Final(movingValues(i).asInstanceOf[V])
+    for (id <- vars.indices if pending(id) != null)
+      equations(vars(id)) = toPending(pending(id))
+    for (id <- vars.indices; formula <- factored.get(id))
+      equations(vars(id)) = Factored(formula)
+    (equations.map { case (id, rhs) => Equation(id, rhs) }, keys.map(vars).toSet)
+  }
+
+  override def solve(): Map[K, V] = {
+    if (solved.length < vars.size)
+      solved = java.util.Arrays.copyOf(solved, vars.size)
+    val pendingCount = pending.count(_ != null) + factored.size
+    val equations = pendingCount + movingTail - movingHead
+    val firstMoving = movingHead
+    while (movingHead < movingTail) {
+      // moving to solutions
+      val id = movingIds(movingHead)
+      val value = movingValues(movingHead).asInstanceOf[V]
+      movingValues(movingHead) = null
+      movingHead += 1
+      // adding to solution only indexed keys
+      if (keys(id))
+        solved(id) = value
+      // get and remove dependency edges
+      val dependentIds = dependents(id)
+      val size = dependentsSize(id)
+      dependents(id) = null
+      dependentsSize(id) = 0
+      var i = 0
+      while (i < size) {
+        val pendingId = dependentIds(i)
+        val pendingRhs = pending(pendingId)
+        if (pendingRhs != null) {
+          pending(pendingId) = null
+          substitute(pendingRhs, id, value)
+          val acc = normalize(pendingRhs)
+          // substitution leads to answer
+          if (acc != null) enqueue(pendingId, acc)
+          // substitution only simplifies pendingRhs
+          else pending(pendingId) = pendingRhs
+        }
+        else if (factored.nonEmpty) for (formula <- factored.remove(pendingId)) {
+          formulas.substitute(formula, vars(id), value) match {
+            case Const(v) => enqueue(pendingId, v)
+            case f => factored(pendingId) = f
+          }
+        }
+        i += 1
+      }
+    }
+
+    stats = SolveStatistics(equations, pendingCount, movingHead - firstMoving)
+    pending = new Array[IntPending](pending.length)
+    factored.clear()
+    var result = Map[K, V]()
+    for (id <- vars.indices if solved(id) != null)
+      result += (vars(id) -> solved(id).asInstanceOf[V])
+    result
+  }
+
+  override def statistics: SolveStatistics =
+    stats
+
+  private def intern(key: K): Int =
+    ids.getOrElseUpdate(key, {
+      vars += key
+      if (vars.size > pending.length) {
+        val size = pending.length * 2
+        pending = java.util.Arrays.copyOf(pending, size)
+        dependents = java.util.Arrays.copyOf(dependents, size)
+        dependentsSize = java.util.Arrays.copyOf(dependentsSize, size)
+      }
+      vars.size - 1
+    })
+
+  private def add(id: Int, rhs: Result[K, V]): Unit = rhs match {
+    case Final(value) =>
+      enqueue(id, value)
+    case Pending(sum) =>
+      val p = toIntPending(sum)
+      val acc = normalize(p)
+      if (acc != null)
+        enqueue(id, acc)
+      else {
+        val triggers = p.elems.flatMap(_.ids).distinct
+        for (trigger <- triggers)
+          addDependent(trigger, id)
+        pending(id) = p
+      }
+    case Factored(formula) =>
+      for (trigger <- formula.ids.toList.map(intern).distinct)
+        addDependent(trigger, id)
+      factored(id) = formula
+  }
+
+  private def enqueue(id: Int, value: V): Unit = {
+    if (movingTail == movingIds.length) {
+      movingIds = java.util.Arrays.copyOf(movingIds, movingTail * 2)
+      movingValues = java.util.Arrays.copyOf(movingValues, movingTail * 2)
+    }
+    movingIds(movingTail) = id
+    movingValues(movingTail) = value
+    movingTail += 1
+  }
+
+  private def addDependent(trigger: Int, id: Int): Unit = {
+    var ds = dependents(trigger)
+    val size = dependentsSize(trigger)
+    if (ds == null) {
+      ds = new Array[Int](2)
+      dependents(trigger) = ds
+    }
+    else if (size == ds.length) {
+      ds = java.util.Arrays.copyOf(ds, size * 2)
+      dependents(trigger) = ds
+    }
+    ds(size) = id
+    dependentsSize(trigger) = size + 1
+  }
+
+  private def substitute(p: IntPending, id: Int, value: V): Unit = {
+    var i = 0
+    while (i < p.elems.length) {
+      val index = p.elems(i).indexOf(id)
+      if (index >= 0 && (p.substituted(i) & (1 << index)) == 0) {
+        p.upperBounds(i) = meet(value, p.upperBounds(i).asInstanceOf[V])
+        p.substituted(i) |= 1 << index
+      }
+      i += 1
+    }
+  }
+
+  // the same as `Solver.normalize`: a solution or null if an equation is not solved yet
+  private def normalize(p: IntPending): V = {
+    var acc = bot
+    var computableNow = true
+    var i = 0
+    while (i < p.elems.length) {
+      val v = p.upperBounds(i).asInstanceOf[V]
+      if (p.substituted(i) == fullMask(p.elems(i).ids.length) || v == bot) acc = join(acc, v)
+      else computableNow = false
+      i += 1
+    }
+    if (acc == top || computableNow) acc else null.asInstanceOf[V]
+  }
+
+  private def toIntPending(sum: SumOfProducts[K, V]): IntPending = {
+    val products = sum.toArray
+    val elems = products.map { prod =>
+      val e = new Elems(prod.elems.iterator.map(intern).toArray.sorted)
+      elemsPool.getOrElseUpdate(e, e)
+    }
+    new IntPending(products.map(_.upperBound: AnyRef), elems, new Array[Int](products.length))
+  }
+
+  private def toPending(p: IntPending): Pending[K, V] = {
+    val sum = for (i <- p.elems.indices) yield {
+      val ids = p.elems(i).ids
+      val elems = for (j <- ids.indices if (p.substituted(i) & (1 << j)) == 0) yield vars(ids(j))
+      Product(p.upperBounds(i).asInstanceOf[V], elems.toSet)
+    }
+    Pending(sum.toSet)
+  }
+}
+
+object IntStagedHierarchySolver {
+
+  // sorted ids of elements of a product
+  private final class Elems(val ids: Array[Int]) {
+    override val hashCode: Int =
+      java.util.Arrays.hashCode(ids)
+
+    override def equals(o: Any): Boolean = o match {
+      case that: Elems => java.util.Arrays.equals(ids, that.ids)
+      case _ => false
+    }
+
+    def indexOf(id: Int): Int =
+      java.util.Arrays.binarySearch(ids, id) max -1
+  }
+
+  // products of a not solved equation: upper bounds, elements, masks of substituted elements
+  private final class IntPending(val upperBounds: Array[AnyRef], val elems: Array[Elems], val substituted: Array[Int])
+
+  private def fullMask(size: Int): Int =
+    (1 << size) - 1
+}
+
+/**
+ * Query-driven solver. Equations are not added in advance, but loaded on demand:
+ * solving a set of keys loads and solves only equations these keys (transitively) depend on.
+ * Solutions of all loaded keys are memoized, so subsequent queries load and solve only new parts of the system.
+ * For each key the result is the same as the result of `StagedHierarchySolver` for the whole system.
+ *
+ * @param lattice lattice of values
+ * @param load loader of an equation for a key: normalized right hand side and whether a key is an "api key",
+ *             None if there is no equation for a key
+ */
+class LazySolver[K <: PolymorphicId[K], V](val lattice: Lattice[V], load: K => Option[(Result[K, V], Boolean)]) extends Solver[K, V] {
+  // k -> solution, None - solution is not reachable (unknown key or cyclic dependency)
+  private val memo = mutable.HashMap[K, Option[V]]()
+  // "api keys" among loaded keys
+  private val apiKeys = mutable.Set[K]()
+
+  /**
+   * @param queries keys to solve
+   * @return solutions for those queried keys which are solved and are "api keys"
+   */
+  def solve(queries: Iterable[K]): Map[K, V] = {
+    propagate(loadCone(queries))
+    queries.iterator.filter(apiKeys).flatMap(k => memo(k).map(k -> _)).toMap
+  }
+
+  // loads not memoized keys reachable from queries
+  private def loadCone(queries: Iterable[K]): mutable.LinkedHashMap[K, Result[K, V]] = {
+    val cone = mutable.LinkedHashMap[K, Result[K, V]]()
+    val stack = mutable.Stack[K]()
+    queries.foreach(stack.push)
+    while (stack.nonEmpty) {
+      val id = stack.pop()
+      if (!memo.contains(id) && !cone.contains(id))
+        load(id) match {
+          case None =>
+            memo(id) = None
+          case Some((rhs, api)) =>
+            if (api) apiKeys += id
+            cone(id) = rhs
+            triggers(rhs).foreach(stack.push)
+        }
+    }
+    cone
+  }
+
+  // the same propagation as in `StagedHierarchySolver`, memoized solutions are known from the start
+  private def propagate(cone: mutable.LinkedHashMap[K, Result[K, V]]): Unit = {
+    val dependencies = mutable.HashMap[K, Set[K]]()
+    val moving = mutable.Queue[(K, V)]()
+    val pending = mutable.HashMap[K, Result[K, V]]()
+    val solved = mutable.HashMap[K, V]()
+    val known = mutable.Set[K]()
+
+    for ((id, rhs) <- cone) rhs match {
+      case Final(value) =>
+        moving enqueue (id -> value)
+      case p =>
+        for (trigger <- triggers(p)) {
+          dependencies(trigger) = dependencies.getOrElse(trigger, Set()) + id
+          for (Some(value) <- memo.get(trigger) if known.add(trigger))
+            moving enqueue (trigger -> value)
+        }
+        pending(id) = p
+    }
+
+    while (moving.nonEmpty) {
+      val (id, value) = moving.dequeue()
+      if (cone.contains(id))
+        solved(id) = value
+      for {
+        dependentIds <- dependencies.remove(id)
+        pendingId <- dependentIds
+        pendingRhs <- pending.remove(pendingId)
+      } substitute(pendingRhs, id, value) match {
+        case Final(v) => moving enqueue (pendingId -> v)
+        case p => pending(pendingId) = p
+      }
+    }
+
+    for (id <- cone.keys)
+      memo(id) = solved.get(id)
+  }
 }
@@ -52,6 +52,9 @@ object Statistics extends FabaProcessor {
       case Pending(sop) =>
         eqs += 1
         dependencies(key) = dependencies.getOrElse(key, Set()) ++ sop.flatMap(_.elems)
+      case Factored(formula) =>
+        eqs += 1
+        dependencies(key) = dependencies.getOrElse(key, Set()) ++ formula.ids
       case Final(_) =>
         eqs += 1
         //cardinalities(0) += 1
@@ -10,9 +10,14 @@ import faba.analysis.resultInfluence._
 import faba.analysis.resultOrigins._
 import faba.analysis.combined._
 
+import faba.budget._
 import faba.calls._
 import faba.data._
+import faba.dedupe._
 import faba.engine._
+import faba.index.IndexRecorder
+import faba.jfr._
+import faba.profile._
 import faba.source._
 
 import org.objectweb.asm.Opcodes._
@@ -20,6 +25,9 @@ import org.objectweb.asm._
 import org.objectweb.asm.tree.MethodNode
 import org.objectweb.asm.tree.analysis.{Frame, Value => ASMValue}
 
+import java.util.concurrent.{Callable, ForkJoinPool}
+
+import scala.collection.mutable.ListBuffer
 import scala.language.existentials
 
 /**
@@ -33,46 +41,95 @@ case class ExtraContext(referenceResult: Boolean,
                         booleanResult: Boolean,
                         parameterTypes: Array[Type])
 
+/**
+ * A complex method which ran out of a budget of analyses, it is analyzed again by [[faba.FabaProcessor#escalate]].
+ *
+ * @param method deferred method
+ * @param budget budget of the last attempt
+ * @param attempt equations of the last attempt (analyses which ran out of the budget gave Top)
+ * @param analyze analyzes the method within a budget and records equations
+ */
+case class DeferredMethod(method: Method, budget: Budget, attempt: IndexRecorder, analyze: Budget => IndexRecorder)
+
 /**
  * Default faba processor. A lot of fine-grained method to override.
  **/
 trait FabaProcessor extends Processor {
 
-  var extras = Map[Method, MethodExtra]()
+  val extras = new MethodExtras
+
+  /**
+   * Profiler of analyses of methods, nothing is measured by default.
+   */
+  def profiler: Profiler = Profiler.Off
+
+  /**
+   * Budgets of analyses of complex methods, a single attempt with the default budget by default.
+   */
+  def budgets: Budgets = Budgets.Off
+
+  /**
+   * Analyzed method bodies reused by identical bodies, every method is analyzed by default.
+   */
+  def bodies: MethodBodies = MethodBodies.Off
+
+  /**
+   * Methods which ran out of a budget, waiting for [[escalate]].
+   */
+  val deferred = ListBuffer[DeferredMethod]()
+
+  // analyses stopped by a budget so far
+  private[faba] var limitHits = 0
+
+  // methods analyzed again by escalation so far, their equations depend on wall-clock deadlines
+  private[faba] var escalations = 0
 
   override def processClass(classReader: ClassReader): Unit =
-    classReader.accept(new ClassVisitor(ASM5) {
-      var stableClass = false
-      var classInfo: ClassInfo = _
-
-      override def visit(version: Int, access: Int, name: String, signature: String, superName: String, interfaces: Array[String]) {
-        stableClass = (access & ACC_FINAL) != 0
-        classInfo = ClassInfo(access, classReader.getClassName, superName, interfaces.toList)
-        super.visit(version, access, name, signature, superName, interfaces)
-        mapClassInfo(this.classInfo)
-      }
+    Flight.indexClass(classReader.getClassName) {
+      classReader.accept(new ClassVisitor(ASM5) {
+        var stableClass = false
+        var classInfo: ClassInfo = _
+
+        override def visit(version: Int, access: Int, name: String, signature: String, superName: String, interfaces: Array[String]) {
+          stableClass = (access & ACC_FINAL) != 0
+          classInfo = ClassInfo(access, Symbols.string(classReader.getClassName), Symbols.string(superName), interfaces.toList.map(Symbols.string))
+          super.visit(version, access, name, signature, superName, interfaces)
+          mapClassInfo(this.classInfo)
+        }
 
-      override def visitMethod(access: Int, name: String, desc: String, signature: String, exceptions: Array[String]) = {
-        val node = new MethodNode(ASM5, access, name, desc, signature, exceptions)
+        override def visitMethod(access: Int, name: String, desc: String, signature: String, exceptions: Array[String]) = {
+          val node = new MethodNode(ASM5, access, name, desc, signature, exceptions)
 
-        new MethodVisitor(ASM5, node) {
-          var jsr = false
-          override def visitEnd(): Unit = {
-            super.visitEnd()
-            mapMethodInfo(MethodInfo(classInfo, access, name, desc))
-            processMethod(classReader.getClassName, node, stableClass, jsr)
-          }
+          new MethodVisitor(ASM5, node) {
+            var jsr = false
+            override def visitEnd(): Unit = {
+              super.visitEnd()
+              mapMethodInfo(MethodInfo(classInfo, access, Symbols.string(name), Symbols.string(desc)))
+              processMethod(classReader.getClassName, node, stableClass, jsr)
+            }
 
-          override def visitJumpInsn(opcode: Int, label: Label) {
-            if (opcode == Opcodes.JSR)
-              jsr = true
-            super.visitJumpInsn(opcode, label)
+            override def visitJumpInsn(opcode: Int, label: Label) {
+              if (opcode == Opcodes.JSR)
+                jsr = true
+              super.visitJumpInsn(opcode, label)
+            }
           }
         }
-      }
-    }, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES)
+      }, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES)
+    }
 
   def processMethod(className: String, methodNode: MethodNode, stableClass: Boolean, jsr: Boolean) {
+    val method = Method(className, methodNode.name, methodNode.desc)
+    mapMethodExtra(method, MethodExtra(Option(methodNode.signature), methodNode.access))
+    bodies.analyze(className, methodNode, this) { processor =>
+      processor.analyzeMethod(method, className, methodNode, jsr)
+    }
+  }
+
+  /**
+   * Runs all analyses of a method and passes resulting equations to handlers.
+   */
+  def analyzeMethod(method: Method, className: String, methodNode: MethodNode, jsr: Boolean) {
     val argumentTypes = Type.getArgumentTypes(methodNode.desc)
     val resultType = Type.getReturnType(methodNode.desc)
     val resultSort = resultType.getSort
@@ -80,9 +137,6 @@ trait FabaProcessor extends Processor {
     val isReferenceResult = resultSort == Type.OBJECT || resultSort == Type.ARRAY
     val isBooleanResult = Type.BOOLEAN_TYPE == resultType
 
-    val method = Method(className, methodNode.name, methodNode.desc)
-    extras = extras.updated(method, MethodExtra(Option(methodNode.signature), methodNode.access))
-
     purityEquation(method, methodNode).foreach(handlePurityEquation)
 
     if (argumentTypes.length == 0 && !(isReferenceResult || isBooleanResult)) {
@@ -92,13 +146,18 @@ trait FabaProcessor extends Processor {
     var added = false
     val graph = buildCFG(className, methodNode, jsr)
 
-    if (graph.transitions.nonEmpty) {
-      val dfs = buildDFSTree(graph.transitions)
-      val complex = dfs.backEdges.nonEmpty || graph.transitions.exists(_.size > 1)
+    if (graph.size > 0) {
+      val dfs = buildDFSTree(graph)
+      val complex = dfs.cyclic || graph.branching
       if (complex) {
-        val reducible = dfs.backEdges.isEmpty || isReducible(graph, dfs)
+        val reducible = !dfs.cyclic || isReducible(graph, dfs)
         if (reducible) {
-          handleComplexMethod(method, className, methodNode, dfs, argumentTypes, graph, isReferenceResult, isBooleanResult, jsr)
+          if (budgets.adaptive)
+            analyzeWithin(method, budgets.initial) { (budget, processor) =>
+              processor.handleComplexMethod(method, className, methodNode, dfs, argumentTypes, graph, isReferenceResult, isBooleanResult, jsr, budget)
+            }
+          else
+            handleComplexMethod(method, className, methodNode, dfs, argumentTypes, graph, isReferenceResult, isBooleanResult, jsr, budgets.initial)
           added = true
         }
       } else {
@@ -135,7 +194,9 @@ trait FabaProcessor extends Processor {
     val analyzer = new CombinedSingleAnalysis(context)
 
     // analyzer pass
+    val probe = profiler.start()
     analyzer.analyze()
+    probe.stop(context.method, AnalysisKind.Combined)
 
     // getting equations from analyzer
     if (extraContext.referenceResult) {
@@ -165,15 +226,16 @@ trait FabaProcessor extends Processor {
                           graph: ControlFlowGraph,
                           isReferenceResult: Boolean,
                           isBooleanResult: Boolean,
-                          jsr: Boolean) {
+                          jsr: Boolean,
+                          budget: Budget = Budget.Default) {
     // TODO - for #39
-    val cycle = dfs.backEdges.nonEmpty
+    val cycle = dfs.cyclic
     // leaking params will be taken for further decisions
     lazy val leaking = leakingParameters(className, methodNode, jsr)
     lazy val resultOrigins = buildResultOrigins(className, methodNode, leaking.frames, graph)
     lazy val parameterToResult = ParameterToResultFlow.analyze(methodNode, leaking, resultOrigins)
     //val context =  Context(method, methodNode, graph, resolveDirection, dfs)
-    val context =  Context(method, methodNode, graph, dfs)
+    val context =  Context(method, methodNode, graph, dfs, budget)
 
     // todo - do we need equations for boolean results?
     lazy val resultEquation: Equation[Key, Value] = outContractEquation(context, resultOrigins)
@@ -259,78 +321,164 @@ trait FabaProcessor extends Processor {
     }
   }
 
-  def buildCFG(className: String, methodNode: MethodNode, jsr: Boolean): ControlFlowGraph =
-    controlFlow.buildControlFlowGraph(className, methodNode, jsr)
+  def buildCFG(className: String, methodNode: MethodNode, jsr: Boolean): ControlFlowGraph = {
+    val probe = profiler.start()
+    val graph = controlFlow.buildControlFlowGraph(className, methodNode, jsr)
+    probe.stop(Method(className, methodNode.name, methodNode.desc), AnalysisKind.ControlFlow)
+    graph
+  }
 
-  def leakingParameters(className: String, methodNode: MethodNode, jsr: Boolean) =
-    LeakingParameters.build(className, methodNode, jsr)
+  def leakingParameters(className: String, methodNode: MethodNode, jsr: Boolean) = {
+    val probe = profiler.start()
+    val leaking = LeakingParameters.build(className, methodNode, jsr)
+    probe.stop(Method(className, methodNode.name, methodNode.desc), AnalysisKind.LeakingParameters)
+    leaking
+  }
 
   // build other result origins
-  def buildResultOrigins(className: String, methodNode: MethodNode, frames: Array[Frame[ParamsValue]], graph: ControlFlowGraph): Origins =
-    OriginsAnalysis.resultOrigins(frames.asInstanceOf[Array[Frame[ASMValue]]], methodNode, graph)
+  def buildResultOrigins(className: String, methodNode: MethodNode, frames: Array[Frame[ParamsValue]], graph: ControlFlowGraph): Origins = {
+    val probe = profiler.start()
+    val origins = OriginsAnalysis.resultOrigins(frames.asInstanceOf[Array[Frame[ASMValue]]], methodNode, graph)
+    probe.stop(Method(className, methodNode.name, methodNode.desc), AnalysisKind.ResultOrigins)
+    origins
+  }
 
-  def buildDFSTree(transitions: Array[List[Int]]): DFSTree =
-    controlFlow.buildDFSTree(transitions)
+  def buildDFSTree(graph: ControlFlowGraph): DFSTree =
+    controlFlow.buildDFSTree(graph)
 
   def isReducible(graph: ControlFlowGraph, dfs: DFSTree): Boolean =
     controlFlow.reducible(graph, dfs)
 
-  def purityEquation(method: Method, methodNode: MethodNode): Option[Equation[Key, Value]] =
-    PurityAnalysis.analyze(method, methodNode)
+  def purityEquation(method: Method, methodNode: MethodNode): Option[Equation[Key, Value]] = {
+    val probe = profiler.start()
+    val equation = PurityAnalysis.analyze(method, methodNode)
+    probe.stop(method, AnalysisKind.Purity, rhs = equation.map(_.rhs).orNull)
+    equation
+  }
 
   def notNullParamEquation(context: Context, i: Int): (Equation[Key, Value], Boolean) = {
     val analyser = new NotNullParameterAnalysis(context, In(i))
-    try {
-      val eq = analyser.analyze()
-      (eq, analyser.npe)
-    } catch {
-      case _: LimitReachedException =>
-        (Equation(analyser.aKey, Final(Values.Top)), analyser.npe)
-    }
+    (staged(analyser, AnalysisKind.NotNullParam)(analyser.analyze()), analyser.npe)
   }
 
   def nullableParamEquation(context: Context, i: Int): Equation[Key, Value] = {
     val analyser = new NullableParameterAnalysis(context, In(i))
-    try {
-      analyser.analyze()
-    } catch {
-      case _: LimitReachedException =>
-        Equation(analyser.aKey, Final(Values.Top))
-    }
+    staged(analyser, AnalysisKind.NullableParam)(analyser.analyze())
   }
 
   def notNullContractEquation(context: Context, resultOrigins: Origins, i: Int): Equation[Key, Value] = {
     val analyser = new ResultAnalysis(context, InOut(i, Values.NotNull), resultOrigins)
-    try {
-      analyser.analyze()
-    } catch {
-      case _: LimitReachedException =>
-        Equation(analyser.aKey, Final(Values.Top))
-    }
+    staged(analyser, AnalysisKind.NotNullContract)(analyser.analyze())
   }
 
   def nullContractEquation(context: Context, resultOrigins: Origins, i: Int): Equation[Key, Value] = {
     val analyser = new ResultAnalysis(context, InOut(i, Values.Null), resultOrigins)
-    try {
-      analyser.analyze()
-    } catch {
-      case _: LimitReachedException =>
-        Equation(analyser.aKey, Final(Values.Top))
-    }
+    staged(analyser, AnalysisKind.NullContract)(analyser.analyze())
   }
 
   def outContractEquation(context: Context, resultOrigins: Origins): Equation[Key, Value] = {
     val analyser = new ResultAnalysis(context, Out, resultOrigins)
-    try {
-      analyser.analyze()
-    } catch {
-      case _: LimitReachedException =>
-        Equation(analyser.aKey, Final(Values.Top))
+    staged(analyser, AnalysisKind.OutContract)(analyser.analyze())
+  }
+
+  def nullableResultEquation(className: String, methodNode: MethodNode, method: Method, origins: Origins, jsr: Boolean): Equation[Key, Value] = {
+    val probe = profiler.start()
+    val rhs = NullableResultAnalysis.analyze(className, methodNode, origins.instructions, jsr)
+    probe.stop(method, AnalysisKind.NullableResult, rhs = rhs)
+    Equation(Key(method, Out, ResolveDirection.Upward), rhs)
+  }
+
+  /**
+   * Analyzes a method within a budget, equations are recorded first.
+   * If some analysis runs out of the budget and the budget may be escalated, the method is deferred,
+   * otherwise recorded equations are passed to handlers.
+   */
+  private def analyzeWithin(method: Method, budget: Budget)(handle: (Budget, FabaProcessor) => Unit): Unit = {
+    val analyze = { budget: Budget =>
+      val recorder = new IndexRecorder(profiler, budgets, bodies)
+      handle(budget, recorder)
+      recorder
     }
+    val attempt = analyze(budget)
+    if (attempt.limitHits > 0 && !budgets.atMax(budget))
+      deferred += DeferredMethod(method, budget, attempt, analyze)
+    else
+      attempt.replay(this)
+  }
+
+  /**
+   * Escalation pass: deferred methods are analyzed again, round by round.
+   * Each round analyzes all methods deferred so far with their next budgets, methods which run out of them are deferred
+   * to the next round. Rounds stop at the maximal budget, or beyond the floor of [[budgets]] when its time allowance
+   * is spent; the last attempt of a method is passed to handlers. An attempt beyond the floor which was cut off
+   * while spending the rest of the allowance may be stopped by the deadline, so the previous attempt is passed instead;
+   * a complete attempt is passed anyway.
+   * Attempts are independent (each one is recorded by its own recorder), so with several threads attempts of a round
+   * run in parallel, results are passed to handlers in order of deferral anyway.
+   *
+   * @param threads number of threads analyzing attempts of a round
+   */
+  def escalate(threads: Int = 1): Unit = {
+    val pool = if (threads > 1) new ForkJoinPool(threads) else null
+    try
+      while (deferred.nonEmpty) {
+        val round = deferred.toList
+        deferred.clear()
+        val attempts = round.map { d =>
+          if (pool == null)
+            () => escalated(d)
+          else {
+            val task = pool.submit(new Callable[Option[(Budget, IndexRecorder)]] {
+              override def call() = escalated(d)
+            })
+            () => task.join()
+          }
+        }
+        for ((d, attempt) <- round.zip(attempts)) attempt() match {
+          case Some((budget, attempt)) =>
+            escalations += 1
+            if (attempt.limitHits == 0)
+              attempt.replay(this)
+            else if (budgets.beyondFloor(budget) && budgets.exhausted)
+              d.attempt.replay(this)
+            else
+              // the next round decides whether there is a next attempt
+              deferred += d.copy(budget = budget, attempt = attempt)
+          case None =>
+            d.attempt.replay(this)
+        }
+      }
+    finally
+      if (pool != null) pool.shutdown()
   }
 
-  def nullableResultEquation(className: String, methodNode: MethodNode, method: Method, origins: Origins, jsr: Boolean): Equation[Key, Value] =
-    Equation(Key(method, Out, ResolveDirection.Upward), NullableResultAnalysis.analyze(className, methodNode, origins.instructions, jsr))
+  // the next attempt of a deferred method (None if there is none), only attempts beyond the floor spend the allowance
+  private def escalated(d: DeferredMethod): Option[(Budget, IndexRecorder)] =
+    budgets.next(d.budget).map { budget =>
+      val start = System.nanoTime()
+      val attempt = d.analyze(budget)
+      if (budgets.beyondFloor(budget))
+        budgets.charge(System.nanoTime() - start)
+      (budget, attempt)
+    }
+
+  // runs a staged analysis, an analysis stopped by its budget gives Top
+  private def staged(analyser: StagedScAnalysis, kind: AnalysisKind.Value)(analyze: => Equation[Key, Value]): Equation[Key, Value] = {
+    val probe = profiler.start()
+    var limitReached = false
+    val equation =
+      try {
+        analyze
+      } catch {
+        case _: LimitReachedException =>
+          limitReached = true
+          limitHits += 1
+          Flight.limitHit(analyser.context.method, kind.toString, analyser.steps)
+          Equation(analyser.aKey, Final(Values.Top))
+      }
+    probe.stop(analyser.context.method, kind, analyser.steps, equation.rhs, limitReached)
+    equation
+  }
 
   def handlePurityEquation(eq: Equation[Key, Value]): Unit = ()
   def handleNotNullParamEquation(eq: Equation[Key, Value]): Unit = ()
@@ -352,4 +500,13 @@ trait FabaProcessor extends Processor {
    */
   def mapMethodInfo(methodInfo: MethodInfo) {}
 
+  /**
+   *
+   * @param method method being indexed
+   * @param extra additional method info needed to dump annotations
+   */
+  def mapMethodExtra(method: Method, extra: MethodExtra) {
+    extras(method) = extra
+  }
+
 }
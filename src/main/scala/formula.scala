@@ -0,0 +1,250 @@
+package faba.engine
+
+import scala.collection.mutable
+import scala.runtime.ScalaRunTime
+
+/**
+ * Factored "lattice expression": a tree of meets and joins over identifiers and constants,
+ * subtrees are shared between formulas built from each other.
+ * Unlike [[faba.engine.SumOfProducts]] a formula is not expanded into disjunctive normal form,
+ * so its size grows with the size of an expression, not with the number of products of its expansion.
+ * Formulas are built by [[faba.engine.Formulas]], which keeps them flat and simplified.
+ *
+ * @tparam K type of identifiers (variables, keys)
+ * @tparam V type of values (answers)
+ */
+sealed trait Formula[K, V] {
+  /**
+   * Number of nodes of this formula as a tree (saturated at Int.MaxValue)
+   */
+  val size: Int
+
+  /**
+   * Identifiers this formula depends on
+   */
+  def ids: Set[K] = {
+    val result = mutable.Set[K]()
+    val visited = java.util.Collections.newSetFromMap(new java.util.IdentityHashMap[Formula[K, V], java.lang.Boolean]())
+    def collect(f: Formula[K, V]): Unit =
+      if (visited.add(f)) f match {
+        case Atom(id) => result += id
+        case Const(_) =>
+        case Meet(args) => args.foreach(collect)
+        case Join(args) => args.foreach(collect)
+      }
+    collect(this)
+    result.toSet
+  }
+}
+
+/**
+ * Identifier (variable)
+ */
+case class Atom[K, V](id: K) extends Formula[K, V] {
+  override val size = 1
+}
+
+/**
+ * Known value, other than neutral element of an enclosing meet/join
+ */
+case class Const[K, V](value: V) extends Formula[K, V] {
+  override val size = 1
+}
+
+/**
+ * Meet (AND) of at least two arguments, arguments are not meets themselves
+ */
+case class Meet[K, V](args: Set[Formula[K, V]]) extends Formula[K, V] {
+  override val size = Formula.size(args)
+  // formulas are hashed by sets of arguments
+  override val hashCode: Int = ScalaRunTime._hashCode(this)
+}
+
+/**
+ * Join (OR) of at least two arguments, arguments are not joins themselves
+ */
+case class Join[K, V](args: Set[Formula[K, V]]) extends Formula[K, V] {
+  override val size = Formula.size(args)
+  override val hashCode: Int = ScalaRunTime._hashCode(this)
+}
+
+object Formula {
+  private[engine] def size(args: Set[_ <: Formula[_, _]]): Int = {
+    var size = 1L
+    for (arg <- args) size += arg.size
+    size.min(Int.MaxValue).toInt
+  }
+}
+
+/**
+ * Smart constructors of formulas over a lattice. Constructed formulas are simplified:
+ *  - nested meets (joins) are flattened, duplicate arguments are removed
+ *  - constants are folded, bottom (top) absorbs a meet (join)
+ *  - absorbed arguments are dropped: `a & (a | b) = a`, `a | (a & b) = a` and
+ *    `(a | b) & (a | b | c) = a | b`, `(a & b) | (a & b & c) = a & b`
+ *  - in a distributive lattice common arguments of meets are factored out of a join: `(a & b) | (a & c) = a & (b | c)`
+ *
+ * This is what keeps formulas of typical code small: a result of `if (x != null) foo(p); rest`
+ * is `(foo & rest) | rest`, which is just `rest`, and a result of `if (b) foo(p) else bar(p); rest`
+ * is `rest & (foo | bar)`, while sums of products double with every such `if`.
+ * Factoring is not sound in a lattice which is not distributive, such as the flat lattice of all `Values`
+ * (`(Null & NotNull) | (Null & True)` is `Bot`, while `Null & (NotNull | True)` is `Null`),
+ * so there a join of meets is kept as is.
+ *
+ * @param lattice lattice of values
+ * @param distributive the lattice is distributive (two-element lattices of parameter analyses are)
+ * @tparam K type of identifiers (variables, keys)
+ * @tparam V type of values (answers)
+ */
+case class Formulas[K, V](lattice: Lattice[V], distributive: Boolean = false) {
+
+  def atom(id: K): Formula[K, V] =
+    Atom(id)
+
+  def meet(x: Formula[K, V], y: Formula[K, V]): Formula[K, V] =
+    meetAll(List(x, y))
+
+  def join(x: Formula[K, V], y: Formula[K, V]): Formula[K, V] =
+    joinAll(List(x, y))
+
+  def meetAll(formulas: Iterable[Formula[K, V]]): Formula[K, V] = {
+    var const = lattice.top
+    val args = mutable.LinkedHashSet[Formula[K, V]]()
+    def add(f: Formula[K, V]): Unit = f match {
+      case Const(v) => const = lattice.meet(const, v)
+      case Meet(fArgs) => fArgs.foreach(add)
+      case _ => args += f
+    }
+    formulas.foreach(add)
+    if (const == lattice.bot)
+      Const(lattice.bot)
+    else
+      make(absorb(args, { case Join(jArgs) => jArgs }), const, lattice.top, Meet[K, V])
+  }
+
+  def joinAll(formulas: Iterable[Formula[K, V]]): Formula[K, V] = {
+    var const = lattice.bot
+    val args = mutable.LinkedHashSet[Formula[K, V]]()
+    def add(f: Formula[K, V]): Unit = f match {
+      case Const(v) => const = lattice.join(const, v)
+      case Join(fArgs) => fArgs.foreach(add)
+      case _ => args += f
+    }
+    formulas.foreach(add)
+    if (const == lattice.top)
+      Const(lattice.top)
+    else {
+      val rest = absorb(args, { case Meet(mArgs) => mArgs })
+      if (distributive && const == lattice.bot && rest.size > 1) factor(rest) else make(rest, const, lattice.bot, Join[K, V])
+    }
+  }
+
+  /**
+   * A right hand side of an equation as a formula.
+   */
+  def fromResult(rhs: Result[K, V]): Formula[K, V] = rhs match {
+    case Final(v) =>
+      Const(v)
+    case Pending(sum) =>
+      joinAll(sum.toList.map(p => meetAll(Const[K, V](p.upperBound) :: p.elems.toList.map(atom))))
+    case Factored(formula) =>
+      formula
+  }
+
+  /**
+   * Substitutes a value for an identifier, unchanged subformulas are reused.
+   */
+  def substitute(formula: Formula[K, V], id: K, value: V): Formula[K, V] = {
+    val memo = new java.util.IdentityHashMap[Formula[K, V], Formula[K, V]]()
+    def subst(f: Formula[K, V]): Formula[K, V] = f match {
+      case Atom(`id`) =>
+        Const(value)
+      case Atom(_) | Const(_) =>
+        f
+      case Meet(args) =>
+        rebuild(f, args, meetAll)
+      case Join(args) =>
+        rebuild(f, args, joinAll)
+    }
+    def rebuild(f: Formula[K, V], args: Set[Formula[K, V]], mk: Iterable[Formula[K, V]] => Formula[K, V]): Formula[K, V] = {
+      var result = memo.get(f)
+      if (result == null) {
+        val newArgs = args.toList.map(subst)
+        result = if ((newArgs, args).zipped.forall(_ eq _)) f else mk(newArgs)
+        memo.put(f, result)
+      }
+      result
+    }
+    subst(formula)
+  }
+
+  /**
+   * Expansion of a formula into a sum of products, None if the expansion is larger than `Pending` allows.
+   */
+  def toSumOfProducts(formula: Formula[K, V]): Option[SumOfProducts[K, V]] = {
+    def fits(sum: SumOfProducts[K, V]): Boolean =
+      sum.iterator.map(_.elems.size).sum <= Pending.limit
+    def expand(f: Formula[K, V]): Option[SumOfProducts[K, V]] = f match {
+      case Atom(id) =>
+        Some(Set(Product(lattice.top, Set(id))))
+      case Const(v) =>
+        Some(Set(Product(v, Set())))
+      case Join(args) =>
+        args.foldLeft(Option(Set[Product[K, V]]())) { (acc, arg) =>
+          for (sum1 <- acc; sum2 <- expand(arg); sum = sum1 ++ sum2 if fits(sum)) yield sum
+        }
+      case Meet(args) =>
+        args.foldLeft(Option(Set(Product(lattice.top, Set[K]())))) { (acc, arg) =>
+          for {
+            sum1 <- acc
+            sum2 <- expand(arg)
+            sum = for (p1 <- sum1; p2 <- sum2) yield Product(lattice.meet(p1.upperBound, p2.upperBound), p1.elems ++ p2.elems)
+            if fits(sum)
+          } yield sum
+        }
+    }
+    expand(formula)
+  }
+
+  // drops arguments absorbed by other arguments: an argument with (dual) arguments `xs` is absorbed
+  // if some of `xs` is an argument itself or if another argument has a strict subset of `xs` as (dual) arguments
+  private def absorb(args: mutable.LinkedHashSet[Formula[K, V]],
+                     dualArgs: PartialFunction[Formula[K, V], Set[Formula[K, V]]]): Iterable[Formula[K, V]] = {
+    val duals = args.toList.collect(dualArgs)
+    if (duals.isEmpty)
+      args
+    else {
+      val absorbed = mutable.Set[Formula[K, V]]()
+      for (f <- args if dualArgs.isDefinedAt(f)) {
+        val xs = dualArgs(f)
+        if (xs.exists(args) || duals.exists(ys => ys.size < xs.size && ys.subsetOf(xs)))
+          absorbed += f
+      }
+      if (absorbed.isEmpty) args else args.filterNot(absorbed)
+    }
+  }
+
+  // `(a & b & x) | (a & c & y) = a & ((b & x) | (c & y))`, a join of branches with a common continuation
+  // is a meet of the continuation and of a join of the branches
+  private def factor(args: Iterable[Formula[K, V]]): Formula[K, V] = {
+    def conjuncts(f: Formula[K, V]): Set[Formula[K, V]] = f match {
+      case Meet(mArgs) => mArgs
+      case _ => Set(f)
+    }
+    val common = args.map(conjuncts).reduce(_ intersect _)
+    if (common.isEmpty)
+      Join(args.toSet)
+    else
+      meetAll(common.toList :+ joinAll(args.map(f => meetAll(conjuncts(f) -- common))))
+  }
+
+  private def make(args: Iterable[Formula[K, V]], const: V, neutral: V,
+                   mk: Set[Formula[K, V]] => Formula[K, V]): Formula[K, V] = {
+    val all = if (const == neutral) args.toSet else args.toSet + Const[K, V](const)
+    all.size match {
+      case 0 => Const(neutral)
+      case 1 => all.head
+      case _ => mk(all)
+    }
+  }
+}
@@ -0,0 +1,341 @@
+package faba.calls
+
+import java.io.{DataInputStream, DataOutputStream, IOException}
+
+import scala.collection.mutable
+
+/**
+ * Concrete (not abstract) declarations of a method (a name and a descriptor) in a hierarchy.
+ *
+ * @param ids ids of declaring classes, sorted
+ * @param infos declarations, in the order of `ids`
+ */
+final class Declarations(val ids: Array[Int], val infos: Array[MethodInfo]) {
+  def get(id: Int): MethodInfo = {
+    val i = java.util.Arrays.binarySearch(ids, id)
+    if (i >= 0) infos(i) else null
+  }
+}
+
+/**
+ * Dense index of a class hierarchy, built by [[faba.calls.CallResolver#buildClassHierarchy]].
+ *
+ * Classes are numbered: declared classes first, then classes which are only referenced (as a superclass
+ * or as an interface). Children of a class (subclasses, implementing classes and subinterfaces) are compressed
+ * sparse rows. Classes are numbered again in preorder of the tree of superclasses, so all subclasses of a class
+ * form an interval of preorder positions: a subclass test is O(1), and inheritors of a class are listed without
+ * a search (only implementations of interfaces are followed edge by edge).
+ * Concrete declarations of methods are kept in a table by name and descriptor, so a declaration visible in a class
+ * is found by a walk over superclasses of the class with a lookup of an int per superclass.
+ *
+ * The index may be written and read back (see [[faba.calls.HierarchyIndex#write]]).
+ *
+ * @param classInfos declared classes by id
+ * @param names names of all classes by id (declared ones first)
+ * @param superIds id of a superclass of a declared class, -1 if there is none
+ * @param childStarts children of a class `i` are `children(childStarts(i) until childStarts(i + 1))`
+ * @param children ids of children
+ * @param pre preorder position of a class in the tree of superclasses
+ * @param ends end (exclusive) of the interval of positions of subclasses of a class
+ * @param order class id by preorder position
+ * @param methods declarations of methods by name and descriptor
+ */
+final class HierarchyIndex private(val classInfos: Array[ClassInfo],
+                                   val names: Array[String],
+                                   superIds: Array[Int],
+                                   childStarts: Array[Int],
+                                   children: Array[Int],
+                                   pre: Array[Int],
+                                   ends: Array[Int],
+                                   order: Array[Int],
+                                   methods: mutable.HashMap[String, mutable.HashMap[String, Declarations]]) {
+  private val ids = {
+    val map = new java.util.HashMap[String, Integer](names.length * 2)
+    for (i <- names.indices) map.put(names(i), i)
+    map
+  }
+
+  def size: Int =
+    names.length
+
+  /**
+   * @return id of a class, -1 if a class is neither declared nor referenced
+   */
+  def id(name: String): Int = {
+    val id = ids.get(name)
+    if (id == null) -1 else id
+  }
+
+  def declared(id: Int): Boolean =
+    id < classInfos.length
+
+  /**
+   * A declared class which is not an interface.
+   */
+  def isClass(id: Int): Boolean =
+    declared(id) && CallUtils.notInterface(classInfos(id).access)
+
+  /**
+   * @return true if `sub` is `cls` or a (transitive) subclass of `cls`
+   */
+  def isSubclass(sub: Int, cls: Int): Boolean =
+    pre(cls) <= pre(sub) && pre(sub) < ends(cls)
+
+  /**
+   * All inheritors of a class: subclasses, implementations (and their subclasses) and subinterfaces of interfaces,
+   * including the class itself.
+   */
+  def inheritors(id: Int): Array[Int] = {
+    val result = mutable.ArrayBuilder.make[Int]()
+    // positions already listed, only needed when implementations are followed
+    var listed: java.util.BitSet = null
+    val stack = mutable.ArrayStack[Int](id)
+    while (stack.nonEmpty) {
+      val x = stack.pop()
+      var p = pre(x)
+      if (listed == null || !listed.get(p))
+        while (p < ends(x)) {
+          if (listed == null || !listed.get(p)) {
+            val y = order(p)
+            result += y
+            if (listed != null) listed.set(p)
+            var k = childStarts(y)
+            while (k < childStarts(y + 1)) {
+              val child = children(k)
+              // subclasses are listed by the interval
+              if (superIds(child) != y || !isClass(child)) {
+                if (listed == null) {
+                  listed = new java.util.BitSet(size)
+                  listed.set(pre(id), p + 1)
+                }
+                stack.push(child)
+              }
+              k += 1
+            }
+          }
+          p += 1
+        }
+    }
+    result.result()
+  }
+
+  /**
+   * Inheritors (see above) of classes given by names, names which are not in the index are inheritors of themselves.
+   */
+  def inheritors(classNames: Iterable[String]): Set[String] = {
+    val result = mutable.HashSet[String]()
+    for (name <- classNames) id(name) match {
+      case -1 => result += name
+      case i => inheritors(i).foreach(result += names(_))
+    }
+    result.toSet
+  }
+
+  /**
+   * Concrete declaration of a method in a class, null if there is none.
+   */
+  def declaration(id: Int, name: String, desc: String): MethodInfo = {
+    val declarations = this.declarations(name, desc)
+    if (declarations == null) null else declarations.get(id)
+  }
+
+  /**
+   * The first concrete declaration of a method in a class or in its superclasses.
+   * Null if there is none or if some superclass on the way is not declared (its methods are unknown).
+   */
+  def resolveUpward(id: Int, name: String, desc: String): MethodInfo = {
+    val declarations = this.declarations(name, desc)
+    var c = id
+    var steps = 0
+    // steps are limited for broken (cyclic) hierarchies
+    while (c >= 0 && steps <= size) {
+      if (!declared(c))
+        return null
+      if (declarations != null) {
+        val found = declarations.get(c)
+        if (found != null) return found
+      }
+      c = superIds(c)
+      steps += 1
+    }
+    null
+  }
+
+  private def declarations(name: String, desc: String): Declarations =
+    methods.get(name) match {
+      case Some(byDesc) => byDesc.getOrElse(desc, null)
+      case None => null
+    }
+
+  /**
+   * Writes the index, so that it may be read back by [[faba.calls.HierarchyIndex#read]] without building it again.
+   */
+  def write(out: DataOutputStream): Unit = {
+    import HierarchyIndex._
+    out.writeInt(magic)
+    out.writeInt(version)
+    out.writeInt(classInfos.length)
+    for (info <- classInfos) {
+      out.writeInt(info.access)
+      string(out, info.name)
+      string(out, info.superName)
+      out.writeInt(info.interfaces.size)
+      info.interfaces.foreach(string(out, _))
+    }
+    out.writeInt(names.length - classInfos.length)
+    for (i <- classInfos.length until names.length)
+      string(out, names(i))
+    ints(out, superIds)
+    ints(out, childStarts)
+    ints(out, children)
+    ints(out, pre)
+    ints(out, ends)
+    ints(out, order)
+    out.writeInt(methods.values.map(_.size).sum)
+    for ((name, byDesc) <- methods; (desc, declarations) <- byDesc) {
+      string(out, name)
+      string(out, desc)
+      ints(out, declarations.ids)
+      declarations.infos.foreach(info => out.writeInt(info.access))
+    }
+  }
+}
+
+object HierarchyIndex {
+  private val magic = 0x46414248
+  private val version = 1
+
+  /**
+   * Builds an index of declared classes.
+   *
+   * @param classInfos declared classes
+   * @param classMethods declared methods of classes
+   */
+  def apply(classInfos: collection.Map[String, ClassInfo], classMethods: collection.Map[String, collection.Set[MethodInfo]]): HierarchyIndex = {
+    val declared = classInfos.values.toArray
+    val ids = mutable.HashMap[String, Int]()
+    val names = mutable.ArrayBuffer[String]()
+    def id(name: String): Int =
+      ids.getOrElseUpdate(name, { names += name; names.size - 1 })
+    declared.foreach(info => id(info.name))
+    val superIds = declared.map(info => if (info.superName == null) -1 else id(info.superName))
+    val edges = mutable.ArrayBuffer[(Int, Int)]()
+    for (info <- declared) {
+      val child = ids(info.name)
+      if (!info.interface_? && info.superName != null)
+        edges += (id(info.superName) -> child)
+      for (interface <- info.interfaces)
+        edges += (id(interface) -> child)
+    }
+    val size = names.size
+    val (childStarts, children) = csr(size, edges)
+    val allSuperIds = java.util.Arrays.copyOf(superIds, size)
+    java.util.Arrays.fill(allSuperIds, declared.length, size, -1)
+
+    // preorder of the tree of superclasses (interfaces are roots)
+    val parents = Array.tabulate(size)(i => if (i < declared.length && !declared(i).interface_?) allSuperIds(i) else -1)
+    val (treeStarts, treeChildren) = csr(size, (0 until size).filter(parents(_) >= 0).map(i => parents(i) -> i))
+    val pre = Array.fill(size)(-1)
+    val ends = new Array[Int](size)
+    val order = new Array[Int](size)
+    var position = 0
+    val stack = mutable.ArrayStack[Int]()
+    // roots first, then classes of cycles (broken hierarchies)
+    for (root <- (0 until size).filter(parents(_) < 0) ++ (0 until size) if pre(root) < 0) {
+      // a class is entered as its id and left as ~id, when all its subclasses are numbered
+      stack.push(root)
+      while (stack.nonEmpty) {
+        val x = stack.pop()
+        if (x < 0)
+          ends(~x) = position
+        else if (pre(x) < 0) {
+          pre(x) = position
+          order(position) = x
+          position += 1
+          stack.push(~x)
+          var k = treeStarts(x + 1) - 1
+          while (k >= treeStarts(x)) {
+            stack.push(treeChildren(k))
+            k -= 1
+          }
+        }
+      }
+    }
+
+    val methods = mutable.HashMap[String, mutable.HashMap[String, mutable.ArrayBuffer[(Int, MethodInfo)]]]()
+    for ((className, infos) <- classMethods; info <- infos if (info.access & org.objectweb.asm.Opcodes.ACC_ABSTRACT) == 0)
+      methods.getOrElseUpdate(info.name, mutable.HashMap()).getOrElseUpdate(info.desc, mutable.ArrayBuffer()) += (ids(className) -> info)
+    val table = methods.map { case (name, byDesc) =>
+      name -> byDesc.map { case (desc, declarations) =>
+        val sorted = declarations.sortBy(_._1)
+        desc -> new Declarations(sorted.map(_._1).toArray, sorted.map(_._2).toArray)
+      }
+    }
+
+    new HierarchyIndex(declared, names.toArray, allSuperIds, childStarts, children, pre, ends, order, table)
+  }
+
+  // compressed sparse rows of edges (from, to)
+  private def csr(size: Int, edges: Seq[(Int, Int)]): (Array[Int], Array[Int]) = {
+    val starts = new Array[Int](size + 1)
+    for ((from, _) <- edges) starts(from + 1) += 1
+    for (i <- 0 until size) starts(i + 1) += starts(i)
+    val fill = java.util.Arrays.copyOf(starts, size)
+    val targets = new Array[Int](edges.size)
+    for ((from, to) <- edges) {
+      targets(fill(from)) = to
+      fill(from) += 1
+    }
+    (starts, targets)
+  }
+
+  /**
+   * Reads an index written by [[faba.calls.HierarchyIndex#write]].
+   */
+  def read(in: DataInputStream): HierarchyIndex = {
+    if (in.readInt() != magic || in.readInt() != version)
+      throw new IOException("unknown format")
+    val classInfos = Array.fill(in.readInt()) {
+      val access = in.readInt()
+      val name = string(in)
+      val superName = string(in)
+      val interfaces = List.fill(in.readInt())(string(in))
+      ClassInfo(access, name, superName, interfaces)
+    }
+    val referenced = Array.fill(in.readInt())(string(in))
+    val names = classInfos.map(_.name) ++ referenced
+    val superIds = ints(in)
+    val childStarts = ints(in)
+    val children = ints(in)
+    val pre = ints(in)
+    val ends = ints(in)
+    val order = ints(in)
+    val methods = mutable.HashMap[String, mutable.HashMap[String, Declarations]]()
+    for (_ <- 0 until in.readInt()) {
+      val name = string(in)
+      val desc = string(in)
+      val ids = ints(in)
+      val infos = ids.map(id => MethodInfo(classInfos(id), in.readInt(), name, desc))
+      methods.getOrElseUpdate(name, mutable.HashMap())(desc) = new Declarations(ids, infos)
+    }
+    new HierarchyIndex(classInfos, names, superIds, childStarts, children, pre, ends, order, methods)
+  }
+
+  private def string(out: DataOutputStream, s: String): Unit =
+    if (s == null) out.writeBoolean(false)
+    else {
+      out.writeBoolean(true)
+      out.writeUTF(s)
+    }
+
+  private def string(in: DataInputStream): String =
+    if (in.readBoolean()) faba.data.Symbols.string(in.readUTF()) else null
+
+  private def ints(out: DataOutputStream, array: Array[Int]): Unit = {
+    out.writeInt(array.length)
+    array.foreach(out.writeInt)
+  }
+
+  private def ints(in: DataInputStream): Array[Int] =
+    Array.fill(in.readInt())(in.readInt())
+}
@@ -0,0 +1,163 @@
+package faba.index
+
+import java.util.concurrent.{Callable, ForkJoinPool, ForkJoinTask}
+
+import faba.FabaProcessor
+import faba.budget.Budgets
+import faba.calls._
+import faba.data._
+import faba.dedupe.MethodBodies
+import faba.engine._
+import faba.profile._
+import faba.source.Processor
+
+import org.objectweb.asm.ClassReader
+
+import scala.collection.mutable
+
+/**
+ * Kinds of equations produced by indexing, one per `FabaProcessor.handle*Equation` hook.
+ */
+object EquationKind extends Enumeration {
+  val Purity, NotNullParam, NullableParam, NotNullContract, NullContract, OutContract, NullableResult = Value
+}
+
+/**
+ * Something reported by indexing to a `FabaProcessor`.
+ * Indexing of a class is fully described by a sequence of events,
+ * so it may be performed by one processor and replayed into another one.
+ */
+sealed trait IndexEvent
+
+/**
+ * @see [[faba.FabaProcessor#mapClassInfo]]
+ */
+case class ClassDeclaration(classInfo: ClassInfo) extends IndexEvent
+
+/**
+ * @see [[faba.FabaProcessor#mapMethodInfo]]
+ */
+case class MethodDeclaration(methodInfo: MethodInfo) extends IndexEvent
+
+/**
+ * @see [[faba.FabaProcessor#mapMethodExtra]]
+ */
+case class MethodExtraDeclaration(method: Method, extra: MethodExtra) extends IndexEvent
+
+/**
+ * @see [[faba.FabaProcessor#handlePurityEquation]] and other `handle*Equation` hooks
+ */
+case class EquationEvent(kind: EquationKind.Value, equation: Equation[Key, Value]) extends IndexEvent
+
+object IndexEvent {
+
+  /**
+   * Passes an event to a processor, the same way indexing does.
+   */
+  def replay(event: IndexEvent, processor: FabaProcessor): Unit = event match {
+    case ClassDeclaration(classInfo) =>
+      processor.mapClassInfo(classInfo)
+    case MethodDeclaration(methodInfo) =>
+      processor.mapMethodInfo(methodInfo)
+    case MethodExtraDeclaration(method, extra) =>
+      processor.mapMethodExtra(method, extra)
+    case EquationEvent(kind, eq) => kind match {
+      case EquationKind.Purity => processor.handlePurityEquation(eq)
+      case EquationKind.NotNullParam => processor.handleNotNullParamEquation(eq)
+      case EquationKind.NullableParam => processor.handleNullableParamEquation(eq)
+      case EquationKind.NotNullContract => processor.handleNotNullContractEquation(eq)
+      case EquationKind.NullContract => processor.handleNullContractEquation(eq)
+      case EquationKind.OutContract => processor.handleOutContractEquation(eq)
+      case EquationKind.NullableResult => processor.handleNullableResultEquation(eq)
+    }
+  }
+}
+
+/**
+ * Processor which performs all analyses, but only records what was found.
+ * Recorded events are passed to a real processor later via `replay`.
+ *
+ * @param profiler profiler of analyses (usually the one of a real processor)
+ * @param budgets budgets of analyses (usually the ones of a real processor)
+ * @param bodies analyzed method bodies (usually the ones of a real processor)
+ */
+class IndexRecorder(override val profiler: Profiler = Profiler.Off,
+                    override val budgets: Budgets = Budgets.Off,
+                    override val bodies: MethodBodies = MethodBodies.Off) extends FabaProcessor {
+  val events = mutable.ArrayBuffer[IndexEvent]()
+
+  /**
+   * Passes recorded events and deferred methods (see [[faba.FabaProcessor#escalate]]) to a processor.
+   */
+  def replay(processor: FabaProcessor): Unit = {
+    events.foreach(IndexEvent.replay(_, processor))
+    processor.deferred ++= deferred
+  }
+
+  override def handlePurityEquation(eq: Equation[Key, Value]): Unit =
+    events += EquationEvent(EquationKind.Purity, eq)
+  override def handleNotNullParamEquation(eq: Equation[Key, Value]): Unit =
+    events += EquationEvent(EquationKind.NotNullParam, eq)
+  override def handleNullableParamEquation(eq: Equation[Key, Value]): Unit =
+    events += EquationEvent(EquationKind.NullableParam, eq)
+  override def handleNotNullContractEquation(eq: Equation[Key, Value]): Unit =
+    events += EquationEvent(EquationKind.NotNullContract, eq)
+  override def handleNullContractEquation(eq: Equation[Key, Value]): Unit =
+    events += EquationEvent(EquationKind.NullContract, eq)
+  override def handleOutContractEquation(eq: Equation[Key, Value]): Unit =
+    events += EquationEvent(EquationKind.OutContract, eq)
+  override def handleNullableResultEquation(eq: Equation[Key, Value]): Unit =
+    events += EquationEvent(EquationKind.NullableResult, eq)
+
+  override def mapClassInfo(classInfo: ClassInfo): Unit =
+    events += ClassDeclaration(classInfo)
+  override def mapMethodInfo(methodInfo: MethodInfo): Unit =
+    events += MethodDeclaration(methodInfo)
+  override def mapMethodExtra(method: Method, extra: MethodExtra): Unit =
+    events += MethodExtraDeclaration(method, extra)
+}
+
+/**
+ * Indexes classes in a pool of worker threads.
+ *
+ * Each class is a separate (work-stealing) task, which is indexed by its own `IndexRecorder`.
+ * Recorded events are replayed into `target` strictly in the order classes were submitted,
+ * so `target` observes exactly the same sequence of calls as during sequential indexing.
+ * Analyses of `target` itself (if overridden) are not used, only its `handle*` and `map*` hooks.
+ *
+ * @param target processor to receive indexing results
+ * @param threads number of worker threads
+ */
+class ParallelIndexer(target: FabaProcessor, threads: Int) extends Processor {
+  private val pool = new ForkJoinPool(threads)
+  // submitted, but not replayed yet, classes in submission order
+  private val inFlight = mutable.Queue[ForkJoinTask[IndexRecorder]]()
+  // to limit memory consumed by recorded, but not replayed events
+  private val maxInFlight = threads * 64
+
+  override def processClass(classReader: ClassReader): Unit =
+    processClassLazily(() => classReader)
+
+  // class bytes are read by a worker
+  override def processClassLazily(read: () => ClassReader): Unit = {
+    inFlight enqueue pool.submit(new Callable[IndexRecorder] {
+      override def call(): IndexRecorder = {
+        val recorder = new IndexRecorder(target.profiler, target.budgets, target.bodies)
+        recorder.processClass(read())
+        recorder
+      }
+    })
+    replayCompleted(maxInFlight)
+  }
+
+  /**
+   * Waits for all submitted classes and replays them into the target processor.
+   */
+  def finish(): Unit =
+    try replayCompleted(0) finally pool.shutdown()
+
+  // replays finished classes from the head of the queue, waits for the head while the queue is longer than `limit`
+  private def replayCompleted(limit: Int): Unit =
+    while (inFlight.nonEmpty && (inFlight.size > limit || inFlight.head.isDone))
+      inFlight.dequeue().join().replay(target)
+}
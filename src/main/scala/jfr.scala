@@ -0,0 +1,185 @@
+package faba.jfr
+
+import faba.data.{Method, PolymorphicId}
+import faba.engine.HierarchySolver
+
+import jdk.jfr._
+
+/**
+ * A phase of a FABA run: indexing, resolving of calls, binding of overridable methods, solving, dumping.
+ */
+@Name("faba.Phase")
+@Label("FABA Phase")
+@Category(Array("FABA"))
+@StackTrace(false)
+class PhaseEvent extends Event {
+  @Label("Phase")
+  var phase: String = _
+
+  @Label("Solver")
+  @Description("Solver of a post-indexing pipeline (if any)")
+  var solver: String = _
+}
+
+/**
+ * Indexing of a single input (a jar, a class file).
+ */
+@Name("faba.Source")
+@Label("FABA Source")
+@Category(Array("FABA"))
+@StackTrace(false)
+class SourceEvent extends Event {
+  @Label("Source")
+  var source: String = _
+
+  @Label("Replayed")
+  @Description("Indexing results were replayed from the cache")
+  var replayed: Boolean = _
+}
+
+/**
+ * Indexing of a single class. Only classes taking longer than the threshold are recorded.
+ */
+@Name("faba.Class")
+@Label("FABA Class")
+@Category(Array("FABA"))
+@Threshold("10 ms")
+@StackTrace(false)
+class ClassEvent extends Event {
+  @Label("Class")
+  var className: String = _
+}
+
+/**
+ * Solving of equations by a solver.
+ */
+@Name("faba.Solve")
+@Label("FABA Solve")
+@Category(Array("FABA"))
+@StackTrace(false)
+class SolveEvent extends Event {
+  @Label("Solver")
+  var solver: String = _
+
+  @Label("Equations")
+  var equations: Int = _
+
+  @Label("Pending Equations")
+  @Description("Equations not solved before solving")
+  var pending: Int = _
+
+  @Label("Iterations")
+  @Description("Solutions propagated into dependent equations")
+  var iterations: Int = _
+
+  @Label("Solutions")
+  var solutions: Int = _
+}
+
+/**
+ * An analysis of a method stopped by the limit of steps or of the size of a result.
+ */
+@Name("faba.LimitHit")
+@Label("FABA Limit Hit")
+@Category(Array("FABA"))
+@StackTrace(false)
+class LimitHitEvent extends Event {
+  @Label("Method")
+  var method: String = _
+
+  @Label("Analysis")
+  var analysis: String = _
+
+  @Label("States")
+  @Description("States of the graph of configurations when the analysis was stopped")
+  var states: Int = _
+}
+
+/**
+ * Emits FABA events into JDK Flight Recorder.
+ * Events are recorded only if a recording is running (for example, with `-XX:StartFlightRecording`),
+ * otherwise their cost is a check of a flag. On JVMs without `jdk.jfr` nothing is emitted.
+ */
+object Flight {
+  val available: Boolean =
+    try {
+      Class.forName("jdk.jfr.Event")
+      true
+    } catch {
+      case _: ClassNotFoundException => false
+    }
+
+  // types of events are looked up once, a type is enabled while a recording of its events is running
+  private lazy val phaseType = EventType.getEventType(classOf[PhaseEvent])
+  private lazy val sourceType = EventType.getEventType(classOf[SourceEvent])
+  private lazy val classType = EventType.getEventType(classOf[ClassEvent])
+  private lazy val solveType = EventType.getEventType(classOf[SolveEvent])
+  private lazy val limitHitType = EventType.getEventType(classOf[LimitHitEvent])
+
+  // events are not even allocated if they would not be recorded
+  private def enabled(eventType: => EventType): Boolean =
+    available && eventType.isEnabled
+
+  def phase[T](phase: String, solver: String = null)(body: => T): T =
+    if (!enabled(phaseType)) body
+    else {
+      val event = new PhaseEvent
+      event.begin()
+      try body finally {
+        event.phase = phase
+        event.solver = solver
+        event.commit()
+      }
+    }
+
+  def source[T](source: String, replayed: Boolean = false)(body: => T): T =
+    if (!enabled(sourceType)) body
+    else {
+      val event = new SourceEvent
+      event.begin()
+      try body finally {
+        event.source = source
+        event.replayed = replayed
+        event.commit()
+      }
+    }
+
+  def indexClass[T](className: String)(body: => T): T =
+    if (!enabled(classType)) body
+    else {
+      val event = new ClassEvent
+      event.begin()
+      try body finally {
+        event.className = className
+        event.commit()
+      }
+    }
+
+  /**
+   * Solves equations of a solver, recording counters of solving.
+   */
+  def solve[K <: PolymorphicId[K], V](name: String, solver: HierarchySolver[K, V]): Map[K, V] =
+    if (!enabled(solveType)) solver.solve()
+    else {
+      val event = new SolveEvent
+      event.begin()
+      val solutions = solver.solve()
+      val statistics = solver.statistics
+      event.solver = name
+      event.equations = statistics.equations
+      event.pending = statistics.pending
+      event.iterations = statistics.iterations
+      event.solutions = solutions.size
+      event.commit()
+      solutions
+    }
+
+  def limitHit(method: Method, analysis: String, states: Int): Unit =
+    if (enabled(limitHitType)) {
+      val event = new LimitHitEvent
+      event.method = method.toString
+      event.analysis = analysis
+      event.states = states
+      event.commit()
+    }
+}
@@ -1,91 +1,173 @@
 package faba
 
 import java.io.{File, PrintWriter}
+import java.nio.charset.Charset
 import java.nio.file._
 import java.nio.file.attribute.BasicFileAttributes
 import java.util.Date
+import java.util.concurrent.{Callable, ForkJoinPool}
 
+import faba.binary._
+import faba.budget._
+import faba.cache._
 import faba.calls._
 import faba.data._
+import faba.dedupe._
 import faba.engine._
+import faba.index._
+import faba.jfr._
+import faba.profile._
+import faba.query._
 import faba.source._
 import org.objectweb.asm.Type
 
+import scala.collection.mutable
 import scala.collection.mutable.ListBuffer
-import scala.xml.PrettyPrinter
 
-// TODO - single call resolver
-class MainProcessor(val noResolveViaHierarchy: Boolean) extends FabaProcessor {
+/**
+ * Settings of a FABA run.
+ *
+ * @param threads number of threads used for indexing (1 means indexing in the calling thread)
+ * @param cache directory of indexing cache (see [[faba.cache.IndexCache]]), no caching if None
+ * @param solver solver backend: "staged" ([[faba.engine.StagedHierarchySolver]]),
+ *               "int" ([[faba.engine.IntStagedHierarchySolver]])
+ *               or "incremental" ([[faba.engine.IncrementalHierarchySolver]])
+ * @param solveThreads number of threads used after indexing: pipelines of different solvers
+ *                     (resolve, bind, solve) run concurrently, overridable methods are bound and
+ *                     annotations.xml files of packages are written in parallel
+ * @param format output format: "xml" (annotations.xml files of packages)
+ *               or "bin" (a single file, see [[faba.binary.BinaryAnnotations]])
+ * @param profile directory for a report of costs of analyses of methods (see [[faba.profile.MethodProfiler]]),
+ *                no profiling if None
+ * @param profileTop number of the most expensive methods in the report
+ * @param budget time allowance (in seconds) for escalation of adaptive budgets of analyses beyond the default budget
+ *               (see [[faba.budget.Budgets#adaptive]]), a single attempt with the default budget if None
+ * @param dedupe identical method bodies of different classes are analyzed once (see [[faba.dedupe.SharedMethodBodies]]),
+ *               at the cost of keeping equations of all analyzed bodies in memory during indexing
+ */
+case class Options(threads: Int = 1, cache: Option[File] = None, solver: String = "staged", solveThreads: Int = 1,
+                   format: String = "xml", profile: Option[File] = None, profileTop: Int = 100,
+                   budget: Option[Int] = None, dedupe: Boolean = false)
+
+object Options {
+  val Solvers = List("staged", "int", "incremental")
+  val Formats = List("xml", "bin")
+  val Keys = List("threads", "cache", "solver", "solve-threads", "format", "profile", "profile-top", "budget", "dedupe")
 
-  val notNullParamsCallsResolver = new CallResolver(noResolveViaHierarchy)
+  /**
+   * An unknown option or an unknown value of an enumerated option is a usage error.
+   *
+   * @param options options parsed by [[faba.CmdUtils#getOptions]]
+   */
+  def apply(options: Map[String, String]): Options = {
+    for (key <- options.keys if !Keys.contains(key))
+      sys.error(s"usage: unknown option --$key (options are ${Keys.map("--" + _).mkString(", ")})")
+    Options(
+      threads = options.get("threads").map(_.toInt).getOrElse(1),
+      cache = options.get("cache").map(new File(_)),
+      solver = oneOf(options, "solver", Solvers),
+      solveThreads = options.get("solve-threads").map(_.toInt).getOrElse(1),
+      format = oneOf(options, "format", Formats),
+      profile = options.get("profile").map(new File(_)),
+      profileTop = options.get("profile-top").map(_.toInt).getOrElse(100),
+      budget = options.get("budget").map(_.toInt),
+      dedupe = options.get("dedupe").exists(_.toBoolean)
+    )
+  }
+
+  // the value of an option (the first one of `values` by default)
+  private def oneOf(options: Map[String, String], key: String, values: List[String]): String = {
+    val value = options.getOrElse(key, values.head)
+    if (!values.contains(value))
+      sys.error(s"usage: unknown value of --$key: $value (one of ${values.mkString(", ")})")
+    value
+  }
+}
+
+class MainProcessor(val noResolveViaHierarchy: Boolean = false, val options: Options = Options()) extends FabaProcessor {
+
+  def mkSolver(lattice: Lattice[Value], defaultResolveValue: Value): HierarchySolver[Key, Value] =
+    options.solver match {
+      case "staged" => new StagedHierarchySolver[Key, Value](lattice, defaultResolveValue)
+      case "int" => new IntStagedHierarchySolver[Key, Value](lattice, defaultResolveValue)
+      case "incremental" => new IncrementalHierarchySolver[Key, Value](lattice, defaultResolveValue)
+      case other => sys.error(s"unknown solver: $other")
+    }
+
+  override val profiler: Profiler =
+    if (options.profile.isDefined) new MethodProfiler else Profiler.Off
+
+  override val budgets: Budgets =
+    options.budget.map(seconds => Budgets.adaptive(seconds * 1000L)).getOrElse(Budgets.Off)
+
+  override val bodies: MethodBodies =
+    if (options.dedupe) new SharedMethodBodies else MethodBodies.Off
+
+  // shared by all solvers
+  val callResolver = new CallResolver(noResolveViaHierarchy)
+
+  // calls encountered in equations of a solver
+  val notNullParamsCalls = mutable.Set[Key]()
   val notNullParamsSolver =
-    new StagedHierarchySolver[Key, Values.Value](Lattice(Values.NotNull, Values.Top), Values.Top)
+    mkSolver(Lattice(Values.NotNull, Values.Top), Values.Top)
 
-  val nullableParamsCallResolver = new CallResolver(noResolveViaHierarchy)
+  val nullableParamsCalls = mutable.Set[Key]()
   val nullableParamsSolver =
-    new StagedHierarchySolver[Key, Values.Value](Lattice(Values.Null, Values.Top), Values.Top)
+    mkSolver(Lattice(Values.Null, Values.Top), Values.Top)
 
-  val contractsCallsResolver = new CallResolver(noResolveViaHierarchy)
+  val contractsCalls = mutable.Set[Key]()
   val contractsSolver =
-    new StagedHierarchySolver[Key, Values.Value](Lattice(Values.Bot, Values.Top), Values.Top)
+    mkSolver(Lattice(Values.Bot, Values.Top), Values.Top)
 
-  val nullableResultCallsResolver = new CallResolver(noResolveViaHierarchy)
+  val nullableResultCalls = mutable.Set[Key]()
   val nullableResultSolver =
-    new StagedHierarchySolver[Key, Values.Value](Lattice(Values.Bot, Values.Null), Values.Bot)
+    mkSolver(Lattice(Values.Bot, Values.Null), Values.Bot)
 
-  val purityCallsResolver = new CallResolver(noResolveViaHierarchy)
+  val purityCalls = mutable.Set[Key]()
   val puritySolver =
-    new StagedHierarchySolver[Key, Values.Value](Lattice(Values.Pure, Values.Top), Values.Top)
-
-  val resolvers = List(
-    notNullParamsCallsResolver,
-    nullableParamsCallResolver,
-    contractsCallsResolver,
-    nullableResultCallsResolver,
-    purityCallsResolver
-  )
+    mkSolver(Lattice(Values.Pure, Values.Top), Values.Top)
 
   override def handlePurityEquation(eq: Equation[Key, Value]) {
     puritySolver.addMethodEquation(eq)
-    puritySolver.getCalls(eq).foreach(purityCallsResolver.addCall)
+    purityCalls ++= puritySolver.getCalls(eq)
   }
 
   override def handleNotNullParamEquation(eq: Equation[Key, Value]) {
     notNullParamsSolver.addMethodEquation(eq)
-    notNullParamsSolver.getCalls(eq).foreach(notNullParamsCallsResolver.addCall)
+    notNullParamsCalls ++= notNullParamsSolver.getCalls(eq)
   }
 
   override def handleNullableParamEquation(eq: Equation[Key, Value]) {
     nullableParamsSolver.addMethodEquation(eq)
-    nullableParamsSolver.getCalls(eq).foreach(nullableParamsCallResolver.addCall)
+    nullableParamsCalls ++= nullableParamsSolver.getCalls(eq)
   }
 
   override def handleNotNullContractEquation(eq: Equation[Key, Value]) {
     contractsSolver.addMethodEquation(eq)
-    contractsSolver.getCalls(eq).foreach(contractsCallsResolver.addCall)
+    contractsCalls ++= contractsSolver.getCalls(eq)
   }
 
   override def handleNullContractEquation(eq: Equation[Key, Value]) {
     contractsSolver.addMethodEquation(eq)
-    contractsSolver.getCalls(eq).foreach(contractsCallsResolver.addCall)
+    contractsCalls ++= contractsSolver.getCalls(eq)
   }
 
   override def handleOutContractEquation(eq: Equation[Key, Value]) {
     contractsSolver.addMethodEquation(eq)
-    contractsSolver.getCalls(eq).foreach(contractsCallsResolver.addCall)
+    contractsCalls ++= contractsSolver.getCalls(eq)
   }
 
   override def handleNullableResultEquation(eq: Equation[Key, Value]) {
     nullableResultSolver.addMethodEquation(eq)
-    nullableResultSolver.getCalls(eq).foreach(nullableResultCallsResolver.addCall)
+    nullableResultCalls ++= nullableResultSolver.getCalls(eq)
   }
 
   override def mapClassInfo(classInfo: ClassInfo) {
-    resolvers.foreach(_.addClassDeclaration(classInfo))
+    callResolver.addClassDeclaration(classInfo)
   }
 
   override def mapMethodInfo(methodInfo: MethodInfo) {
-    resolvers.foreach(_.addMethodDeclaration(methodInfo))
+    callResolver.addMethodDeclaration(methodInfo)
   }
 
   def printToFile(f: File)(op: PrintWriter => Unit) {
@@ -103,9 +185,9 @@ class MainProcessor(val noResolveViaHierarchy: Boolean) extends FabaProcessor {
    */
   def mkOverridableInEquation(from: Method, to: Set[Method]): Map[Key, Set[Key]] = { // TODO - extract this logic
     var result = Map[Key, Set[Key]]()
-    val parameterTypes = Type.getArgumentTypes(from.methodDesc)
-    for (i <- parameterTypes.indices) {
-      val argSort = parameterTypes(i).getSort
+    val argumentSorts = from.argumentSorts
+    for (i <- argumentSorts.indices) {
+      val argSort = argumentSorts(i)
       val isReferenceArg = argSort == Type.OBJECT || argSort == Type.ARRAY
       if (isReferenceArg) {
         val fromKey = Key(from, In(i), ResolveDirection.Downward)
@@ -117,8 +199,7 @@ class MainProcessor(val noResolveViaHierarchy: Boolean) extends FabaProcessor {
 
   // TODO - need filter for result type - we are interested only in reference and (maybe) in boolean results
   def mkOverridableOutEquation(from: Method, to: Set[Method]): Map[Key, Set[Key]] = { // TODO - extract this logic
-    val resultType = Type.getReturnType(from.methodDesc)
-    val resultSort = resultType.getSort
+    val resultSort = from.returnSort
     val isReferenceResult = resultSort == Type.OBJECT || resultSort == Type.ARRAY
     if (isReferenceResult)
       Map[Key, Set[Key]](
@@ -135,14 +216,14 @@ class MainProcessor(val noResolveViaHierarchy: Boolean) extends FabaProcessor {
    * @return additional equations for a solver
    */
   def mkOverridableContractEquation(from: Method, to: Set[Method]): Map[Key, Set[Key]] = {
-    val methodResultSort = Type.getReturnType(from.methodDesc).getSort
+    val methodResultSort = from.returnSort
     val isContractibleMethodResult =
       methodResultSort == Type.OBJECT || methodResultSort == Type.ARRAY || methodResultSort == Type.BOOLEAN
     var mapping = Map[Key, Set[Key]]()
     if (isContractibleMethodResult) {
-      val parameterTypes = Type.getArgumentTypes(from.methodDesc)
-      for (i <- parameterTypes.indices) {
-        val argSort = parameterTypes(i).getSort
+      val argumentSorts = from.argumentSorts
+      for (i <- argumentSorts.indices) {
+        val argSort = argumentSorts(i)
         val isReferenceArg = argSort == Type.OBJECT || argSort == Type.ARRAY
         if (isReferenceArg) {
           // null -> ... equation
@@ -158,116 +239,256 @@ class MainProcessor(val noResolveViaHierarchy: Boolean) extends FabaProcessor {
   }
 
   def process(source: Source): InferenceResult = {
-    val pp = new PrettyPrinter(1000, 2)
-    val sep = File.separatorChar
+    println(s"${new Date()} indexing ...")
+    Flight.phase("index") { index(source) }
+    solve()
+  }
 
-    val indexStart = System.currentTimeMillis()
+  /**
+   * Starts a new round for incremental solvers ([[faba.engine.IncrementalHierarchySolver]]):
+   * calls collected by the previous round are dropped, all sources should be indexed (or replayed) again
+   * before the next [[solve]]. Solvers and the call resolver start new rounds by themselves.
+   */
+  def newRound(): Unit = {
+    notNullParamsCalls.clear()
+    nullableParamsCalls.clear()
+    contractsCalls.clear()
+    nullableResultCalls.clear()
+    purityCalls.clear()
+  }
+
+  /**
+   * Binds and solves equations passed to this processor so far.
+   */
+  def solve(): InferenceResult = {
+    println(s"${new Date()} solving ...")
+    val List(notNullParams, nullableParams, contracts, nullableResult, purity) = runPipelines(List[Option[ForkJoinPool] => Map[Key, Value]](
+      pool => { bindNotNullParams(pool); Flight.solve("notNullParams", notNullParamsSolver) },
+      pool => { bindNullableParams(pool); Flight.solve("nullableParams", nullableParamsSolver) },
+      pool => { bindContracts(pool); Flight.solve("contracts", contractsSolver) },
+      pool => { bindNullableResult(pool); Flight.solve("nullableResult", nullableResultSolver) },
+      pool => { bindPurity(pool); Flight.solve("purity", puritySolver) }
+    ))
+    val result = InferenceResult.fromSolutions(notNullParams, nullableParams, contracts, nullableResult, purity)
+    println(s"${new Date()} solved ...")
+    writeProfile()
+    result
+  }
+
+  private def writeProfile(): Unit =
+    (profiler, options.profile) match {
+      case (methodProfiler: MethodProfiler, Some(dir)) =>
+        methodProfiler.report(dir, options.profileTop)
+        println(s"${new Date()} profile is written to $dir")
+      case _ =>
+    }
+
+  /**
+   * Indexes a source and writes all equations into `dir` (see [[faba.query.EquationIndex]]),
+   * so they may be solved lazily by [[faba.query.LazyInference]].
+   */
+  def buildEquationIndex(source: Source, dir: File): Unit = {
     println(s"${new Date()} indexing ...")
-    source.process(this)
-    val indexEnd = System.currentTimeMillis()
-
-    // handling hierarchy for @NotNull parameters
-    notNullParamsCallsResolver.buildClassHierarchy()
-    // handling of calls
-    notNullParamsSolver.bindCalls(notNullParamsCallsResolver.resolveCalls(), Set())
-    // handling of overridable methods for @NotNull parameters
-    for {(from, to) <- notNullParamsCallsResolver.bindOverridableMethods()} {
-      val map = mkOverridableInEquation(from, to)
-      notNullParamsSolver.bindCalls(map, map.keys.toSet)
+    Flight.phase("index") { index(source) }
+    bind()
+    println(s"${new Date()} writing equations ...")
+    dir.mkdirs()
+    EquationIndex.write(notNullParamsSolver, new File(dir, EquationIndex.NotNullParams))
+    EquationIndex.write(nullableParamsSolver, new File(dir, EquationIndex.NullableParams))
+    EquationIndex.write(contractsSolver, new File(dir, EquationIndex.Contracts))
+    EquationIndex.write(nullableResultSolver, new File(dir, EquationIndex.NullableResult))
+    EquationIndex.write(puritySolver, new File(dir, EquationIndex.Purity))
+    println(s"${new Date()} written ...")
+  }
+
+  /**
+   * Resolves calls collected during indexing and adds equations for calls and overridable methods to solvers.
+   */
+  def bind(): Unit =
+    runPipelines(List[Option[ForkJoinPool] => Unit](
+      bindNotNullParams, bindNullableParams, bindContracts, bindNullableResult, bindPurity
+    ))
+
+  /**
+   * Runs post-indexing pipelines and returns their results (in the same order).
+   * Pipelines of different solvers share only the (thread-safe) call resolver, so with `options.solveThreads > 1`
+   * they run concurrently in a fork-join pool (which is also passed to pipelines), otherwise one after another.
+   */
+  private def runPipelines[A](pipelines: List[Option[ForkJoinPool] => A]): List[A] =
+    if (options.solveThreads > 1) {
+      val pool = new ForkJoinPool(options.solveThreads)
+      try {
+        val tasks = pipelines.map { pipeline =>
+          pool.submit(new Callable[A] {
+            override def call(): A = pipeline(Some(pool))
+          })
+        }
+        tasks.map(_.join())
+      } finally {
+        pool.shutdown()
+      }
+    }
+    else
+      pipelines.map(_(None))
+
+  // handling hierarchy for @NotNull parameters
+  private def bindNotNullParams(pool: Option[ForkJoinPool]): Unit =
+    Flight.phase("bind", "notNullParams") {
+      callResolver.buildClassHierarchy()
+      // handling of calls
+      notNullParamsSolver.bindCalls(callResolver.resolveCalls(notNullParamsCalls), Set())
+      // handling of overridable methods for @NotNull parameters
+      for {(from, to) <- callResolver.bindOverridableMethods(pool)} {
+        val map = mkOverridableInEquation(from, to)
+        notNullParamsSolver.bindCalls(map, map.keys.toSet)
+      }
     }
 
-    // handling nullableParams
-    nullableParamsCallResolver.buildClassHierarchy()
-    nullableParamsSolver.bindCalls(nullableParamsCallResolver.resolveCalls(), Set())
-    // handling of overridable methods for @Nullable parameters
-    for {(from, to) <- nullableParamsCallResolver.bindOverridableMethods()} {
-      val map = mkOverridableInEquation(from, to)
-      nullableParamsSolver.bindCalls(map, map.keys.toSet)
+  // handling nullableParams
+  private def bindNullableParams(pool: Option[ForkJoinPool]): Unit =
+    Flight.phase("bind", "nullableParams") {
+      callResolver.buildClassHierarchy()
+      nullableParamsSolver.bindCalls(callResolver.resolveCalls(nullableParamsCalls), Set())
+      // handling of overridable methods for @Nullable parameters
+      for {(from, to) <- callResolver.bindOverridableMethods(pool)} {
+        val map = mkOverridableInEquation(from, to)
+        nullableParamsSolver.bindCalls(map, map.keys.toSet)
+      }
     }
 
-    // handling hierarchy for Result analysis
-    contractsCallsResolver.buildClassHierarchy()
-    contractsSolver.bindCalls(contractsCallsResolver.resolveCalls(), Set())
-    // handling of overridable methods for Result analysis
-    for {(from, to) <- contractsCallsResolver.bindOverridableMethods()} {
-      val outMap = mkOverridableOutEquation(from, to)
-      contractsSolver.bindCalls(outMap, outMap.keys.toSet)
-      val contractMap = mkOverridableContractEquation(from, to)
-      contractsSolver.bindCalls(contractMap, contractMap.keys.toSet)
+  // handling hierarchy for Result analysis
+  private def bindContracts(pool: Option[ForkJoinPool]): Unit =
+    Flight.phase("bind", "contracts") {
+      callResolver.buildClassHierarchy()
+      contractsSolver.bindCalls(callResolver.resolveCalls(contractsCalls), Set())
+      // handling of overridable methods for Result analysis
+      for {(from, to) <- callResolver.bindOverridableMethods(pool)} {
+        val outMap = mkOverridableOutEquation(from, to)
+        contractsSolver.bindCalls(outMap, outMap.keys.toSet)
+        val contractMap = mkOverridableContractEquation(from, to)
+        contractsSolver.bindCalls(contractMap, contractMap.keys.toSet)
+      }
     }
 
-    // nullable Result
-    nullableResultCallsResolver.buildClassHierarchy()
-    nullableResultSolver.bindCalls(nullableResultCallsResolver.resolveCalls(), Set())
-    for {(from, to) <- nullableResultCallsResolver.bindOverridableMethods()} {
-      val map = mkOverridableOutEquation(from, to)
-      nullableResultSolver.bindCalls(map, map.keys.toSet)
+  // nullable Result
+  private def bindNullableResult(pool: Option[ForkJoinPool]): Unit =
+    Flight.phase("bind", "nullableResult") {
+      callResolver.buildClassHierarchy()
+      nullableResultSolver.bindCalls(callResolver.resolveCalls(nullableResultCalls), Set())
+      for {(from, to) <- callResolver.bindOverridableMethods(pool)} {
+        val map = mkOverridableOutEquation(from, to)
+        nullableResultSolver.bindCalls(map, map.keys.toSet)
+      }
     }
 
-    // purity resolver
-    purityCallsResolver.buildClassHierarchy()
-    puritySolver.bindCalls(purityCallsResolver.resolveCalls(), Set())
-    for {(from, to) <- purityCallsResolver.bindOverridableMethods()} {
-      val map = mkOverridableOutEquation(from, to)
-      puritySolver.bindCalls(map, map.keys.toSet)
+  // purity resolver
+  private def bindPurity(pool: Option[ForkJoinPool]): Unit =
+    Flight.phase("bind", "purity") {
+      callResolver.buildClassHierarchy()
+      puritySolver.bindCalls(callResolver.resolveCalls(purityCalls), Set())
+      for {(from, to) <- callResolver.bindOverridableMethods(pool)} {
+        val map = mkOverridableOutEquation(from, to)
+        puritySolver.bindCalls(map, map.keys.toSet)
+      }
     }
 
-    println(s"${new Date()} solving ...")
-    // solving everything
-    val notNullParameters: Set[Key] =
-      notNullParamsSolver.solve().filter(p => p._2 == Values.NotNull).keySet
-    val nullableParameters: Set[Key] =
-      nullableParamsSolver.solve().filter(p => p._2 == Values.Null).keySet
-
-    // not filtered yet
-    val allContracts: Map[Key, Values.Value] =
-      contractsSolver.solve()
-    val notNullMethods: Set[Key] =
-      allContracts.filter(p => p._1.direction == Out && p._2 == Values.NotNull).keySet
-    val nullableMethods: Set[Key] =
-      nullableResultSolver.solve().filter(p => p._2 == Values.Null).keySet
-    val pureMethods: Set[Key] =
-      puritySolver.solve().filter(p => p._2 == Values.Pure).keySet
-    val contractClauses: Map[Key, Values.Value] =
-      allContracts.filter(p => p._1.direction.isInstanceOf[InOut] && p._2 != Values.Bot && p._2 != Values.Top)
+  /**
+   * Writes a result into `outDir` in `options.format`.
+   */
+  def dumpResult(result: InferenceResult, outDir: String): Unit =
+    Flight.phase("dump") {
+      options.format match {
+        case "xml" => dumpXml(result, outDir)
+        case "bin" => BinaryAnnotations.write(result, new File(outDir, BinaryAnnotations.FileName))
+        case other => sys.error(s"unknown format: $other")
+      }
+    }
 
-    println(s"${new Date()} solved ...")
+  // annotations.xml files of packages, with `options.solveThreads > 1` packages are written in parallel
+  private def dumpXml(result: InferenceResult, outDir: String): Unit = {
+    val sep = File.separatorChar
+    def dump(pkg: String, pkgResult: InferenceResult): Unit = {
+      val file = new File(s"$outDir$sep${pkg.replace('/', sep)}${sep}annotations.xml")
+      file.getParentFile.mkdirs()
+      val out = Files.newBufferedWriter(file.toPath, Charset.defaultCharset())
+      try {
+        XmlUtils.writeAnnotations(pkgResult, extras, out)
+      } finally {
+        out.close()
+      }
+    }
+    val packages = result.byPackage().toVector
+    if (options.solveThreads > 1) {
+      val pool = new ForkJoinPool(options.solveThreads)
+      try {
+        val tasks = packages.map { case (pkg, pkgResult) =>
+          pool.submit(new Callable[Unit] {
+            override def call(): Unit = dump(pkg, pkgResult)
+          })
+        }
+        tasks.foreach(_.join())
+      } finally {
+        pool.shutdown()
+      }
+    }
+    else
+      for ((pkg, pkgResult) <- packages)
+        dump(pkg, pkgResult)
+  }
 
-    InferenceResult(
-      notNullParameters,
-      nullableParameters,
-      notNullMethods,
-      nullableMethods,
-      pureMethods,
-      contractClauses
-    )
+  /**
+   * Indexes all classes of a source, using `options.threads` threads.
+   * Parallel indexing passes equations to solvers in the same order as sequential one does,
+   * so results do not depend on the number of threads.
+   * When `options.cache` is set, unchanged inputs are replayed from the cache instead of indexing.
+   * With adaptive budgets (`options.budget`) methods deferred by indexing are escalated after it (see [[escalate]]).
+   */
+  def index(source: Source): Unit = {
+    options.cache match {
+      case Some(dir) =>
+        new IndexCache(dir).index(source, this, index)
+      case None =>
+        index(source, this)
+    }
+    bodies match {
+      case shared: SharedMethodBodies =>
+        println(s"${new Date()} ${shared.reused} methods reused analyses of ${shared.size} bodies")
+      case _ =>
+    }
   }
 
-  def dumpResult(result: InferenceResult, outDir: String): Unit = {
-    val pp = new PrettyPrinter(1000, 2)
-    val sep = File.separatorChar
-    for ((pkg, pkgResult) <- result.byPackage()) {
-      val xmlAnnotations = XmlUtils.toXmlAnnotations(pkgResult, extras)
-      printToFile(new File(s"$outDir$sep${pkg.replace('/', sep)}${sep}annotations.xml")) {
-        _.println(pp.format(<root>{xmlAnnotations}</root>))
-      }
+  /**
+   * Indexes a source the same way as [[index]] does, but into a recorder instead of this processor.
+   */
+  def record(source: Source): IndexRecorder = {
+    val recorder = new IndexRecorder(profiler, budgets, bodies)
+    options.cache match {
+      case Some(dir) =>
+        new IndexCache(dir).index(source, recorder, index)
+      case None =>
+        index(source, recorder)
+    }
+    recorder
+  }
+
+  private def index(source: Source, processor: FabaProcessor): Unit = {
+    if (options.threads > 1) {
+      val indexer = new ParallelIndexer(processor, options.threads)
+      source.process(indexer)
+      indexer.finish()
+    }
+    else
+      source.process(processor)
+    if (processor.deferred.nonEmpty) {
+      println(s"${new Date()} escalating budgets of ${processor.deferred.size} methods ...")
+      processor.escalate(options.threads)
     }
   }
 
   // for testing
   def testProcess(source: Source): Annotations = {
-    source.process(this)
-    notNullParamsCallsResolver.buildClassHierarchy()
-    val resolveMap = notNullParamsCallsResolver.resolveCalls()
-    // handling of calls
-    notNullParamsSolver.bindCalls(resolveMap, Set())
-    // handling of virtual methods
-    val overridableMap = notNullParamsCallsResolver.bindOverridableMethods()
-
-    for {(from, to) <- overridableMap} {
-      val map = mkOverridableInEquation(from, to)
-      notNullParamsSolver.bindCalls(map, map.keys.toSet)
-    }
+    index(source)
+    bindNotNullParams(None)
 
     val notNullParamSolutions: Map[Key, Values.Value] =
       notNullParamsSolver.solve().filterNot(p => p._2 == Values.Top || p._2 == Values.Bot)
@@ -285,6 +506,30 @@ class MainProcessor(val noResolveViaHierarchy: Boolean) extends FabaProcessor {
 }
 
 object CmdUtils {
+  /**
+   * Splits leading options (`--name value` or `--name=value`) from the rest of arguments.
+   * `--dirs` is not an option, but a part of input specification.
+   * An option without a value is a usage error.
+   *
+   * @return options (without `--` prefix) and the rest of arguments
+   */
+  def getOptions(args: Array[String]): (Map[String, String], Array[String]) = {
+    var options = Map[String, String]()
+    var i = 0
+    while (i < args.length && args(i).startsWith("--") && args(i) != "--dirs")
+      args(i).indexOf('=') match {
+        case -1 =>
+          if (i + 1 == args.length)
+            sys.error(s"usage: option ${args(i)} requires a value (${args(i)} value or ${args(i)}=value)")
+          options += (args(i).substring(2) -> args(i + 1))
+          i += 2
+        case eq =>
+          options += (args(i).substring(2, eq) -> args(i).substring(eq + 1))
+          i += 1
+      }
+    (options, args.drop(i))
+  }
+
   def getIn(args: Array[String]): Source =
     if (args(0) == "--dirs") {
       val sources = ListBuffer[Source]()
@@ -293,7 +538,7 @@ object CmdUtils {
           override def visitFile(file: Path, attrs: BasicFileAttributes): FileVisitResult = {
             if (file.toString.endsWith(".jar")) {
               println(s"adding $file")
-              sources += JarFileSource(file.toFile)
+              sources += MappedJarFileSource(file.toFile)
             }
             if (file.toString.endsWith(".class")) {
               println(s"adding $file")
@@ -305,17 +550,18 @@ object CmdUtils {
       MixedSource(sources.toList)
     }
     else {
-      MixedSource(args.toList.map {f => JarFileSource(new File(f))})
+      MixedSource(args.toList.map {f => MappedJarFileSource(new File(f))})
     }
 
   def getInOut(args: Array[String]): (Source, String) =
     (getIn(args.init), args.last)
 }
 
-object Main extends MainProcessor(false) {
+object Main {
   def main(args: Array[String]) {
     //Thread.sleep(15000)
-    val (in, out) = CmdUtils.getInOut(args)
-    process(in, out)
+    val (options, rest) = CmdUtils.getOptions(args)
+    val (in, out) = CmdUtils.getInOut(rest)
+    new MainProcessor(false, Options(options)).process(in, out)
   }
 }
@@ -0,0 +1,173 @@
+package faba.profile
+
+import java.io.{File, PrintWriter}
+import java.lang.management.ManagementFactory
+import java.util.concurrent.ConcurrentHashMap
+
+import faba.data._
+import faba.engine._
+
+import scala.collection.JavaConversions._
+
+/**
+ * Analyses (and preparatory phases) of a method measured by a profiler.
+ */
+object AnalysisKind extends Enumeration {
+  val ControlFlow, LeakingParameters, ResultOrigins, Purity, Combined,
+      NotNullParam, NullableParam, NotNullContract, NullContract, OutContract, NullableResult = Value
+}
+
+/**
+ * A single run of an analysis being measured, started by [[faba.profile.Profiler#start]].
+ */
+trait Probe {
+  /**
+   * Finishes the measurement.
+   *
+   * @param method analyzed method (not evaluated when profiling is off)
+   * @param kind analysis
+   * @param states number of states of a graph of configurations (for staged analyses)
+   * @param rhs resulting right hand side of an equation (if any)
+   * @param limitReached analysis was stopped by [[faba.data.LimitReachedException]]
+   */
+  def stop(method: => Method, kind: AnalysisKind.Value, states: Int = 0, rhs: Result[Key, Value] = null, limitReached: Boolean = false): Unit
+}
+
+/**
+ * Profiler of analyses of methods, used by [[faba.FabaProcessor]].
+ * Implementations are thread-safe: analyses run in worker threads with parallel indexing.
+ */
+trait Profiler {
+  def start(): Probe
+}
+
+object Profiler {
+  /**
+   * Nothing is measured.
+   */
+  object Off extends Profiler with Probe {
+    override def start(): Probe = this
+    override def stop(method: => Method, kind: AnalysisKind.Value, states: Int, rhs: Result[Key, Value], limitReached: Boolean): Unit = ()
+  }
+
+  /**
+   * Size of a right hand side of an equation: the number of elements of a sum of products
+   * (as limited by `Pending.limit`) or the number of nodes of a formula.
+   */
+  def size(rhs: Result[Key, Value]): Int = rhs match {
+    case Pending(sop) => sop.iterator.map(_.elems.size).sum
+    case Factored(formula) => formula.size
+    case _ => 0
+  }
+}
+
+/**
+ * Accumulated cost of an analysis of a method (an analysis may run several times for a method, once per parameter).
+ */
+class Cost(val method: Method, val kind: AnalysisKind.Value) {
+  var runs = 0
+  var nanos = 0L
+  var allocatedBytes = 0L
+  var states = 0L
+  var maxSize = 0
+  var limitHits = 0
+}
+
+/**
+ * Collects wall time, allocated bytes (when the JVM supports thread allocation accounting),
+ * states of configuration graphs, sizes of equations and hits of limits per method and analysis.
+ *
+ * Methods replayed from an indexing cache are not analyzed, so they are not profiled.
+ */
+class MethodProfiler extends Profiler {
+  private val threads = ManagementFactory.getThreadMXBean match {
+    case mxBean: com.sun.management.ThreadMXBean if mxBean.isThreadAllocatedMemorySupported =>
+      mxBean.setThreadAllocatedMemoryEnabled(true)
+      Some(mxBean)
+    case _ =>
+      None
+  }
+  private val costs = new ConcurrentHashMap[(Method, AnalysisKind.Value), Cost]()
+
+  private def allocatedBytes(): Long =
+    threads match {
+      case Some(mxBean) => mxBean.getThreadAllocatedBytes(Thread.currentThread().getId)
+      case None => 0L
+    }
+
+  override def start(): Probe = new Probe {
+    val startBytes = allocatedBytes()
+    val startNanos = System.nanoTime()
+
+    override def stop(method: => Method, kind: AnalysisKind.Value, states: Int, rhs: Result[Key, Value], limitReached: Boolean): Unit = {
+      val nanos = System.nanoTime() - startNanos
+      val bytes = allocatedBytes() - startBytes
+      val m = method
+      val key = (m, kind)
+      var cost = costs.get(key)
+      if (cost == null) {
+        val created = new Cost(m, kind)
+        cost = costs.putIfAbsent(key, created)
+        if (cost == null) cost = created
+      }
+      cost.synchronized {
+        cost.runs += 1
+        cost.nanos += nanos
+        cost.allocatedBytes += bytes
+        cost.states += states
+        cost.maxSize = cost.maxSize max Profiler.size(rhs)
+        if (limitReached) cost.limitHits += 1
+      }
+    }
+  }
+
+  /**
+   * Costs collected so far, the most expensive first.
+   */
+  def costList: List[Cost] =
+    costs.values.toList.sortBy(c => (-c.nanos, c.method.toString, c.kind))
+
+  /**
+   * Writes `profile.csv` (a row per method and analysis) and `hot-methods.txt`
+   * (`top` methods with the largest total time and all methods which hit limits) into `dir`.
+   */
+  def report(dir: File, top: Int): Unit = {
+    dir.mkdirs()
+    val all = costList
+
+    write(new File(dir, "profile.csv")) { out =>
+      out.println("class,method,descriptor,analysis,runs,nanos,allocated_bytes,states,max_size,limit_hits")
+      for (c <- all)
+        out.println(List(c.method.internalClassName, c.method.methodName, c.method.methodDesc, c.kind,
+          c.runs, c.nanos, c.allocatedBytes, c.states, c.maxSize, c.limitHits).map(csv).mkString(","))
+    }
+
+    write(new File(dir, "hot-methods.txt")) { out =>
+      val byMethod = all.groupBy(_.method).toList.map { case (m, cs) => (m, cs.map(_.nanos).sum, cs) }
+      val hot = byMethod.sortBy { case (m, nanos, _) => (-nanos, m.toString) }.take(top)
+      out.println(s"total: ${all.map(_.nanos).sum / 1000000} ms, ${byMethod.size} methods, ${all.map(_.limitHits).sum} limit hits")
+      out.println()
+      out.println(s"top $top methods by time:")
+      for ((m, nanos, cs) <- hot) {
+        out.println(f"${nanos / 1000000.0}%10.2f ms  $m")
+        for (c <- cs.sortBy(-_.nanos))
+          out.println(f"             ${c.kind}%-18s ${c.nanos / 1000000.0}%10.2f ms ${c.allocatedBytes / 1024}%10d KB " +
+            f"${c.states}%8d states  size ${c.maxSize}%4d  limit hits ${c.limitHits}")
+      }
+      out.println()
+      out.println("limit hits:")
+      for (c <- all.filter(_.limitHits > 0).sortBy(c => (c.method.toString, c.kind)))
+        out.println(s"  ${c.kind} ${c.limitHits}  ${c.method}")
+    }
+  }
+
+  private def csv(value: Any): String = {
+    val s = value.toString
+    if (s.exists(c => c == ',' || c == '"')) "\"" + s.replace("\"", "\"\"") + "\"" else s
+  }
+
+  private def write(file: File)(op: PrintWriter => Unit): Unit = {
+    val out = new PrintWriter(file)
+    try op(out) finally out.close()
+  }
+}
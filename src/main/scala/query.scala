@@ -0,0 +1,291 @@
+package faba.query
+
+import java.io._
+import java.nio.channels.{Channels, FileChannel}
+import java.nio.charset.StandardCharsets
+import java.nio.{ByteBuffer, MappedByteBuffer}
+
+import faba.data._
+import faba.engine._
+import faba.{CmdUtils, MainProcessor, Options}
+
+import scala.collection.mutable
+import scala.util.hashing.MurmurHash3
+
+/**
+ * On-disk index of equations of a single solver, keyed by `Key`.
+ *
+ * File layout:
+ *  - header: magic, version, bottom and top of the lattice, number of slots of the hash table
+ *  - open addressing hash table: slot = (64-bit hash of a key, offset of a record), 0 offset is an empty slot
+ *  - records: key, "api key" flag, normalized right hand side of an equation (a sum of products or a formula)
+ *
+ * The file is memory-mapped, looking up a key reads only a few slots and records.
+ */
+object EquationIndex {
+  val NotNullParams = "notNullParams.eqs"
+  val NullableParams = "nullableParams.eqs"
+  val Contracts = "contracts.eqs"
+  val NullableResult = "nullableResult.eqs"
+  val Purity = "purity.eqs"
+
+  private val magic = 0x46414245
+  private val version = 2
+  private val headerSize = 20
+  private val slotSize = 12
+
+  /**
+   * Writes equations of a solver, should be called before solving.
+   */
+  def write(solver: HierarchySolver[Key, Value], file: File): Unit = {
+    val (equations, apiKeys) = solver.system()
+    val size = equations.size
+    var slots = 16
+    while (slots < size * 2) slots *= 2
+    val table = ByteBuffer.allocate(slots * slotSize)
+    val tableEnd = headerSize + slots * slotSize
+
+    val raf = new RandomAccessFile(file, "rw")
+    try {
+      raf.setLength(0)
+      raf.seek(tableEnd)
+      // the stream shares position with raf
+      val out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(raf.getChannel), 1 << 16))
+      for (Equation(id, rhs) <- equations) {
+        val offset = tableEnd.toLong + out.size()
+        if (offset > Int.MaxValue)
+          throw new IOException(s"$file is too large")
+        var slot = (hash(id) & (slots - 1)).toInt
+        while (table.getInt(slot * slotSize + 8) != 0)
+          slot = (slot + 1) & (slots - 1)
+        table.putLong(slot * slotSize, hash(id))
+        table.putInt(slot * slotSize + 8, offset.toInt)
+        writeKey(out, id)
+        out.writeBoolean(apiKeys(id))
+        writeResult(out, rhs)
+      }
+      out.flush()
+
+      raf.seek(0)
+      raf.writeInt(magic)
+      raf.writeInt(version)
+      raf.writeInt(solver.lattice.bot.id)
+      raf.writeInt(solver.lattice.top.id)
+      raf.writeInt(slots)
+      raf.write(table.array())
+    } finally {
+      raf.close()
+    }
+  }
+
+  /**
+   * Maps an index file.
+   */
+  def open(file: File): EquationIndex = {
+    val raf = new RandomAccessFile(file, "r")
+    try {
+      // mapping stays valid after the channel is closed
+      val buffer = raf.getChannel.map(FileChannel.MapMode.READ_ONLY, 0, raf.length())
+      if (buffer.getInt(0) != magic || buffer.getInt(4) != version)
+        throw new IOException(s"$file is not an equation index")
+      new EquationIndex(buffer)
+    } finally {
+      raf.close()
+    }
+  }
+
+  // stable (not depending on JVM run) hash of a key
+  private[query] def hash(key: Key): Long = {
+    val m = key.method
+    val s = s"${m.internalClassName} ${m.methodName}${m.methodDesc} ${key.direction} ${key.resolveDirection}"
+    (MurmurHash3.stringHash(s, 0x1234).toLong << 32) | (MurmurHash3.stringHash(s, 0x4321) & 0xFFFFFFFFL)
+  }
+
+  private def writeKey(out: DataOutputStream, key: Key): Unit = {
+    writeString(out, key.method.internalClassName)
+    writeString(out, key.method.methodName)
+    writeString(out, key.method.methodDesc)
+    key.direction match {
+      case In(i) =>
+        out.writeByte(0)
+        out.writeInt(i)
+      case Out =>
+        out.writeByte(1)
+      case InOut(i, v) =>
+        out.writeByte(2)
+        out.writeInt(i)
+        out.writeByte(v.id)
+    }
+    out.writeByte(key.resolveDirection.id)
+  }
+
+  private def writeResult(out: DataOutputStream, result: Result[Key, Value]): Unit = result match {
+    case Final(value) =>
+      out.writeByte(0)
+      out.writeByte(value.id)
+    case Pending(sop) =>
+      out.writeByte(1)
+      out.writeInt(sop.size)
+      for (Product(upperBound, elems) <- sop) {
+        out.writeByte(upperBound.id)
+        out.writeInt(elems.size)
+        elems.foreach(writeKey(out, _))
+      }
+    case Factored(formula) =>
+      out.writeByte(2)
+      writeFormula(out, formula)
+  }
+
+  private def writeFormula(out: DataOutputStream, formula: Formula[Key, Value]): Unit = formula match {
+    case Atom(id) =>
+      out.writeByte(0)
+      writeKey(out, id)
+    case Const(value) =>
+      out.writeByte(1)
+      out.writeByte(value.id)
+    case Meet(args) =>
+      out.writeByte(2)
+      out.writeInt(args.size)
+      args.foreach(writeFormula(out, _))
+    case Join(args) =>
+      out.writeByte(3)
+      out.writeInt(args.size)
+      args.foreach(writeFormula(out, _))
+  }
+
+  private def writeString(out: DataOutputStream, s: String): Unit = {
+    val bytes = s.getBytes(StandardCharsets.UTF_8)
+    out.writeInt(bytes.length)
+    out.write(bytes)
+  }
+}
+
+/**
+ * Memory-mapped equation index, see [[faba.query.EquationIndex$]].
+ */
+class EquationIndex(buffer: MappedByteBuffer) {
+  val lattice = Lattice(Values(buffer.getInt(8)), Values(buffer.getInt(12)))
+  private val slots = buffer.getInt(16)
+  private val tableStart = 20
+  private val slotSize = 12
+
+  /**
+   * @return normalized right hand side of an equation for a key and whether a key is an "api key"
+   */
+  def load(key: Key): Option[(Result[Key, Value], Boolean)] = synchronized {
+    val h = EquationIndex.hash(key)
+    var slot = (h & (slots - 1)).toInt
+    var offset = buffer.getInt(tableStart + slot * slotSize + 8)
+    while (offset != 0) {
+      if (buffer.getLong(tableStart + slot * slotSize) == h) {
+        buffer.position(offset)
+        if (readKey() == key) {
+          val api = buffer.get() != 0
+          return Some((readResult(), api))
+        }
+      }
+      slot = (slot + 1) & (slots - 1)
+      offset = buffer.getInt(tableStart + slot * slotSize + 8)
+    }
+    None
+  }
+
+  private def readKey(): Key = {
+    val method = Method(readString(), readString(), readString())
+    val direction = buffer.get() match {
+      case 0 => In(buffer.getInt())
+      case 1 => Out
+      case _ => InOut(buffer.getInt(), Values(buffer.get()))
+    }
+    Key(method, direction, ResolveDirection(buffer.get()))
+  }
+
+  private def readResult(): Result[Key, Value] = buffer.get() match {
+    case 0 =>
+      Final(Values(buffer.get()))
+    case 1 =>
+      val sop = List.fill(buffer.getInt()) {
+        val upperBound = Values(buffer.get())
+        Product(upperBound, List.fill(buffer.getInt())(readKey()).toSet)
+      }
+      Pending(sop.toSet)
+    case _ =>
+      Factored(readFormula())
+  }
+
+  // formulas are written already simplified
+  private def readFormula(): Formula[Key, Value] = buffer.get() match {
+    case 0 => Atom(readKey())
+    case 1 => Const(Values(buffer.get()))
+    case 2 => Meet(List.fill(buffer.getInt())(readFormula()).toSet)
+    case _ => Join(List.fill(buffer.getInt())(readFormula()).toSet)
+  }
+
+  private def readString(): String = {
+    val bytes = new Array[Byte](buffer.getInt())
+    buffer.get(bytes)
+    new String(bytes, StandardCharsets.UTF_8)
+  }
+}
+
+/**
+ * Query-driven inference over an equation index written by [[faba.MainProcessor#buildEquationIndex]].
+ * Only equations the requested methods (transitively) depend on are loaded and solved,
+ * solutions are memoized between queries.
+ *
+ * @param dir directory of the equation index
+ */
+class LazyInference(dir: File) {
+  private def solver(name: String): LazySolver[Key, Value] = {
+    val index = EquationIndex.open(new File(dir, name))
+    new LazySolver[Key, Value](index.lattice, index.load)
+  }
+
+  private val notNullParamsSolver = solver(EquationIndex.NotNullParams)
+  private val nullableParamsSolver = solver(EquationIndex.NullableParams)
+  private val contractsSolver = solver(EquationIndex.Contracts)
+  private val nullableResultSolver = solver(EquationIndex.NullableResult)
+  private val puritySolver = solver(EquationIndex.Purity)
+
+  /**
+   * Infers annotations of given methods (both for their declarations and their virtual counterparts).
+   * The result is the same as the result of [[faba.MainProcessor#process]] restricted to these methods.
+   */
+  def inferFor(methods: Iterable[Method]): InferenceResult = synchronized {
+    val paramKeys = mutable.ListBuffer[Key]()
+    val outKeys = mutable.ListBuffer[Key]()
+    val contractKeys = mutable.ListBuffer[Key]()
+    for (method <- methods; direction <- ResolveDirection.values) {
+      val arity = method.argumentSorts.length
+      for (i <- 0 until arity) {
+        paramKeys += Key(method, In(i), direction)
+        contractKeys += Key(method, InOut(i, Values.Null), direction)
+        contractKeys += Key(method, InOut(i, Values.NotNull), direction)
+      }
+      outKeys += Key(method, Out, direction)
+    }
+    InferenceResult.fromSolutions(
+      notNullParamsSolver.solve(paramKeys),
+      nullableParamsSolver.solve(paramKeys),
+      contractsSolver.solve(outKeys ++ contractKeys),
+      nullableResultSolver.solve(outKeys),
+      puritySolver.solve(outKeys)
+    )
+  }
+
+  def inferFor(method: Method): InferenceResult =
+    inferFor(List(method))
+}
+
+/**
+ * Builds an equation index for [[faba.query.LazyInference]].
+ *
+ * Usage: `faba.query.BuildIndex [options] path_to_lib1.jar path_to_lib2.jar index_dir`
+ */
+object BuildIndex {
+  def main(args: Array[String]) {
+    val (options, rest) = CmdUtils.getOptions(args)
+    val (in, out) = CmdUtils.getInOut(rest)
+    new MainProcessor(false, Options(options)).buildEquationIndex(in, new File(out))
+  }
+}
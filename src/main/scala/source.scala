@@ -1,11 +1,18 @@
 package faba.source
 
-import java.io.{File, FileInputStream}
+import java.io.{File, FileInputStream, RandomAccessFile}
+import java.nio.channels.FileChannel
+import java.nio.charset.StandardCharsets
+import java.nio.{ByteBuffer, ByteOrder}
 import java.util.jar.JarFile
+import java.util.zip.{Inflater, ZipException}
+
+import faba.jfr.Flight
 
 import org.objectweb.asm._
 
 import scala.collection.JavaConverters._
+import scala.collection.mutable.ArrayBuffer
 import scala.language.existentials
 
 sealed trait Source {
@@ -49,14 +56,204 @@ case class JarFileSource(file: File) extends Source {
   override def toString = file.toString
 }
 
+/**
+ * Jar source reading a memory-mapped archive.
+ * Central directory is parsed directly, entries are inflated into reusable per-thread buffers,
+ * stored (not compressed) entries are copied from the mapping into a buffer in one step.
+ * Classes are read lazily (see [[faba.source.Processor#processClassLazily]]),
+ * so a processor may read them in parallel.
+ * Classes are processed in the same order as by [[faba.source.JarFileSource]].
+ * Archives not supported by this reader (zip64, encrypted, larger than 2Gb) are processed by `JarFileSource`.
+ */
+case class MappedJarFileSource(file: File) extends Source {
+  override def process(processor: Processor): Unit =
+    MappedJar.open(file) match {
+      case Some(jar) =>
+        for (entry <- jar.entries if entry.name.endsWith(".class"))
+          processor.processClassLazily(() => jar.read(entry))
+      case None =>
+        JarFileSource(file).process(processor)
+    }
+
+  override def toString = file.toString
+}
+
 case class MixedSource(sources: List[Source]) extends Source {
   override def process(processor: Processor): Unit =
     sources.foreach { s =>
       println(s"${new java.util.Date} processing $s")
-      s.process(processor)
+      Flight.source(s.toString) { s.process(processor) }
     }
 }
 
 trait Processor {
   def processClass(classReader: ClassReader): Unit
+
+  /**
+   * Processes a class, which bytes are provided by `read`.
+   * A source may reuse buffers of a thread in `read`, so the class reader should be consumed
+   * in the thread which called `read` before the next call of `read` in this thread.
+   * Processors consuming classes in other threads should call `read` in a consuming thread.
+   *
+   * @param read reader of class bytes
+   */
+  def processClassLazily(read: () => ClassReader): Unit =
+    processClass(read())
+}
+
+/**
+ * Central directory entry of a mapped archive.
+ *
+ * @param name entry name
+ * @param method compression method (0 - stored, 8 - deflated)
+ * @param compressedSize size of entry data in archive
+ * @param size size of uncompressed entry
+ * @param localHeaderOffset offset of entry local header in archive
+ */
+case class MappedEntry(name: String, method: Int, compressedSize: Int, size: Int, localHeaderOffset: Int)
+
+/**
+ * Memory-mapped zip archive.
+ *
+ * @param buffer mapping of the whole archive
+ * @param entries entries in order of central directory
+ */
+class MappedJar(buffer: ByteBuffer, val entries: IndexedSeq[MappedEntry]) {
+  import MappedJar._
+
+  /**
+   * Reads an entry into a buffer of the current thread.
+   * The result is valid until the next call of `read` in the current thread.
+   */
+  def read(entry: MappedEntry): ClassReader = {
+    val buffers = threadBuffers.get()
+    // duplicate is a view, it allows to use relative operations in several threads
+    val data = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN)
+    val local = entry.localHeaderOffset
+    if (data.getInt(local) != LOCAL_HEADER)
+      throw new ZipException(s"bad local header of ${entry.name}")
+    data.position(local + 30 + unsigned16(data, local + 26) + unsigned16(data, local + 28))
+
+    val out = buffers.output(entry.size)
+    entry.method match {
+      case STORED =>
+        data.get(out, 0, entry.size)
+      case DEFLATED =>
+        val in = buffers.input(entry.compressedSize)
+        data.get(in, 0, entry.compressedSize)
+        val inflater = buffers.inflater
+        inflater.reset()
+        inflater.setInput(in, 0, entry.compressedSize)
+        var n = 0
+        while (n < entry.size) {
+          val inflated = inflater.inflate(out, n, entry.size - n)
+          if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+            throw new ZipException(s"truncated entry ${entry.name}")
+          n += inflated
+        }
+      case m =>
+        throw new ZipException(s"unsupported compression method $m of ${entry.name}")
+    }
+    new ClassReader(out, 0, entry.size)
+  }
+}
+
+object MappedJar {
+  val LOCAL_HEADER = 0x04034b50
+  val CENTRAL_HEADER = 0x02014b50
+  val END_HEADER = 0x06054b50
+  val STORED = 0
+  val DEFLATED = 8
+
+  // reusable per-thread buffers, grow on demand
+  private class Buffers {
+    private var in = new Array[Byte](1 << 16)
+    private var out = new Array[Byte](1 << 16)
+    val inflater = new Inflater(true)
+
+    def input(size: Int): Array[Byte] = {
+      if (in.length < size) in = new Array[Byte](math.max(size, in.length * 2))
+      in
+    }
+
+    def output(size: Int): Array[Byte] = {
+      if (out.length < size) out = new Array[Byte](math.max(size, out.length * 2))
+      out
+    }
+  }
+
+  private val threadBuffers = new ThreadLocal[Buffers] {
+    override def initialValue() = new Buffers
+  }
+
+  /**
+   * Maps an archive and reads its central directory.
+   *
+   * @return None if the archive cannot be handled by this reader
+   */
+  def open(file: File): Option[MappedJar] = {
+    val raf = new RandomAccessFile(file, "r")
+    try {
+      val channel = raf.getChannel
+      if (channel.size() > Int.MaxValue)
+        return None
+      // mapping stays valid after the channel is closed
+      val buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN)
+      readEntries(buffer).map(new MappedJar(buffer, _))
+    } finally {
+      raf.close()
+    }
+  }
+
+  private def readEntries(buffer: ByteBuffer): Option[IndexedSeq[MappedEntry]] = {
+    val end = findEnd(buffer)
+    // not an archive (or a broken one), `JarFile` reports it
+    if (end < 0)
+      return None
+    val count = unsigned16(buffer, end + 10)
+    val offset = buffer.getInt(end + 16)
+    // zip64 archive
+    if (count == 0xFFFF || offset == -1)
+      return None
+
+    val entries = new ArrayBuffer[MappedEntry](count)
+    var pos = offset
+    for (_ <- 0 until count) {
+      if (buffer.getInt(pos) != CENTRAL_HEADER)
+        throw new ZipException("bad central directory")
+      val flags = unsigned16(buffer, pos + 8)
+      val method = unsigned16(buffer, pos + 10)
+      val compressedSize = buffer.getInt(pos + 20)
+      val size = buffer.getInt(pos + 24)
+      val nameLength = unsigned16(buffer, pos + 28)
+      val extraLength = unsigned16(buffer, pos + 30)
+      val commentLength = unsigned16(buffer, pos + 32)
+      val localHeaderOffset = buffer.getInt(pos + 42)
+      // encrypted entries or zip64 entries
+      if ((flags & 1) != 0 || compressedSize == -1 || size == -1 || localHeaderOffset == -1)
+        return None
+      val nameBytes = new Array[Byte](nameLength)
+      val data = buffer.duplicate()
+      data.position(pos + 46)
+      data.get(nameBytes)
+      entries += MappedEntry(new String(nameBytes, StandardCharsets.UTF_8), method, compressedSize, size, localHeaderOffset)
+      pos += 46 + nameLength + extraLength + commentLength
+    }
+    Some(entries)
+  }
+
+  // end of central directory record is at the end of archive, followed by a comment (up to 64K)
+  private def findEnd(buffer: ByteBuffer): Int = {
+    var pos = buffer.limit() - 22
+    val min = math.max(0, pos - 0xFFFF)
+    while (pos >= min) {
+      if (buffer.getInt(pos) == END_HEADER)
+        return pos
+      pos -= 1
+    }
+    -1
+  }
+
+  private def unsigned16(buffer: ByteBuffer, pos: Int): Int =
+    buffer.getShort(pos) & 0xFFFF
 }
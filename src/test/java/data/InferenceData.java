@@ -48,4 +48,35 @@ public class InferenceData {
         }
     }
 
+    // see notes/equation-explosion.md: sums of products of these methods have 2^5 products
+
+    public static void nullChecks(@ExpectNotNull Object o, boolean b1, boolean b2, boolean b3, boolean b4, boolean b5) {
+        if (b1) d(o, "", "", "", "");
+        if (b2) d("", o, "", "", "");
+        if (b3) d("", "", o, "", "");
+        if (b4) d("", "", "", o, "");
+        if (b5) d("", "", "", "", o);
+        t(o);
+    }
+
+    public static void branches(@ExpectNotNull Object o, boolean b1, boolean b2, boolean b3, boolean b4, boolean b5) {
+        if (b1) d(o, "", "", "", ""); else e(o, "", "", "", "");
+        if (b2) d("", o, "", "", ""); else e("", o, "", "", "");
+        if (b3) d("", "", o, "", ""); else e("", "", o, "", "");
+        if (b4) d("", "", "", o, ""); else e("", "", "", o, "");
+        if (b5) d("", "", "", "", o); else e("", "", "", "", o);
+    }
+
+    static void d(@ExpectNotNull Object o1, @ExpectNotNull Object o2, @ExpectNotNull Object o3, @ExpectNotNull Object o4, @ExpectNotNull Object o5) {
+        o1.hashCode();
+        o2.hashCode();
+        o3.hashCode();
+        o4.hashCode();
+        o5.hashCode();
+    }
+
+    static void e(@ExpectNotNull Object o1, @ExpectNotNull Object o2, @ExpectNotNull Object o3, @ExpectNotNull Object o4, @ExpectNotNull Object o5) {
+        d(o1, o2, o3, o4, o5);
+    }
+
 }
@@ -0,0 +1,47 @@
+package data;
+
+import annotations.ExpectFlow;
+
+public class ParameterFlowData {
+
+    // parameters which are returned come first: result origins are local slots, see OriginsAnalysis
+    static Object id(@ExpectFlow Object o, long l, double d) {
+        return o;
+    }
+
+    Object virtualId(@ExpectFlow Object o, double d) {
+        return o;
+    }
+
+    // a returned parameter flows into the result
+    Object returned(@ExpectFlow Object o, long l) {
+        return o;
+    }
+
+    // arguments of a static call giving the result may flow into it (only references are tracked, wide values shift the stack)
+    static Object staticCall(long l, @ExpectFlow Object o, double d) {
+        return id(o, l, d);
+    }
+
+    // a receiver of a virtual call giving the result is not its argument
+    static Object receiver(ParameterFlowData data, double d, @ExpectFlow Object o) {
+        return data.virtualId(o, d);
+    }
+
+    // arguments of a virtual call to this, a wide parameter after them
+    Object thisCall(double d, @ExpectFlow Object o, long l) {
+        return virtualId(o, d);
+    }
+
+    // arguments of a call not giving the result do not flow into it
+    static Object notResult(long l, Object o, double d) {
+        id(o, l, d);
+        return null;
+    }
+
+    // only arguments of the call giving the result flow into it
+    static Object twoCalls(ParameterFlowData data, long l, @ExpectFlow Object o1, Object o2, double d) {
+        data.virtualId(o2, d);
+        return id(o1, l + 1, d);
+    }
+}
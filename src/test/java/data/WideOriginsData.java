@@ -0,0 +1,117 @@
+package data;
+
+/**
+ * Methods with many result origins (more than fit into bits of an int).
+ */
+public class WideOriginsData {
+
+    static String get(int i) {
+        return i % 2 == 0 ? null : String.valueOf(i);
+    }
+
+    public static String first8() {
+        String s;
+        s = get(0);
+        if (s != null) return s;
+        s = get(1);
+        if (s != null) return s;
+        s = get(2);
+        if (s != null) return s;
+        s = get(3);
+        if (s != null) return s;
+        s = get(4);
+        if (s != null) return s;
+        s = get(5);
+        if (s != null) return s;
+        s = get(6);
+        if (s != null) return s;
+        s = get(7);
+        if (s != null) return s;
+        return "";
+    }
+
+    public static String first40() {
+        String s;
+        s = get(0);
+        if (s != null) return s;
+        s = get(1);
+        if (s != null) return s;
+        s = get(2);
+        if (s != null) return s;
+        s = get(3);
+        if (s != null) return s;
+        s = get(4);
+        if (s != null) return s;
+        s = get(5);
+        if (s != null) return s;
+        s = get(6);
+        if (s != null) return s;
+        s = get(7);
+        if (s != null) return s;
+        s = get(8);
+        if (s != null) return s;
+        s = get(9);
+        if (s != null) return s;
+        s = get(10);
+        if (s != null) return s;
+        s = get(11);
+        if (s != null) return s;
+        s = get(12);
+        if (s != null) return s;
+        s = get(13);
+        if (s != null) return s;
+        s = get(14);
+        if (s != null) return s;
+        s = get(15);
+        if (s != null) return s;
+        s = get(16);
+        if (s != null) return s;
+        s = get(17);
+        if (s != null) return s;
+        s = get(18);
+        if (s != null) return s;
+        s = get(19);
+        if (s != null) return s;
+        s = get(20);
+        if (s != null) return s;
+        s = get(21);
+        if (s != null) return s;
+        s = get(22);
+        if (s != null) return s;
+        s = get(23);
+        if (s != null) return s;
+        s = get(24);
+        if (s != null) return s;
+        s = get(25);
+        if (s != null) return s;
+        s = get(26);
+        if (s != null) return s;
+        s = get(27);
+        if (s != null) return s;
+        s = get(28);
+        if (s != null) return s;
+        s = get(29);
+        if (s != null) return s;
+        s = get(30);
+        if (s != null) return s;
+        s = get(31);
+        if (s != null) return s;
+        s = get(32);
+        if (s != null) return s;
+        s = get(33);
+        if (s != null) return s;
+        s = get(34);
+        if (s != null) return s;
+        s = get(35);
+        if (s != null) return s;
+        s = get(36);
+        if (s != null) return s;
+        s = get(37);
+        if (s != null) return s;
+        s = get(38);
+        if (s != null) return s;
+        s = get(39);
+        if (s != null) return s;
+        return "";
+    }
+}
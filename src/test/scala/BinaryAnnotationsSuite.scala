@@ -0,0 +1,45 @@
+package faba.test
+
+import java.io.{DataOutputStream, File, FileOutputStream, IOException}
+import java.nio.file.Files
+
+import faba.MainProcessor
+import faba.binary.BinaryAnnotations
+import faba.cache.EventCodec
+import faba.source.JarFileSource
+import org.scalatest.{FunSuite, Matchers}
+
+class BinaryAnnotationsSuite extends FunSuite with Matchers {
+
+  test("velocity.jar: binary annotations are loaded as they were written") {
+    val result = new MainProcessor().process(JarFileSource(new File("data/velocity.jar")))
+    val file = File.createTempFile("annotations", ".bin")
+    try {
+      BinaryAnnotations.write(result, file)
+      BinaryAnnotations.read(file) should equal (result)
+    } finally {
+      file.delete()
+    }
+  }
+
+  test("not a binary annotations file") {
+    val file = File.createTempFile("annotations", ".bin")
+    try {
+      Files.write(file.toPath, "<root></root>".getBytes)
+      an [IOException] should be thrownBy BinaryAnnotations.read(file)
+    } finally {
+      file.delete()
+    }
+  }
+
+  test("a cache file is not a binary annotations file") {
+    val file = File.createTempFile("events", ".idx")
+    try {
+      val out = new DataOutputStream(new FileOutputStream(file))
+      try EventCodec.write(Seq(), out) finally out.close()
+      an [IOException] should be thrownBy BinaryAnnotations.read(file)
+    } finally {
+      file.delete()
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package faba.test
+
+import java.io.File
+import java.util.concurrent.{Callable, Executors, ForkJoinPool}
+
+import faba.calls.CallResolver
+import faba.data._
+import faba.index._
+import faba.source.{JarFileSource, MixedSource}
+import org.scalatest.{FunSuite, Matchers}
+
+import scala.collection.JavaConverters._
+
+class CallResolverSuite extends FunSuite with Matchers {
+
+  private lazy val events = {
+    val recorder = new IndexRecorder()
+    MixedSource(List(JarFileSource(new File("data/mockjdk7-rt.jar")), JarFileSource(new File("data/velocity.jar")))).process(recorder)
+    recorder.events.toVector
+  }
+
+  private def resolver(): CallResolver = {
+    val resolver = new CallResolver()
+    events.foreach {
+      case ClassDeclaration(classInfo) => resolver.addClassDeclaration(classInfo)
+      case MethodDeclaration(methodInfo) => resolver.addMethodDeclaration(methodInfo)
+      case _ =>
+    }
+    resolver.buildClassHierarchy()
+    resolver
+  }
+
+  test("mockjdk7-rt.jar, velocity.jar: a resolver shared by concurrent solvers resolves as unshared ones") {
+    val calls = events.collect { case MethodDeclaration(info) =>
+      Method(info.classInfo.name, info.name, info.desc)
+    }.flatMap(m => List(Key(m, Out, ResolveDirection.Upward), Key(m, Out, ResolveDirection.Downward)))
+    val expectedCalls = resolver().resolveCalls(calls)
+    val expectedOverridable = resolver().bindOverridableMethods()
+    expectedOverridable should not be empty
+
+    val shared = resolver()
+    val pool = new ForkJoinPool(4)
+    val executor = Executors.newFixedThreadPool(8)
+    try {
+      // every "solver" resolves its own share of calls, half of them bind overridable methods in a pool
+      val solvers = (0 until 8).map { i =>
+        executor.submit(new Callable[(Map[Key, Set[Key]], Map[Method, Set[Method]])] {
+          override def call() = {
+            val own = calls.zipWithIndex.collect { case (call, j) if j % 4 == i % 4 => call }
+            val overridable = shared.bindOverridableMethods(if (i % 2 == 0) Some(pool) else None)
+            (shared.resolveCalls(own), overridable)
+          }
+        })
+      }.map(_.get())
+
+      for ((i, (resolved, overridable)) <- solvers.indices.zip(solvers)) {
+        resolved should equal (expectedCalls.filterKeys(resolved.keySet).toMap)
+        resolved.size should equal (calls.zipWithIndex.count(_._2 % 4 == i % 4))
+        overridable should equal (expectedOverridable)
+        // computed once, shared by all solvers
+        overridable should be theSameInstanceAs solvers.head._2
+      }
+    } finally {
+      executor.shutdown()
+      pool.shutdown()
+    }
+  }
+}
@@ -0,0 +1,44 @@
+package faba.test
+
+import faba.analysis._
+import org.scalatest.{FunSuite, Matchers}
+
+class ControlFlowSuite extends FunSuite with Matchers {
+
+  private def graph(transitions: List[Int]*): ControlFlowGraph = {
+    val starts = transitions.scanLeft(0)(_ + _.size).toArray
+    ControlFlowGraph(starts, transitions.flatten.toArray, new Array[Boolean](starts.last), new Array[Boolean](transitions.size))
+  }
+
+  private def reducible(g: ControlFlowGraph): Boolean = {
+    val dfs = controlFlow.buildDFSTree(g)
+    !dfs.cyclic || controlFlow.reducible(g, dfs)
+  }
+
+  test("loops are found by DFS") {
+    // 0 -> 1 -> 2 -> 1, 1 -> 3
+    val g = graph(List(1), List(2, 3), List(1), Nil)
+    val dfs = controlFlow.buildDFSTree(g)
+    dfs.cyclic should be (true)
+    dfs.loopEnters.toList should equal (List(false, true, false, false))
+    dfs.backEdges.toList should equal (List(false, false, false, true))
+    g.branching should be (true)
+    reducible(g) should be (true)
+  }
+
+  test("a loop with two entries is irreducible") {
+    // 0 -> 1, 0 -> 2, 1 <-> 2
+    reducible(graph(List(1, 2), List(2), List(1))) should be (false)
+    // edges from unreachable instructions are ignored: 0 -> 1 <-> 2 <- 3
+    reducible(graph(List(1), List(2), List(1), List(2))) should be (true)
+  }
+
+  test("predecessors reverse a graph") {
+    val g = graph(List(1, 2), List(2), List(0))
+    val predecessors = g.predecessors()
+    def sources(i: Int) = (predecessors.starts(i) until predecessors.starts(i + 1)).map(predecessors.sources(_)).toList
+    List(sources(0), sources(1), sources(2)) should equal (List(List(2), List(0), List(0, 1)))
+    for (k <- predecessors.sources.indices)
+      g.targets(predecessors.edges(k)) should equal ((0 to 2).find(i => predecessors.starts(i) <= k && k < predecessors.starts(i + 1)).get)
+  }
+}
@@ -0,0 +1,104 @@
+package faba.test
+
+import java.io.{File, FileOutputStream}
+import java.nio.file.{Files, Path}
+import java.util.jar.{JarFile, JarOutputStream}
+
+import faba.daemon.Daemon
+import faba.source.{MappedJarFileSource, MixedSource}
+import faba.{MainProcessor, Options}
+import org.scalatest.{FunSuite, Matchers}
+
+import scala.collection.JavaConverters._
+
+class DaemonSuite extends FunSuite with Matchers {
+
+  private def contents(dir: File): Map[String, String] =
+    Files.walk(dir.toPath).iterator().asScala.filter(Files.isRegularFile(_)).map { (p: Path) =>
+      dir.toPath.relativize(p).toString -> new String(Files.readAllBytes(p), "UTF-8")
+    }.toMap
+
+  test("only changed inputs are re-indexed, annotations are the same as of a cold run") {
+    val dir = Files.createTempDirectory("faba-daemon").toFile
+    val jdk = new File(dir, "mockjdk7-rt.jar")
+    val velocity = new File(dir, "velocity.jar")
+    Files.copy(new File("data/mockjdk7-rt.jar").toPath, jdk.toPath)
+    Files.copy(new File("data/velocity.jar").toPath, velocity.toPath)
+
+    val expected = new File(dir, "expected")
+    new MainProcessor().process(MixedSource(List(MappedJarFileSource(jdk), MappedJarFileSource(velocity))), expected.getPath)
+
+    val out = new File(dir, "out")
+    val daemon = new Daemon(Array(jdk.getPath, velocity.getPath), out, Options())
+    daemon.refresh() should equal (2)
+    contents(out) should equal (contents(expected))
+    daemon.refresh() should equal (-1)
+
+    velocity.setLastModified(velocity.lastModified() + 2000)
+    daemon.refresh() should equal (1)
+    contents(out) should equal (contents(expected))
+    daemon.refresh(force = true) should equal (0)
+    contents(out) should equal (contents(expected))
+  }
+
+  // a copy of a jar without some classes
+  private def strip(from: File, to: File, drop: String => Boolean): Unit = {
+    val jar = new JarFile(from)
+    val out = new JarOutputStream(new FileOutputStream(to))
+    try {
+      for (entry <- jar.entries().asScala if !drop(entry.getName)) {
+        out.putNextEntry(new java.util.jar.JarEntry(entry.getName))
+        val in = jar.getInputStream(entry)
+        try {
+          val buffer = new Array[Byte](1 << 16)
+          var n = in.read(buffer)
+          while (n >= 0) {
+            out.write(buffer, 0, n)
+            n = in.read(buffer)
+          }
+        } finally {
+          in.close()
+        }
+        out.closeEntry()
+      }
+    } finally {
+      out.close()
+      jar.close()
+    }
+  }
+
+  private def cold(dir: File, name: String, jars: File*): File = {
+    val out = new File(dir, name)
+    new MainProcessor().process(MixedSource(jars.toList.map(MappedJarFileSource)), out.getPath)
+    out
+  }
+
+  test("retracted and changed classes give the same annotations as a cold run") {
+    val dir = Files.createTempDirectory("faba-daemon").toFile
+    val jdk = new File(dir, "mockjdk7-rt.jar")
+    val velocity = new File(dir, "velocity.jar")
+    val original = new File("data/velocity.jar")
+    Files.copy(new File("data/mockjdk7-rt.jar").toPath, jdk.toPath)
+    Files.copy(original.toPath, velocity.toPath)
+
+    val out = new File(dir, "out")
+    val daemon = new Daemon(Array(jdk.getPath, velocity.getPath), out, Options())
+    daemon.refresh() should equal (2)
+
+    // classes (with their subclasses and implementations) disappear
+    strip(original, velocity, name => name.contains("/runtime/") && name.hashCode % 3 == 0)
+    velocity.setLastModified(velocity.lastModified() + 2000)
+    daemon.refresh() should equal (1)
+    contents(out) should equal (contents(cold(dir, "stripped", jdk, velocity)))
+
+    // and come back
+    Files.copy(original.toPath, velocity.toPath, java.nio.file.StandardCopyOption.REPLACE_EXISTING)
+    velocity.setLastModified(velocity.lastModified() + 4000)
+    daemon.refresh() should equal (1)
+    contents(out) should equal (contents(cold(dir, "full", jdk, velocity)))
+
+    velocity.delete()
+    daemon.refresh() should equal (0)
+    contents(out) should equal (contents(cold(dir, "jdk", jdk)))
+  }
+}
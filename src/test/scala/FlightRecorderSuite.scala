@@ -0,0 +1,45 @@
+package faba.test
+
+import java.io.File
+import java.nio.file.Files
+
+import faba.MainProcessor
+import faba.source.{JarFileSource, MixedSource}
+import jdk.jfr.Recording
+import jdk.jfr.consumer.RecordingFile
+import org.scalatest.{FunSuite, Matchers}
+
+import scala.collection.JavaConversions._
+
+class FlightRecorderSuite extends FunSuite with Matchers {
+
+  test("velocity.jar: phases, sources and solvers are recorded") {
+    val recording = new Recording()
+    for (event <- List("faba.Phase", "faba.Source", "faba.Solve", "faba.Class", "faba.LimitHit"))
+      recording.enable(event)
+    recording.start()
+    new MainProcessor().process(MixedSource(List(JarFileSource(new File("data/velocity.jar")))))
+    recording.stop()
+
+    val file = Files.createTempFile("faba", ".jfr")
+    try {
+      recording.dump(file)
+      val events = RecordingFile.readAllEvents(file).toList
+      def named(name: String) = events.filter(_.getEventType.getName == name)
+
+      named("faba.Phase").map(_.getString("phase")).toSet should equal (Set("index", "hierarchy", "resolve", "overridable", "bind"))
+      named("faba.Phase").filter(_.getString("phase") == "bind").map(_.getString("solver")).toSet should equal (
+        Set("notNullParams", "nullableParams", "contracts", "nullableResult", "purity"))
+      named("faba.Source").map(_.getString("source")) should equal (List(JarFileSource(new File("data/velocity.jar")).toString))
+      val solves = named("faba.Solve")
+      solves.map(_.getString("solver")).toSet should equal (Set("notNullParams", "nullableParams", "contracts", "nullableResult", "purity"))
+      for (solve <- solves) {
+        solve.getInt("pending") should be <= solve.getInt("equations")
+        solve.getInt("solutions") should be > 0
+      }
+    } finally {
+      recording.close()
+      Files.delete(file)
+    }
+  }
+}
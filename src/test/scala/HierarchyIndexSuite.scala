@@ -0,0 +1,81 @@
+package faba.test
+
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream, DataInputStream, DataOutputStream}
+
+import faba.calls.{ClassInfo, HierarchyIndex, MethodInfo}
+import org.objectweb.asm.Opcodes._
+import org.scalatest.{FunSuite, Matchers}
+
+class HierarchyIndexSuite extends FunSuite with Matchers {
+
+  private val Object = "java/lang/Object"
+  private val classes = List(
+    ClassInfo(ACC_PUBLIC, "A", Object, Nil),
+    ClassInfo(ACC_PUBLIC | ACC_ABSTRACT, "B", "A", Nil),
+    ClassInfo(ACC_PUBLIC, "C", "B", Nil),
+    ClassInfo(ACC_PUBLIC | ACC_INTERFACE | ACC_ABSTRACT, "I", Object, Nil),
+    ClassInfo(ACC_PUBLIC | ACC_INTERFACE | ACC_ABSTRACT, "J", Object, List("I")),
+    ClassInfo(ACC_PUBLIC, "D", "A", List("J")),
+    ClassInfo(ACC_PUBLIC, "E", "D", List("I")),
+    ClassInfo(ACC_PUBLIC, "F", Object, List("I")),
+    ClassInfo(ACC_PUBLIC, "H", "Unknown", Nil)
+  ).map(info => info.name -> info).toMap
+
+  private val methods = Map(
+    "A" -> List(ACC_PUBLIC),
+    "B" -> List(ACC_PUBLIC | ACC_ABSTRACT),
+    "C" -> List(ACC_PUBLIC),
+    "I" -> List(ACC_PUBLIC | ACC_ABSTRACT),
+    "F" -> List(ACC_PUBLIC)
+  ).withDefaultValue(Nil)
+
+  private def index: HierarchyIndex =
+    HierarchyIndex(classes, classes.keys.map(name => name -> methods(name).map(MethodInfo(classes(name), _, "m", "()V")).toSet).toMap)
+
+  private def check(index: HierarchyIndex): Unit = {
+    import index._
+    def inheritorsOf(name: String): Set[String] = inheritors(id(name)).map(names(_)).toSet
+    def resolve(name: String): Option[String] = Option(resolveUpward(id(name), "m", "()V")).map(_.classInfo.name)
+
+    isSubclass(id("C"), id("A")) should be (true)
+    isSubclass(id("E"), id("A")) should be (true)
+    isSubclass(id("A"), id("A")) should be (true)
+    isSubclass(id("A"), id("C")) should be (false)
+    isSubclass(id("E"), id("B")) should be (false)
+    isSubclass(id("F"), id("I")) should be (false)
+    isSubclass(id("H"), id("Unknown")) should be (true)
+    declared(id("Unknown")) should be (false)
+    id("Missing") should equal (-1)
+
+    inheritorsOf("A") should equal (Set("A", "B", "C", "D", "E"))
+    inheritorsOf("J") should equal (Set("J", "D", "E"))
+    inheritorsOf("I") should equal (Set("I", "J", "D", "E", "F"))
+    inheritorsOf(Object) should equal (Set(Object, "A", "B", "C", "D", "E", "F"))
+    inheritors(id("I")).length should equal (5)
+    index.inheritors(List("J", "Missing")) should equal (Set("J", "D", "E", "Missing"))
+
+    resolve("A") should equal (Some("A"))
+    resolve("B") should equal (Some("A"))
+    resolve("C") should equal (Some("C"))
+    resolve("E") should equal (Some("A"))
+    resolve("F") should equal (Some("F"))
+    // methods of an undeclared superclass are unknown
+    resolve("H") should equal (None)
+    declaration(id("B"), "m", "()V") should be (null)
+    declaration(id("F"), "m", "()V").classInfo should equal (classes("F"))
+    declaration(id("F"), "n", "()V") should be (null)
+  }
+
+  test("subclasses, inheritors and declarations") {
+    check(index)
+  }
+
+  test("an index read back answers the same") {
+    val bytes = new ByteArrayOutputStream()
+    index.write(new DataOutputStream(bytes))
+    val read = HierarchyIndex.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray)))
+    read.names should equal (index.names)
+    read.classInfos should equal (index.classInfos)
+    check(read)
+  }
+}
@@ -0,0 +1,48 @@
+package faba.test
+
+import java.io.File
+import java.nio.file.Files
+
+import faba.budget.{Budget, Budgets}
+import faba.{MainProcessor, Options}
+import faba.source.JarFileSource
+import org.scalatest.{FunSuite, Matchers}
+
+class IndexCacheSuite extends FunSuite with Matchers {
+
+  test("velocity.jar: results replayed from cache are the same as indexed ones") {
+    val source = JarFileSource(new File("data/velocity.jar"))
+    val cacheDir = Files.createTempDirectory("faba-cache").toFile
+
+    val plain = new MainProcessor()
+    val plainResult = plain.process(source)
+
+    val cold = new MainProcessor(options = Options(cache = Some(cacheDir)))
+    val coldResult = cold.process(source)
+    cacheDir.listFiles().length should equal (1)
+
+    val warm = new MainProcessor(options = Options(cache = Some(cacheDir)))
+    val warmResult = warm.process(source)
+
+    coldResult should equal (plainResult)
+    warmResult should equal (plainResult)
+    warm.extras.toMap should equal (plain.extras.toMap)
+
+    cacheDir.listFiles().foreach(_.delete())
+    cacheDir.delete()
+  }
+
+  test("velocity.jar: an input with escalated methods is not cached") {
+    val source = JarFileSource(new File("data/velocity.jar"))
+    val cacheDir = Files.createTempDirectory("faba-cache").toFile
+
+    val plainResult = new MainProcessor().process(source)
+    val adaptive = new MainProcessor(options = Options(cache = Some(cacheDir))) {
+      override val budgets = new Budgets(Budget(64, 10), 4, Budget.Default, Long.MaxValue)
+    }
+    adaptive.process(source) should equal (plainResult)
+    cacheDir.listFiles().length should equal (0)
+
+    cacheDir.delete()
+  }
+}
@@ -0,0 +1,55 @@
+package faba.test
+
+import java.io.File
+import java.nio.file.Files
+
+import faba.MainProcessor
+import faba.data._
+import faba.query.LazyInference
+import faba.source.JarFileSource
+import org.scalatest.{FunSuite, Matchers}
+
+class LazyInferenceSuite extends FunSuite with Matchers {
+
+  def restrict(result: InferenceResult, methods: Set[Method]): InferenceResult =
+    InferenceResult(
+      result.notNullParameters.filter(k => methods(k.method)),
+      result.nullableParameters.filter(k => methods(k.method)),
+      result.notNullMethods.filter(k => methods(k.method)),
+      result.nullableMethods.filter(k => methods(k.method)),
+      result.pureMethods.filter(k => methods(k.method)),
+      result.contractClauses.filter(kv => methods(kv._1.method))
+    )
+
+  def union(results: Iterable[InferenceResult]): InferenceResult =
+    InferenceResult(
+      results.flatMap(_.notNullParameters).toSet,
+      results.flatMap(_.nullableParameters).toSet,
+      results.flatMap(_.notNullMethods).toSet,
+      results.flatMap(_.nullableMethods).toSet,
+      results.flatMap(_.pureMethods).toSet,
+      results.flatMap(_.contractClauses).toMap
+    )
+
+  test("velocity.jar: lazy inference gives the same result as global solving") {
+    val source = JarFileSource(new File("data/velocity.jar"))
+    val indexDir = Files.createTempDirectory("faba-index").toFile
+
+    val processor = new MainProcessor()
+    val expected = processor.process(source)
+    val methods = processor.extras.methods.toList.sortBy(_.toString)
+
+    new MainProcessor().buildEquationIndex(source, indexDir)
+
+    // a cold query per method
+    for (method <- methods.grouped(20).map(_.head))
+      new LazyInference(indexDir).inferFor(method) should equal (restrict(expected, Set(method)))
+
+    // all methods one by one, reusing memoized solutions
+    val inference = new LazyInference(indexDir)
+    union(methods.map(inference.inferFor)) should equal (expected)
+
+    indexDir.listFiles().foreach(_.delete())
+    indexDir.delete()
+  }
+}
@@ -1,11 +1,19 @@
 package faba.test
 
+import java.io.File
+
 import annotations._
-import data.LeakingParametersData
+import data.{LeakingParametersData, ParameterFlowData}
+import faba.analysis.controlFlow
 import faba.analysis.leakingParameters._
+import faba.analysis.resultInfluence.ParameterToResultFlow
+import faba.analysis.resultOrigins.OriginsAnalysis
+import faba.asm.LiteAnalyzer
 import faba.data._
+import faba.source.{JarFileSource, Processor}
 import org.objectweb.asm._
-import org.objectweb.asm.tree.MethodNode
+import org.objectweb.asm.tree.analysis.{Analyzer, Frame, Interpreter, Value => ASMValue}
+import org.objectweb.asm.tree.{AbstractInsnNode, MethodNode}
 import org.scalatest.{FunSuite, Matchers}
 
 class LeakingParametersSuite extends FunSuite with Matchers {
@@ -14,6 +22,130 @@ class LeakingParametersSuite extends FunSuite with Matchers {
     checkLeakingParameters(classOf[LeakingParametersData])
   }
 
+  test("ParameterFlowData.class") {
+    val jClass = classOf[ParameterFlowData]
+    val className = Type.getInternalName(jClass)
+    for (jMethod <- jClass.getDeclaredMethods) {
+      val node = methodNode(jClass, jMethod.getName)
+      val flow = ParameterToResultFlow.analyze(node, leaking(className, node), origins(className, node))
+      for ((anns, i) <- jMethod.getParameterAnnotations.zipWithIndex)
+        assert(flow(i) == anns.exists(_.annotationType == classOf[ExpectFlow]), s"'$jClass $jMethod #$i'")
+    }
+  }
+
+  test("mockjdk7-rt.jar, velocity.jar: a single pass gives the same as two passes") {
+    var methods = 0
+    for (jar <- List("data/mockjdk7-rt.jar", "data/velocity.jar"))
+      JarFileSource(new File(jar)).process(new Processor {
+        override def processClass(classReader: ClassReader): Unit =
+          classReader.accept(new ClassVisitor(Opcodes.ASM5) {
+            override def visitMethod(access: Int, name: String, desc: String, signature: String, exceptions: Array[String]) = {
+              val node = new MethodNode(Opcodes.ASM5, access, name, desc, signature, exceptions)
+              new MethodVisitor(Opcodes.ASM5, node) {
+                var jsr = false
+                override def visitJumpInsn(opcode: Int, label: Label): Unit = {
+                  if (opcode == Opcodes.JSR) jsr = true
+                  super.visitJumpInsn(opcode, label)
+                }
+                override def visitEnd(): Unit = {
+                  super.visitEnd()
+                  if (node.instructions.size() > 0) {
+                    compare(classReader.getClassName, node, jsr)
+                    methods += 1
+                  }
+                }
+              }
+            }
+          }, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES)
+      })
+    methods should be > 1000
+  }
+
+  private def compare(className: String, node: MethodNode, jsr: Boolean): Unit = {
+    val where = s"$className ${node.name}${node.desc}"
+    val fused = LeakingParameters.build(className, node, jsr)
+    val reference = twoPasses(className, node, jsr)
+    assert(fused.frames.map(values) sameElements reference.frames.map(values), where)
+    assert(fused.parameters sameElements reference.parameters, where)
+    assert(fused.nullableParameters sameElements reference.nullableParameters, where)
+    assert(fused.splittingParameters sameElements reference.splittingParameters, where)
+    if (Type.getReturnType(node.desc).getSort >= Type.ARRAY) {
+      val graph = controlFlow.buildControlFlowGraph(className, node, jsr)
+      val origins = OriginsAnalysis.resultOrigins(fused.frames.asInstanceOf[Array[Frame[ASMValue]]], node, graph)
+      assert(ParameterToResultFlow.analyze(node, fused, origins) sameElements referenceFlow(node, reference, origins), where)
+    }
+  }
+
+  private def values(frame: Frame[ParamsValue]): List[ParamsValue] =
+    if (frame == null) Nil
+    else (0 until frame.getLocals).map(frame.getLocal).toList ++ (0 until frame.getStackSize).map(frame.getStack)
+
+  // leaking parameters as they were computed before: a fixpoint first, then instructions are re-executed over it
+  private def twoPasses(className: String, node: MethodNode, jsr: Boolean): LeakingParameters = {
+    val frames =
+      if (jsr) new Analyzer(new ParametersUsageInterpreter(node)).analyze(className, node)
+      else new LiteAnalyzer(new ParametersUsageInterpreter(node)).analyze(className, node)
+    val collector = new LeakingParametersCollector(node)
+    for (i <- frames.indices if frames(i) != null) node.instructions.get(i).getType match {
+      case AbstractInsnNode.LABEL | AbstractInsnNode.LINE | AbstractInsnNode.FRAME =>
+      case _ => new Frame(frames(i)).execute(node.instructions.get(i), collector)
+    }
+    LeakingParameters(frames, collector.parameters, collector.nullableParameters, collector.splittingParameters)
+  }
+
+  // parameter to result flow as it was computed before: calls at result origins are re-executed
+  private def referenceFlow(node: MethodNode, leaking: LeakingParameters, origins: faba.analysis.resultOrigins.Origins): Array[Boolean] = {
+    val flow = java.util.Arrays.copyOf(origins.parameters, origins.parameters.length)
+    val interpreter = new Interpreter[ParamsValue](Opcodes.ASM5) {
+      override def naryOperation(insn: AbstractInsnNode, values: java.util.List[_ <: ParamsValue]): ParamsValue = {
+        var n = if (insn.getOpcode == Opcodes.INVOKESTATIC) 0 else 1
+        while (n < values.size()) {
+          for (i <- values.get(n).params)
+            flow(i) = true
+          n += 1
+        }
+        ParamsValue(Set(), 1)
+      }
+      override def newValue(`type`: Type) = ???
+      override def newOperation(insn: AbstractInsnNode) = ???
+      override def binaryOperation(insn: AbstractInsnNode, value1: ParamsValue, value2: ParamsValue) = ???
+      override def unaryOperation(insn: AbstractInsnNode, value: ParamsValue) = ???
+      override def ternaryOperation(insn: AbstractInsnNode, value1: ParamsValue, value2: ParamsValue, value3: ParamsValue) = ???
+      override def returnOperation(insn: AbstractInsnNode, value: ParamsValue, expected: ParamsValue) = ???
+      override def copyOperation(insn: AbstractInsnNode, value: ParamsValue) = ???
+      override def merge(v: ParamsValue, w: ParamsValue) = ???
+    }
+    for (i <- 0 until node.instructions.size() if origins.instructions(i) && leaking.frames(i) != null) {
+      val insn = node.instructions.get(i)
+      insn.getOpcode match {
+        case Opcodes.INVOKESTATIC | Opcodes.INVOKESPECIAL | Opcodes.INVOKEVIRTUAL | Opcodes.INVOKEINTERFACE =>
+          new Frame(leaking.frames(i)).execute(insn, interpreter)
+        case _ =>
+      }
+    }
+    flow
+  }
+
+  private def methodNode(jClass: Class[_], name: String): MethodNode = {
+    var result: MethodNode = null
+    new ClassReader(jClass.getCanonicalName).accept(new ClassVisitor(Opcodes.ASM5) {
+      override def visitMethod(access: Int, mName: String, desc: String, signature: String, exceptions: Array[String]) =
+        if (mName != name) null
+        else {
+          result = new MethodNode(Opcodes.ASM5, access, mName, desc, signature, exceptions)
+          result
+        }
+    }, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES)
+    result
+  }
+
+  private def leaking(className: String, node: MethodNode): LeakingParameters =
+    LeakingParameters.build(className, node, jsr = false)
+
+  private def origins(className: String, node: MethodNode): faba.analysis.resultOrigins.Origins =
+    OriginsAnalysis.resultOrigins(leaking(className, node).frames.asInstanceOf[Array[Frame[ASMValue]]], node,
+      controlFlow.buildControlFlowGraph(className, node, jsr = false))
+
   def checkLeakingParameters(classes: Class[_]*) {
     var map = Map[Method, Array[Boolean]]()
 
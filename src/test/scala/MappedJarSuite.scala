@@ -0,0 +1,41 @@
+package faba.test
+
+import java.io.File
+import java.nio.file.Files
+
+import faba.source.{JarFileSource, MappedJar, MappedJarFileSource, Processor, Source}
+import org.objectweb.asm.{ClassReader, ClassWriter}
+import org.scalatest.{FunSuite, Matchers}
+
+import scala.collection.mutable.ArrayBuffer
+
+class MappedJarSuite extends FunSuite with Matchers {
+
+  // class names and (rewritten) bytes in order of processing
+  def read(source: Source): List[(String, List[Byte])] = {
+    val classes = ArrayBuffer[(String, List[Byte])]()
+    source.process(new Processor {
+      override def processClass(classReader: ClassReader): Unit = {
+        val writer = new ClassWriter(0)
+        classReader.accept(writer, 0)
+        classes += ((classReader.getClassName, writer.toByteArray.toList))
+      }
+    })
+    classes.toList
+  }
+
+  for (jar <- List("data/velocity.jar", "data/mockjdk7-rt.jar"))
+    test(s"$jar: mapped reader gives the same classes as JarFile") {
+      val file = new File(jar)
+      val expected = read(JarFileSource(file))
+      val mapped = read(MappedJarFileSource(file))
+      mapped should equal (expected)
+    }
+
+  test("a file without the end of central directory is left to JarFile") {
+    val file = Files.createTempFile("faba-mapped", ".jar").toFile
+    Files.write(file.toPath, "not an archive".getBytes("UTF-8"))
+    MappedJar.open(file) should be (None)
+    file.delete()
+  }
+}
@@ -0,0 +1,125 @@
+package faba.test
+
+import java.io.File
+import java.nio.file.Files
+
+import faba.{CmdUtils, MainProcessor, Options}
+import faba.budget.{Budget, Budgets}
+import faba.dedupe.SharedMethodBodies
+import faba.index.IndexRecorder
+import faba.profile.{AnalysisKind, MethodProfiler}
+import faba.source.JarFileSource
+import org.scalatest.{FunSuite, Matchers}
+
+import scala.io.Source
+
+class OptionsSuite extends FunSuite with Matchers {
+
+  test("options are split from inputs, an option without a value is a usage error") {
+    val (options, rest) = CmdUtils.getOptions(Array("--threads", "4", "--solver=int", "a.jar", "out"))
+    options should equal (Map("threads" -> "4", "solver" -> "int"))
+    rest should equal (Array("a.jar", "out"))
+    val error = the [RuntimeException] thrownBy CmdUtils.getOptions(Array("--threads"))
+    error.getMessage should include ("--threads")
+  }
+
+  test("an unknown option is a usage error") {
+    for (key <- List("thread", "dedup")) {
+      val error = the [RuntimeException] thrownBy Options(Map(key -> "4", "threads" -> "4"))
+      error.getMessage should include (s"--$key")
+    }
+  }
+
+  test("an unknown value of an enumerated option is a usage error") {
+    Options(Map("solver" -> "int", "format" -> "bin")) should equal (Options(solver = "int", format = "bin"))
+    Options(Map[String, String]()) should equal (Options())
+    for (key <- List("solver", "format")) {
+      val error = the [RuntimeException] thrownBy Options(Map(key -> "json"))
+      error.getMessage should include (s"--$key")
+    }
+  }
+
+  test("velocity.jar: parallel indexing gives the same result as sequential one") {
+    val source = JarFileSource(new File("data/velocity.jar"))
+
+    val sequential = new MainProcessor()
+    val sequentialResult = sequential.process(source)
+
+    val parallel = new MainProcessor(options = Options(threads = 4))
+    val parallelResult = parallel.process(source)
+
+    parallelResult should equal (sequentialResult)
+    parallel.extras.toMap should equal (sequential.extras.toMap)
+  }
+
+  test("velocity.jar: int solver gives the same result as staged one") {
+    val source = JarFileSource(new File("data/velocity.jar"))
+    val staged = new MainProcessor().process(source)
+    val int = new MainProcessor(options = Options(solver = "int")).process(source)
+    int should equal (staged)
+  }
+
+  test("velocity.jar: incremental solver gives the same result as staged one") {
+    val source = JarFileSource(new File("data/velocity.jar"))
+    val staged = new MainProcessor().process(source)
+    val incremental = new MainProcessor(options = Options(solver = "incremental")).process(source)
+    incremental should equal (staged)
+  }
+
+  test("velocity.jar: concurrent pipelines give the same result as sequential ones") {
+    val source = JarFileSource(new File("data/velocity.jar"))
+    val sequential = new MainProcessor().process(source)
+    val concurrent = new MainProcessor(options = Options(solveThreads = 4)).process(source)
+    concurrent should equal (sequential)
+  }
+
+  test("velocity.jar: profiling does not change the result and reports every analyzed method") {
+    val source = JarFileSource(new File("data/velocity.jar"))
+    val plain = new MainProcessor().process(source)
+    val dir = Files.createTempDirectory("profile").toFile
+    val profiled = new MainProcessor(options = Options(threads = 4, profile = Some(dir), profileTop = 10))
+    profiled.process(source) should equal (plain)
+
+    val costs = profiled.profiler.asInstanceOf[MethodProfiler].costList
+    costs.map(_.method).toSet should equal (profiled.extras.methods.toSet)
+    costs.filter(_.kind == AnalysisKind.Purity).map(_.runs).toSet should equal (Set(1))
+
+    val csv = Source.fromFile(new File(dir, "profile.csv")).getLines().toList
+    csv.head should equal ("class,method,descriptor,analysis,runs,nanos,allocated_bytes,states,max_size,limit_hits")
+    csv.tail.size should equal (costs.size)
+    new File(dir, "hot-methods.txt").exists() should be (true)
+  }
+
+  test("velocity.jar: budgets escalated up to the default one give the same result") {
+    val source = JarFileSource(new File("data/velocity.jar"))
+    val plain = new MainProcessor().process(source)
+    class Adaptive(threads: Int, max: Budget, allowanceMillis: Long) extends MainProcessor(options = Options(threads = threads)) {
+      override val budgets = new Budgets(Budget(64, 10), 4, max, allowanceMillis)
+      var escalated = 0
+      override def escalate(threads: Int): Unit = {
+        escalated += deferred.size
+        super.escalate(threads)
+      }
+    }
+    // the default budget is reached regardless of the allowance
+    for (threads <- List(1, 4); (max, allowanceMillis) <- List((Budget.Default, Long.MaxValue), (Budget.Default * 8, 0L))) {
+      val adaptive = new Adaptive(threads, max, allowanceMillis)
+      adaptive.process(source) should equal (plain)
+      adaptive.escalated should be > 0
+    }
+  }
+
+  test("velocity.jar: reused analyses of identical bodies give the same equations and result") {
+    val source = JarFileSource(new File("data/velocity.jar"))
+    val plain = new IndexRecorder()
+    source.process(plain)
+    val bodies = new SharedMethodBodies
+    val deduped = new IndexRecorder(bodies = bodies)
+    source.process(deduped)
+    deduped.events should equal (plain.events)
+    bodies.reused should be > 0
+
+    val result = new MainProcessor().process(source)
+    new MainProcessor(options = Options(threads = 4, dedupe = true)).process(source) should equal (result)
+  }
+}
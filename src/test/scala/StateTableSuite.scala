@@ -0,0 +1,71 @@
+package faba.test
+
+import faba.analysis._
+import org.objectweb.asm.Type
+import org.objectweb.asm.tree.analysis.{BasicValue, Frame}
+import org.scalatest.{FunSuite, Matchers}
+
+class StateTableSuite extends FunSuite with Matchers {
+
+  private def frame(values: BasicValue*): Frame[BasicValue] = {
+    val frame = new Frame[BasicValue](values.size, 0)
+    for ((v, i) <- values.zipWithIndex)
+      frame.setLocal(i, v)
+    frame
+  }
+
+  private def state(index: Int, insnIndex: Int, constraint: Int, values: BasicValue*): State =
+    State(index, Conf(insnIndex, frame(values: _*)), History.Empty, constraint)
+
+  test("states are found by equivalence") {
+    val table = new StateTable(0)
+    table.add(state(1, 0, 0, NullValue(1), BasicValue.INT_VALUE))
+    table.add(state(2, 0, 1, NullValue(1), BasicValue.INT_VALUE))
+
+    table.find(state(3, 0, 0, NullValue(1), BasicValue.INT_VALUE)).map(_.index) should equal (Some(1))
+    table.find(state(4, 0, 1, NullValue(1), BasicValue.INT_VALUE)).map(_.index) should equal (Some(2))
+    // another origin, another constraint, another instruction
+    table.find(state(5, 0, 0, NullValue(2), BasicValue.INT_VALUE)) should equal (None)
+    table.find(state(6, 0, 2, NullValue(1), BasicValue.INT_VALUE)) should equal (None)
+    table.find(state(7, 1, 0, NullValue(1), BasicValue.INT_VALUE)) should equal (None)
+  }
+
+  test("the last added equivalent state is found, also after growth") {
+    val table = new StateTable(0)
+    table.add(state(1, 5, 0, NThParamValue(0, Type.INT_TYPE)))
+    table.add(state(2, 5, 0, NThParamValue(0, Type.INT_TYPE)))
+    for (i <- 0 until 1000)
+      table.add(state(10 + i, i % 7, 0, TrackableBasicValue(i, Type.INT_TYPE)))
+    table.add(state(3, 5, 0, NThParamValue(0, Type.INT_TYPE)))
+
+    table.find(state(4, 5, 0, NThParamValue(0, Type.INT_TYPE))).map(_.index) should equal (Some(3))
+    table.find(state(4, 5, 0, NThParamValue(1, Type.INT_TYPE))) should equal (None)
+    for (i <- 0 until 1000)
+      table.find(state(0, i % 7, 0, TrackableBasicValue(i, Type.INT_TYPE))).map(_.index) should equal (Some(10 + i))
+  }
+
+  test("histories fold at the same instruction and are compared by values") {
+    val loop = Conf(3, frame(NullValue(1)))
+    val history = History.Empty.push(loop).push(Conf(7, frame(BasicValue.INT_VALUE)))
+
+    history.folds(Conf(3, frame(NullValue(2)))) should be (true)
+    history.folds(Conf(3, frame(BasicValue.INT_VALUE))) should be (false)
+    history.folds(Conf(5, frame(NullValue(1)))) should be (false)
+    history.latest(3).conf should be theSameInstanceAs loop
+
+    val other = History.Empty.push(Conf(3, frame(NullValue(1)))).push(Conf(7, frame(BasicValue.INT_VALUE)))
+    History.equiv(history, other) should be (true)
+    History.equiv(history, history.tail) should be (false)
+    History.equiv(history, History.Empty.push(Conf(3, frame(NullValue(2)))).push(Conf(7, frame(BasicValue.INT_VALUE)))) should be (false)
+    table(history).find(state(2, 0, 0, other)) should not equal (None)
+  }
+
+  private def table(history: History): StateTable = {
+    val table = new StateTable(0)
+    table.add(state(1, 0, 0, history))
+    table
+  }
+
+  private def state(index: Int, insnIndex: Int, constraint: Int, history: History): State =
+    State(index, Conf(insnIndex, frame(BasicValue.INT_VALUE)), history, constraint)
+}
@@ -0,0 +1,31 @@
+package faba.test
+
+import faba.data._
+import org.objectweb.asm.Type
+import org.scalatest.{FunSuite, Matchers}
+
+class SymbolsSuite extends FunSuite with Matchers {
+
+  test("structurally equal methods are interned") {
+    val m1 = Method(new String("a/B"), new String("foo"), new String("(Ljava/lang/Object;I)Z"))
+    val m2 = Method("a/B", "foo", "(Ljava/lang/Object;I)Z")
+    assert(m1 eq m2)
+    assert(Symbols.method(m1.id) eq m1)
+    m1.copy(methodName = "bar") should not equal m1
+    m1.argumentSorts.toList should equal (List(Type.OBJECT, Type.INT))
+    m1.returnSort should equal (Type.BOOLEAN)
+    Key(m1, In(0), ResolveDirection.Upward) should equal (Key(m2, In(0), ResolveDirection.Upward))
+    Key(m1, In(0), ResolveDirection.Upward).mkUnstable should equal (Key(m2, In(0), ResolveDirection.Downward))
+  }
+
+  test("method extras") {
+    val extras = new MethodExtras
+    val m1 = Method("a/B", "foo", "()V")
+    val m2 = Method("a/B", "bar", "()V")
+    extras(m1) = MethodExtra(Some("<T:Ljava/lang/Object;>()V"), 1)
+    extras(m1) should equal (MethodExtra(Some("<T:Ljava/lang/Object;>()V"), 1))
+    extras.get(m2) should equal (None)
+    extras(m2) = MethodExtra(None, 2)
+    extras.toMap should equal (Map(m1 -> MethodExtra(Some("<T:Ljava/lang/Object;>()V"), 1), m2 -> MethodExtra(None, 2)))
+  }
+}
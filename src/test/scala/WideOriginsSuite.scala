@@ -0,0 +1,40 @@
+package faba.test
+
+import data.WideOriginsData
+import faba.MainProcessor
+import faba.analysis.result.DereferenceConstraints
+import faba.data._
+import faba.source.ClassSource
+import org.objectweb.asm.Type
+import org.scalatest.{FunSuite, Matchers}
+
+class WideOriginsSuite extends FunSuite with Matchers {
+
+  test("wide constraints are interned sets") {
+    val constraints = new DereferenceConstraints(100)
+    val c1 = constraints.add(constraints.add(0, 3), 70)
+    val c2 = constraints.add(constraints.add(0, 70), 3)
+    c1 should equal (c2)
+    constraints.add(c1, 3) should equal (c1)
+    constraints.add(c1, -1) should equal (c1)
+    constraints.contains(c1, 70) should be (true)
+    constraints.contains(c1, 3) should be (true)
+    constraints.contains(c1, 4) should be (false)
+    constraints.contains(c1, -1) should be (false)
+    constraints.contains(0, 3) should be (false)
+  }
+
+  test("narrow constraints are bits") {
+    val constraints = new DereferenceConstraints(32)
+    constraints.add(constraints.add(0, 31), 0) should equal ((1 << 31) | 1)
+    constraints.contains(1 << 5, 5) should be (true)
+  }
+
+  test("WideOriginsData.class: results with more than 32 origins are inferred") {
+    val annotations = new MainProcessor().testProcess(ClassSource(classOf[WideOriginsData]))
+    for (name <- List("first8", "first40")) {
+      val method = Method(Type.getInternalName(classOf[WideOriginsData]), name, "()Ljava/lang/String;")
+      annotations.notNulls should contain (Key(method, Out, ResolveDirection.Upward))
+    }
+  }
+}
@@ -0,0 +1,57 @@
+package faba.test
+
+import java.io.{File, StringWriter}
+
+import faba.MainProcessor
+import faba.data._
+import faba.source.JarFileSource
+import org.objectweb.asm.Opcodes
+import org.scalatest.{FunSuite, Matchers}
+
+import scala.xml.PrettyPrinter
+
+class XmlWriterSuite extends FunSuite with Matchers {
+
+  def prettyPrinted(result: InferenceResult, extras: Method => MethodExtra): String =
+    new PrettyPrinter(1000, 2).format(<root>{XmlUtils.toXmlAnnotations(result, extras)}</root>) + System.lineSeparator()
+
+  def streamed(result: InferenceResult, extras: Method => MethodExtra): String = {
+    val out = new StringWriter()
+    XmlUtils.writeAnnotations(result, extras, out)
+    out.toString
+  }
+
+  test("velocity.jar: streamed annotations are the same as pretty printed ones") {
+    val processor = new MainProcessor()
+    val result = processor.process(JarFileSource(new File("data/velocity.jar")))
+    for ((pkg, pkgResult) <- result.byPackage())
+      streamed(pkgResult, processor.extras) should equal (prettyPrinted(pkgResult, processor.extras))
+  }
+
+  test("long names, long contracts, escaping and empty results") {
+    val longName = "m" * 1200
+    val methods = List(
+      Method("pkg/A", "short", "(Ljava/lang/Object;)Ljava/lang/Object;"),
+      Method("pkg/A", longName, "(Ljava/lang/Object;)Ljava/lang/Object;"),
+      Method("pkg/A", "many", "(" + "Ljava/lang/Object;" * 60 + ")Ljava/lang/Object;"),
+      Method("pkg/A", "generic", "(Ljava/util/List;)Ljava/lang/Object;"),
+      Method("pkg/A$B", "<init>", "(Ljava/lang/Object;)V")
+    )
+    val extras: Method => MethodExtra = {
+      case m if m.methodName == "generic" =>
+        MethodExtra(Some("(Ljava/util/List<+Ljava/lang/Comparable<-TT;>;>;)TT;"), Opcodes.ACC_ABSTRACT)
+      case _ =>
+        MethodExtra(None, Opcodes.ACC_PUBLIC)
+    }
+    val keys = for (m <- methods; dir <- ResolveDirection.values.toList) yield Key(m, Out, dir)
+    val params = for (m <- methods; dir <- ResolveDirection.values.toList) yield Key(m, In(0), dir)
+    val contracts = for (m <- methods; i <- 0 until m.argumentSorts.length; v <- List(Values.Null, Values.NotNull))
+      yield Key(m, InOut(i, v), ResolveDirection.Upward) -> Values.True
+
+    val result = InferenceResult(params.toSet, params.take(3).toSet, keys.take(2).toSet, keys.drop(4).toSet, keys.toSet, contracts.toMap)
+    streamed(result, extras) should equal (prettyPrinted(result, extras))
+
+    val empty = InferenceResult(Set(), Set(), Set(), Set(), Set(), Map())
+    streamed(empty, extras) should equal (prettyPrinted(empty, extras))
+  }
+}
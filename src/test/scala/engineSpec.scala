@@ -18,6 +18,15 @@ class engineSpec extends FunSuite with TableDrivenPropertyChecks {
         value
       case Pending(sop) =>
         sop.map(_.elems.map(solution).reduce(lattice.meet)).reduce(lattice.join)
+      case Factored(formula) =>
+        evaluate(formula, solution)
+    }
+
+    def evaluate(formula: Formula[K, V], solution: Map[K, V]): V = formula match {
+      case Atom(id) => solution(id)
+      case Const(v) => v
+      case Meet(args) => args.map(evaluate(_, solution)).reduce(lattice.meet)
+      case Join(args) => args.map(evaluate(_, solution)).reduce(lattice.join)
     }
 
     implicit class SolutionOps(solution: Map[K, V]) {
@@ -32,6 +41,8 @@ class engineSpec extends FunSuite with TableDrivenPropertyChecks {
         Equation(i, Pending(s.map(Product(top, _))))
       def :=(s: Set[K])(implicit x: String = null): Equation[K, V] =
         Equation(i, Pending(Set(Product(top, s))))
+      def :=(f: Formula[K, V]): Equation[K, V] =
+        Equation(i, Factored(f))
     }
 
     implicit class IdSetOps(s: Set[K]) {
@@ -52,6 +63,8 @@ class engineSpec extends FunSuite with TableDrivenPropertyChecks {
         s"${eq.id} := $v;"
       case Pending(sop) =>
         s"${eq.id} := ${sop.map(_.elems.mkString("(", " & ", ")")).mkString(" | ")};"
+      case Factored(formula) =>
+        s"${eq.id} := $formula;"
     }
 
   }
@@ -72,6 +85,18 @@ class engineSpec extends FunSuite with TableDrivenPropertyChecks {
     def i = Wrapper(s)
   }
 
+  val formulas = Formulas[Id, Values.Value](lattice)
+
+  // (a1 | b1) & (a2 | b2) & ...
+  def branches(ids: (Id, Id)*): Formula[Id, Values.Value] =
+    formulas.meetAll(ids.map { case (a, b) => formulas.join(formulas.atom(a), formulas.atom(b)) })
+
+  val solvers = List[() => HierarchySolver[Wrapper, Values.Value]](
+    () => new StagedHierarchySolver[Wrapper, Values.Value](lattice, Values.Top),
+    () => new IntStagedHierarchySolver[Wrapper, Values.Value](lattice, Values.Top),
+    () => new IncrementalHierarchySolver[Wrapper, Values.Value](lattice, Values.Top)
+  )
+
   test("Modeling @NotNull parameters equations") {
 
     val equationSets =
@@ -93,14 +118,14 @@ class engineSpec extends FunSuite with TableDrivenPropertyChecks {
         )
       )
 
-    forAll(equationSets) { equations =>
-      val solver = new StagedHierarchySolver[Wrapper, Values.Value](lattice, Values.Top)
+    forAll(equationSets) { equations => for (mkSolver <- solvers) {
+      val solver = mkSolver()
       equations.foreach(solver.addMethodEquation)
       val solution = solver.solve()
       info(s"equations: ${equations.map(pretty).mkString(" ")}")
       info(s"solution : $solution")
       assert(solution validFor_? equations, "invalid solution")
-    }
+    }}
   }
 
   test("Modeling contract equations") {
@@ -131,13 +156,129 @@ class engineSpec extends FunSuite with TableDrivenPropertyChecks {
         )
       )
 
-    forAll(equationSets) { equations =>
-      val solver = new StagedHierarchySolver[Wrapper, Values.Value](lattice, Values.Top)
+    forAll(equationSets) { equations => for (mkSolver <- solvers) {
+      val solver = mkSolver()
       equations.foreach(solver.addMethodEquation)
       val solution = solver.solve()
       info(s"equations: ${equations.map(pretty).mkString(" ")}")
       info(s"solution : ${solution}")
       assert(solution validFor_? equations, "invalid solution")
+    }}
+  }
+
+  test("Modeling factored equations") {
+
+    val equationSets =
+      Table(
+        "Equations",
+        List(
+          'a.i := True,
+          'b.i := True,
+          'c.i := Top,
+          'd.i := branches('a.i -> 'b.i, 'a.i -> 'c.i)
+        ),
+        List(
+          'a.i := True,
+          'b.i := False,
+          'c.i := Bot,
+          'd.i := branches('a.i -> 'c.i, 'b.i -> 'c.i, 'a.i -> 'b.i)
+        ),
+        List(
+          'a.i := True,
+          'b.i := branches('a.i -> 'c.i),
+          'c.i := Top,
+          'd.i := branches('b.i -> 'c.i, 'a.i -> 'a.i)
+        )
+      )
+
+    forAll(equationSets) { equations => for (mkSolver <- solvers) {
+      val solver = mkSolver()
+      equations.foreach(solver.addMethodEquation)
+      val solution = solver.solve()
+      info(s"equations: ${equations.map(pretty).mkString(" ")}")
+      info(s"solution : ${solution}")
+      assert(solution validFor_? equations, "invalid solution")
+    }}
+  }
+
+  test("Incremental solver solves a changed system as a fresh solver does") {
+
+    val rounds =
+      Table(
+        ("First round", "Second round"),
+        // a changed equation changes its dependents
+        (List('a.i := True, 'b.i := I('a.i), 'c.i := I('b.i) U I('d.i), 'd.i := Top),
+          List('a.i := False, 'b.i := I('a.i), 'c.i := I('b.i) U I('d.i), 'd.i := Top)),
+        // a retracted equation leaves its dependents unsolved
+        (List('a.i := True, 'b.i := I('a.i), 'c.i := I('b.i)),
+          List('b.i := I('a.i), 'c.i := I('b.i))),
+        // a cycle is broken and made again
+        (List('a.i := I('b.i), 'b.i := I('a.i), 'c.i := I('a.i)),
+          List('a.i := True, 'b.i := I('a.i), 'c.i := I('a.i))),
+        (List('a.i := True, 'b.i := I('a.i), 'c.i := I('a.i)),
+          List('a.i := I('b.i), 'b.i := I('a.i), 'c.i := I('a.i))),
+        // factored equations
+        (List('a.i := True, 'b.i := True, 'c.i := Top, 'd.i := branches('a.i -> 'b.i, 'a.i -> 'c.i)),
+          List('a.i := True, 'b.i := Bot, 'c.i := Top, 'd.i := branches('a.i -> 'b.i, 'a.i -> 'c.i), 'e.i := I('d.i)))
+      )
+
+    forAll(rounds) { (first, second) =>
+      val solver = new IncrementalHierarchySolver[Wrapper, Values.Value](lattice, Values.Top)
+      first.foreach(solver.addMethodEquation)
+      solver.solve()
+      second.foreach(solver.addMethodEquation)
+      val solution = solver.solve()
+
+      val fresh = new StagedHierarchySolver[Wrapper, Values.Value](lattice, Values.Top)
+      second.foreach(fresh.addMethodEquation)
+      info(s"equations: ${second.map(pretty).mkString(" ")}")
+      info(s"solution : $solution")
+      assert(solution == fresh.solve(), "solution differs from a fresh one")
+    }
+  }
+
+  test("Factored formulas are simplified") {
+    val (a, b, c) = (formulas.atom('a.i), formulas.atom('b.i), formulas.atom('c.i))
+    // absorption
+    assert(formulas.join(formulas.meet(a, b), b) == b)
+    assert(formulas.meet(formulas.join(a, b), b) == b)
+    // a chain of null checks: (x1 & rest) | rest
+    val rest = formulas.meet(b, c)
+    assert(formulas.join(formulas.meet(a, rest), rest) == rest)
+    // branches with a common continuation: (x1 & rest) | (x2 & rest), factored in a distributive lattice only
+    val distributive = Formulas[Id, Values.Value](lattice, distributive = true)
+    assert(distributive.join(distributive.meet(a, rest), distributive.meet(c, rest)) == distributive.meet(rest, distributive.join(a, c)))
+    val d = formulas.atom('d.i)
+    assert(formulas.join(formulas.meet(a, rest), formulas.meet(d, rest)) == Join(Set(formulas.meet(a, rest), formulas.meet(d, rest))))
+    // constants
+    assert(formulas.meet(a, Const(Top)) == a)
+    assert(formulas.join(a, Const(Top)) == Const(Top))
+    assert(formulas.substitute(formulas.meet(a, b), 'a.i, Bot) == Const(Bot))
+  }
+
+  test("Factored results are joined as formulas") {
+    val utils = ResultUtils[Id, Values.Value](lattice)
+    val (a, b, c) = (formulas.atom('a.i), formulas.atom('b.i), formulas.atom('c.i))
+    val factored: Result[Id, Values.Value] = Factored(formulas.meet(a, b))
+    assert(utils.join(factored, Pending(Set(Product(Top, Set('b.i))))) == Factored(b))
+    assert(utils.join(Final(Bot), factored) == factored)
+    assert(utils.join(factored, Final(Top)) == Final(Top))
+    assert(utils.join(factored, Factored(formulas.meet(a, c))) == Factored(Join(Set(formulas.meet(a, b), formulas.meet(a, c)))))
+  }
+
+  test("Common arguments are not factored out in the flat lattice of values") {
+    // (a & b) | (a & c) with a = Null, b = NotNull, c = True is Bot, a & (b | c) would be Null
+    val (a, b, c) = (formulas.atom('a.i), formulas.atom('b.i), formulas.atom('c.i))
+    val formula = formulas.join(formulas.meet(a, b), formulas.meet(a, c))
+    val substituted = formulas.substitute(formulas.substitute(formulas.substitute(formula, 'a.i, Null), 'b.i, NotNull), 'c.i, True)
+    assert(substituted == Const(Bot))
+
+    val utils = ResultUtils[Id, Values.Value](lattice)
+    val joined = utils.join(Factored(formulas.meet(a, b)), Factored(formulas.meet(a, c)))
+    for (solver <- solvers.map(_())) {
+      List('a.i := Null, 'b.i := NotNull, 'c.i := True).foreach(solver.addMethodEquation)
+      solver.addMethodEquation(Equation('d.i, joined))
+      assert(solver.solve()('d.i) == Bot)
     }
   }
 